@@ -58,4 +58,18 @@ public class AESCipher
 		cipher.init(mode.mode, key, iv);
 		return cipher;
 	}
+	
+	@Override
+	public Cipher newSegmentCipher(CipherMode mode, byte[] header, long segment)
+			throws GeneralSecurityException
+	{
+		// Segment IV = IV xor segment index, so segment 0 matches newCipher
+		byte[] derived = iv.getIV();
+		for(int i = 0; i < 8; ++i)
+			derived[15 - i] ^= (byte) (segment >>> (8 * i));
+		
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(mode.mode, key, new IvParameterSpec(derived));
+		return cipher;
+	}
 }
\ No newline at end of file
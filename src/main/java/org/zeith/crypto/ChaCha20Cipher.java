@@ -0,0 +1,153 @@
+package org.zeith.crypto;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * An {@link ICipher} using ChaCha20-Poly1305, which is several times faster than AES on hosts without AES
+ * hardware acceleration and authenticates every message.
+ * <p>
+ * The nonce is managed by this instance: every message gets a fresh 12-byte nonce, made of a random
+ * 8-byte prefix chosen per instance followed by a 4-byte message counter, and the nonce is written in front
+ * of the ciphertext (see {@link #getHeaderSize()}). The 16-byte Poly1305 tag follows the ciphertext, so a
+ * tampered message fails to decrypt with an {@link AEADBadTagException}. Both ends of a connection may encrypt
+ * under the same key, since their prefixes differ.
+ */
+public class ChaCha20Cipher
+		implements ICipher
+{
+	/**
+	 * The key algorithm of ChaCha20 keys, as used with {@link KeyGenerator} and {@link ClientKeyGen#generateCipher(String)}.
+	 */
+	public static final String ALGORITHM = "ChaCha20";
+	
+	/**
+	 * The JCA transformation this cipher uses.
+	 */
+	public static final String TRANSFORMATION = "ChaCha20-Poly1305";
+	
+	/**
+	 * The size of the nonce written in front of every message.
+	 */
+	public static final int NONCE_SIZE = 12;
+	
+	/**
+	 * The size of the authentication tag appended to every message.
+	 */
+	public static final int TAG_SIZE = 16;
+	
+	private static final long MAX_MESSAGES = 1L << 32;
+	private static final AtomicLongFieldUpdater<ChaCha20Cipher> COUNTER = AtomicLongFieldUpdater.newUpdater(ChaCha20Cipher.class, "counter");
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
+	private final SecretKey key;
+	private final long prefix;
+	private volatile long counter;
+	
+	/**
+	 * Constructs a ChaCha20Cipher with the given 256-bit key.
+	 *
+	 * @param key
+	 * 		the key, e.g. generated by {@code KeyGenerator.getInstance("ChaCha20")}.
+	 */
+	public ChaCha20Cipher(SecretKey key)
+	{
+		byte[] encoded = key.getEncoded();
+		if(encoded == null || encoded.length != 32)
+			throw new IllegalArgumentException("Key must be 32 bytes for ChaCha20.");
+		this.key = ALGORITHM.equals(key.getAlgorithm()) ? key : new SecretKeySpec(encoded, ALGORITHM);
+		this.prefix = RANDOM.nextLong();
+	}
+	
+	/**
+	 * Constructs a ChaCha20Cipher with a key derived from a password.
+	 *
+	 * @param password
+	 * 		the password.
+	 * @param salt
+	 * 		the salt of the key derivation.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the key derivation fails.
+	 */
+	public ChaCha20Cipher(String password, byte[] salt)
+			throws GeneralSecurityException
+	{
+		this(deriveKey(password, salt));
+	}
+	
+	private static SecretKey deriveKey(String password, byte[] salt)
+			throws GeneralSecurityException
+	{
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 256);
+		SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+		return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), ALGORITHM);
+	}
+	
+	@Override
+	public int getHeaderSize()
+	{
+		return NONCE_SIZE;
+	}
+	
+	@Override
+	public void newHeader(byte[] header, long segments)
+			throws GeneralSecurityException
+	{
+		if(segments < 1)
+			throw new IllegalArgumentException("At least one segment must be reserved.");
+		long first = COUNTER.getAndAdd(this, segments);
+		if(first + segments > MAX_MESSAGES)
+			throw new InvalidAlgorithmParameterException("Nonces of this key are exhausted; negotiate a new key.");
+		ByteBuffer.wrap(header, 0, NONCE_SIZE).putLong(prefix).putInt((int) first);
+	}
+	
+	@Override
+	public Cipher newSegmentCipher(CipherMode mode, byte[] header, long segment)
+			throws GeneralSecurityException
+	{
+		ByteBuffer in = ByteBuffer.wrap(header, 0, NONCE_SIZE);
+		long message = Integer.toUnsignedLong(in.getInt(8)) + segment;
+		if(message >= MAX_MESSAGES)
+			throw new InvalidAlgorithmParameterException("Segment " + segment + " is out of the nonce range.");
+		
+		byte[] nonce = new byte[NONCE_SIZE];
+		ByteBuffer.wrap(nonce).putLong(in.getLong(0)).putInt((int) message);
+		Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+		cipher.init(mode.mode, key, new IvParameterSpec(nonce));
+		return cipher;
+	}
+	
+	/**
+	 * Creates a cipher for one message. Encrypting ciphers use a fresh nonce, available from {@link Cipher#getIV()};
+	 * decrypting requires the nonce of the message, so use {@link #newCipher(CipherMode, byte[])} instead.
+	 *
+	 * @param mode
+	 * 		the mode of this cipher
+	 *
+	 * @return a new configured cipher instance.
+	 *
+	 * @throws InvalidAlgorithmParameterException
+	 * 		if {@code mode} is {@link CipherMode#DECRYPT}.
+	 */
+	@Override
+	public Cipher newCipher(CipherMode mode)
+			throws GeneralSecurityException
+	{
+		if(mode != CipherMode.ENCRYPT)
+			throw new InvalidAlgorithmParameterException("Decrypting ChaCha20-Poly1305 requires the message nonce.");
+		return newCipher(mode, new byte[NONCE_SIZE]);
+	}
+	
+	/**
+	 * Always {@code false}: a nonce must never encrypt two messages.
+	 */
+	@Override
+	public boolean isReusable()
+	{
+		return false;
+	}
+}
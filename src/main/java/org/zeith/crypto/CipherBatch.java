@@ -0,0 +1,57 @@
+package org.zeith.crypto;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs an {@link ICipher} over many independent payloads, spreading the work over a {@link ForkJoinPool}.
+ * Results keep the order of the input.
+ */
+final class CipherBatch
+{
+	/**
+	 * Batches smaller than this (in total bytes) are processed on the calling thread.
+	 */
+	static final long SEQUENTIAL_THRESHOLD = 64 * 1024;
+	
+	private CipherBatch()
+	{
+	}
+	
+	static byte[][] process(ICipher cipher, CipherMode mode, byte[][] payloads, ForkJoinPool pool)
+			throws GeneralSecurityException
+	{
+		byte[][] out = new byte[payloads.length][];
+		
+		long total = 0L;
+		for(byte[] payload : payloads)
+			total += payload.length;
+		
+		if(payloads.length < 2 || total < SEQUENTIAL_THRESHOLD || pool.getParallelism() < 2)
+		{
+			run(cipher, mode, payloads, out, 0, payloads.length);
+			return out;
+		}
+		
+		// A few leaves per worker so that uneven payload sizes still balance out
+		long leafBytes = Math.max(SEQUENTIAL_THRESHOLD / 4, total / (pool.getParallelism() * 4L));
+		ParallelRanges.run(pool, payloads.length, i -> payloads[i].length, total, leafBytes,
+				(from, to) -> run(cipher, mode, payloads, out, from, to));
+		return out;
+	}
+	
+	private static void run(ICipher cipher, CipherMode mode, byte[][] in, byte[][] out, int from, int to)
+			throws GeneralSecurityException
+	{
+		// One cipher context per partition, unless the cipher cannot be reused safely
+		Cipher context = cipher.isReusable() ? cipher.newCipher(mode) : null;
+		for(int i = from; i < to; ++i)
+		{
+			if(context != null)
+				out[i] = context.doFinal(in[i]);
+			else
+				out[i] = mode == CipherMode.ENCRYPT ? cipher.encrypt(in[i]) : cipher.decrypt(in[i]);
+		}
+	}
+}
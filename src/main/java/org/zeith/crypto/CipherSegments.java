@@ -0,0 +1,150 @@
+package org.zeith.crypto;
+
+import javax.crypto.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Encrypts one large payload as independent, fixed-size segments on a {@link ForkJoinPool}.
+ * <p>
+ * The output starts with a table, {@code [int segment size][int plaintext length][int segment count]} followed by
+ * the cipher's {@link ICipher#getHeaderSize() header} and the ciphertext length of every segment, after which the
+ * ciphertexts follow in order. Every segment uses the cipher of {@link ICipher#newSegmentCipher(CipherMode, byte[], long)}
+ * for its index, so segments can be decrypted independently and in parallel as well.
+ * <p>
+ * Authenticated ciphers also take {@code [int segment size][int plaintext length][int segment count][int index]} as
+ * associated data of every segment, so a payload whose table was rewritten to drop, add or reorder segments fails
+ * to decrypt.
+ */
+final class CipherSegments
+{
+	private static final int HEADER = 4 + 4 + 4;
+	
+	private CipherSegments()
+	{
+	}
+	
+	static byte[] encrypt(ICipher cipher, byte[] data, int off, int len, int segmentSize, ForkJoinPool pool)
+			throws GeneralSecurityException
+	{
+		if(segmentSize < 1)
+			throw new IllegalArgumentException("Segment size must be positive.");
+		int count = Math.max(1, (int) ((len + (long) segmentSize - 1) / segmentSize));
+		
+		byte[] header = new byte[cipher.getHeaderSize()];
+		cipher.newHeader(header, count);
+		
+		// Reserve the upper bound of every segment, so that all of them can be written in place concurrently
+		Cipher probe = cipher.newSegmentCipher(CipherMode.ENCRYPT, header, 0L);
+		int[] offsets = new int[count + 1];
+		offsets[0] = HEADER + header.length + 4 * count;
+		for(int i = 0; i < count; ++i)
+			offsets[i + 1] = Math.addExact(offsets[i], probe.getOutputSize(segmentLength(len, segmentSize, i)));
+		
+		byte[] out = new byte[offsets[count]];
+		int[] lengths = new int[count];
+		run(pool, count, (from, to) ->
+		{
+			for(int i = from; i < to; ++i)
+			{
+				int start = off + i * segmentSize;
+				lengths[i] = segmentCipher(cipher, CipherMode.ENCRYPT, header, segmentSize, len, count, i).doFinal(data, start, segmentLength(len, segmentSize, i), out, offsets[i]);
+			}
+		});
+		
+		ByteBuffer table = ByteBuffer.wrap(out);
+		table.putInt(segmentSize).putInt(len).putInt(count).put(header);
+		int end = offsets[0];
+		for(int i = 0; i < count; ++i)
+		{
+			table.putInt(lengths[i]);
+			// Only needed for ciphers whose output size is an estimate
+			if(offsets[i] != end)
+				System.arraycopy(out, offsets[i], out, end, lengths[i]);
+			end += lengths[i];
+		}
+		return end == out.length ? out : Arrays.copyOf(out, end);
+	}
+	
+	static byte[] decrypt(ICipher cipher, byte[] data, int off, int len, ForkJoinPool pool)
+			throws GeneralSecurityException
+	{
+		ByteBuffer table = ByteBuffer.wrap(data, off, len);
+		byte[] header = new byte[cipher.getHeaderSize()];
+		if(len < HEADER + header.length)
+			throw new IllegalBlockSizeException("Segmented payload too short.");
+		int segmentSize = table.getInt(), plainLength = table.getInt(), count = table.getInt();
+		table.get(header);
+		if(segmentSize < 1 || plainLength < 0 || count != Math.max(1, (int) ((plainLength + (long) segmentSize - 1) / segmentSize))
+				|| count > (len - HEADER - header.length) / 4)
+			throw new IllegalBlockSizeException("Invalid segment table.");
+		
+		// The table is only authenticated along with the segments, so nothing is allocated before every segment
+		// could hold its plaintext
+		Cipher probe = cipher.newSegmentCipher(CipherMode.DECRYPT, header, 0L);
+		int[] offsets = new int[count + 1];
+		offsets[0] = off + HEADER + header.length + 4 * count;
+		for(int i = 0; i < count; ++i)
+		{
+			int length = table.getInt();
+			if(length < 0 || offsets[i] + (long) length > off + len
+					|| segmentLength(plainLength, segmentSize, i) > probe.getOutputSize(length))
+				throw new IllegalBlockSizeException("Invalid segment table.");
+			offsets[i + 1] = offsets[i] + length;
+		}
+		
+		byte[] out = new byte[plainLength];
+		run(pool, count, (from, to) ->
+		{
+			byte[] scratch = null;
+			for(int i = from; i < to; ++i)
+			{
+				Cipher c = segmentCipher(cipher, CipherMode.DECRYPT, header, segmentSize, plainLength, count, i);
+				int length = offsets[i + 1] - offsets[i];
+				int size = c.getOutputSize(length);
+				if(scratch == null || scratch.length < size)
+					scratch = new byte[size];
+				
+				// Padded modes may write past the plaintext before stripping the padding, so decrypt aside and copy
+				int n = c.doFinal(data, offsets[i], length, scratch, 0);
+				if(n != segmentLength(plainLength, segmentSize, i))
+					throw new BadPaddingException("Segment " + i + " has an unexpected length.");
+				System.arraycopy(scratch, 0, out, i * segmentSize, n);
+			}
+		});
+		return out;
+	}
+	
+	/**
+	 * Creates the cipher of one segment and binds the table to it, if the cipher takes associated data.
+	 */
+	private static Cipher segmentCipher(ICipher cipher, CipherMode mode, byte[] header, int segmentSize, int plainLength, int count, int index)
+			throws GeneralSecurityException
+	{
+		Cipher c = cipher.newSegmentCipher(mode, header, index);
+		try
+		{
+			c.updateAAD(ByteBuffer.allocate(4 + 4 + 4 + 4).putInt(segmentSize).putInt(plainLength).putInt(count).putInt(index).array());
+		} catch(UnsupportedOperationException e)
+		{
+			// Unauthenticated ciphers detect no tampering at all, so there is nothing to bind the table to
+		}
+		return c;
+	}
+	
+	private static int segmentLength(int len, int segmentSize, int index)
+	{
+		return Math.min(segmentSize, len - index * segmentSize);
+	}
+	
+	private static void run(ForkJoinPool pool, int count, ParallelRanges.RangeTask task)
+			throws GeneralSecurityException
+	{
+		if(count < 2 || pool.getParallelism() < 2)
+			task.run(0, count);
+		else
+			ParallelRanges.run(pool, count, i -> 1L, count, 1L, task);
+	}
+}
@@ -1,5 +1,7 @@
 package org.zeith.crypto;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.PublicKey;
@@ -49,11 +51,55 @@ public class ClientKeyGen
 		this.key = algorithm.generatePublic(new X509EncodedKeySpec(serverShake));
 	}
 	
+	/**
+	 * Constructs a ClientShake instance around a known server public key, e.g. one pinned in the client's configuration.
+	 *
+	 * @param serverKey
+	 * 		the server's public key.
+	 */
+	public ClientKeyGen(PublicKey serverKey)
+	{
+		this.key = serverKey;
+	}
+	
+	/**
+	 * Loads a pinned server public key from an X.509 PEM file ({@code BEGIN PUBLIC KEY}),
+	 * such as one written by {@link ServerKeyGen#savePem(Path, Path)}.
+	 *
+	 * @param algorithm
+	 * 		the name of the key factory algorithm (e.g., "RSA").
+	 * @param publicKey
+	 * 		the PEM file holding the server's public key.
+	 *
+	 * @return a {@link ClientKeyGen} for the loaded key.
+	 *
+	 * @throws IOException
+	 * 		if the file cannot be read.
+	 * @throws GeneralSecurityException
+	 * 		if the key cannot be decoded.
+	 */
+	public static ClientKeyGen fromPem(String algorithm, Path publicKey)
+			throws IOException, GeneralSecurityException
+	{
+		return new ClientKeyGen(KeyFiles.readPublicKey(algorithm, publicKey));
+	}
+	
+	/**
+	 * Retrieves the server public key this instance encrypts its handshake with.
+	 *
+	 * @return the server's {@link PublicKey}.
+	 */
+	public PublicKey getPublicKey()
+	{
+		return key;
+	}
+	
 	/**
 	 * Generates a client-side cipher for secure communication using the specified algorithm.
 	 *
 	 * @param algorithm
-	 * 		the name of the key generation algorithm (e.g., "AES").
+	 * 		the name of the key generation algorithm (e.g., "AES", or {@link ChaCha20Cipher#ALGORITHM "ChaCha20"}
+	 * 		on hosts without AES hardware acceleration).
 	 *
 	 * @return an instance of {@link ClientCipher}.
 	 *
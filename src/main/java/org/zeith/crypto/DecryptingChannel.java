@@ -0,0 +1,133 @@
+package org.zeith.crypto;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+
+/**
+ * A readable channel decrypting the ciphertext of an underlying blocking channel, as written by an
+ * {@link EncryptingChannel}.
+ * <p>
+ * Ciphertext is read in chunks of a configurable size and decrypted straight into the caller's buffer whenever it
+ * has room for the output, so no intermediate copy is made. A failed decryption is reported as an {@link IOException}.
+ * With authenticated ciphers the plaintext is released only once the whole channel has been verified.
+ */
+public class DecryptingChannel
+		implements ReadableByteChannel
+{
+	private final ICipher cipher;
+	private final ReadableByteChannel channel;
+	private final ByteBuffer input;
+	private ByteBuffer output = ByteBuffer.allocate(0);
+	private Cipher context;
+	private boolean finished, open = true;
+	
+	/**
+	 * Constructs a {@code DecryptingChannel}.
+	 *
+	 * @param cipher
+	 * 		the cipher the data was encrypted with.
+	 * @param channel
+	 * 		the blocking channel to read the ciphertext from.
+	 * @param bufferSize
+	 * 		the number of ciphertext bytes read and decrypted at once.
+	 */
+	public DecryptingChannel(ICipher cipher, ReadableByteChannel channel, int bufferSize)
+	{
+		if(bufferSize < 1)
+			throw new IllegalArgumentException("Buffer size must be positive.");
+		this.cipher = cipher;
+		this.channel = Objects.requireNonNull(channel, "channel");
+		this.input = ByteBuffer.allocate(bufferSize);
+	}
+	
+	@Override
+	public int read(ByteBuffer dst)
+			throws IOException
+	{
+		if(!open)
+			throw new ClosedChannelException();
+		
+		int total = 0;
+		try
+		{
+			if(context == null)
+				context = cipher.newCipher(CipherMode.DECRYPT, readHeader());
+			
+			while(dst.hasRemaining())
+			{
+				if(output.hasRemaining())
+				{
+					int n = Math.min(output.remaining(), dst.remaining());
+					dst.put(output.slice(output.position(), n));
+					output.position(output.position() + n);
+					total += n;
+					continue;
+				}
+				// Hand out what is there rather than blocking for more
+				if(finished || total > 0)
+					break;
+				
+				int n = channel.read(input.clear());
+				input.flip();
+				int size = context.getOutputSize(input.remaining());
+				// Decrypt in place into the caller's buffer when the output fits
+				ByteBuffer target = dst.remaining() >= size ? dst : prepareOutput(size);
+				int before = target.position();
+				if(n < 0)
+				{
+					context.doFinal(input, target);
+					finished = true;
+				} else
+					context.update(input, target);
+				if(target == dst)
+					total += dst.position() - before;
+				else
+					output.flip();
+			}
+		} catch(GeneralSecurityException e)
+		{
+			finished = true;
+			output = ByteBuffer.allocate(0);
+			throw new IOException("Decryption failed", e);
+		}
+		return total == 0 && finished ? -1 : total;
+	}
+	
+	private byte[] readHeader()
+			throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(cipher.getHeaderSize());
+		while(header.hasRemaining())
+			if(channel.read(header) < 0)
+				throw new EOFException("Channel ends before its header.");
+		return header.array();
+	}
+	
+	private ByteBuffer prepareOutput(int size)
+	{
+		// Authenticated ciphers hold back all output until the end, so grow geometrically
+		if(output.capacity() < size)
+			output = ByteBuffer.allocate(Math.max(size, Math.max(input.capacity(), (int) Math.min(Integer.MAX_VALUE - 8, output.capacity() * 2L))));
+		return output.clear();
+	}
+	
+	@Override
+	public boolean isOpen()
+	{
+		return open;
+	}
+	
+	@Override
+	public void close()
+			throws IOException
+	{
+		if(!open)
+			return;
+		open = false;
+		channel.close();
+	}
+}
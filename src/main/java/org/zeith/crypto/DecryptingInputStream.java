@@ -0,0 +1,142 @@
+package org.zeith.crypto;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+
+/**
+ * An input stream decrypting the ciphertext of an underlying stream, as written by an {@link EncryptingOutputStream}.
+ * <p>
+ * Unlike {@link javax.crypto.CipherInputStream}, ciphertext is read and decrypted in chunks of a configurable size,
+ * and a failed decryption, such as a bad padding or an authentication tag that does not verify, is reported as an
+ * {@link IOException} from {@code read} rather than being treated as the end of the stream. With authenticated
+ * ciphers the plaintext is released only once the whole stream has been verified.
+ */
+public class DecryptingInputStream
+		extends InputStream
+{
+	private final ICipher cipher;
+	private final InputStream input;
+	private final byte[] buffer;
+	private Cipher context;
+	private byte[] plain;
+	private int position, limit;
+	private boolean finished, closed;
+	
+	/**
+	 * Constructs a {@code DecryptingInputStream}.
+	 *
+	 * @param cipher
+	 * 		the cipher the data was encrypted with.
+	 * @param input
+	 * 		the stream to read the ciphertext from.
+	 * @param bufferSize
+	 * 		the number of ciphertext bytes read and decrypted at once.
+	 */
+	public DecryptingInputStream(ICipher cipher, InputStream input, int bufferSize)
+	{
+		if(bufferSize < 1)
+			throw new IllegalArgumentException("Buffer size must be positive.");
+		this.cipher = cipher;
+		this.input = Objects.requireNonNull(input, "input");
+		this.buffer = new byte[bufferSize];
+		this.plain = new byte[0];
+	}
+	
+	@Override
+	public int read()
+			throws IOException
+	{
+		if(position >= limit && !fill())
+			return -1;
+		return plain[position++] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len)
+			throws IOException
+	{
+		Objects.checkFromIndexSize(off, len, b.length);
+		if(len == 0)
+			return 0;
+		if(position >= limit && !fill())
+			return -1;
+		
+		int n = Math.min(len, limit - position);
+		System.arraycopy(plain, position, b, off, n);
+		position += n;
+		return n;
+	}
+	
+	@Override
+	public int available()
+	{
+		return limit - position;
+	}
+	
+	/**
+	 * Reads and decrypts ciphertext until some plaintext is available.
+	 *
+	 * @return false at the end of the stream.
+	 */
+	private boolean fill()
+			throws IOException
+	{
+		if(closed)
+			throw new IOException("Stream closed.");
+		
+		try
+		{
+			if(context == null)
+			{
+				byte[] header = new byte[cipher.getHeaderSize()];
+				if(input.readNBytes(header, 0, header.length) < header.length)
+					throw new EOFException("Stream ends before its header.");
+				context = cipher.newCipher(CipherMode.DECRYPT, header);
+			}
+			
+			while(position >= limit)
+			{
+				if(finished)
+					return false;
+				
+				int n = input.read(buffer);
+				position = 0;
+				if(n < 0)
+				{
+					ensureCapacity(context.getOutputSize(0));
+					limit = context.doFinal(plain, 0);
+					finished = true;
+				} else
+				{
+					ensureCapacity(context.getOutputSize(n));
+					limit = context.update(buffer, 0, n, plain, 0);
+				}
+			}
+			return true;
+		} catch(GeneralSecurityException e)
+		{
+			finished = true;
+			position = limit = 0;
+			throw new IOException("Decryption failed", e);
+		}
+	}
+	
+	private void ensureCapacity(int size)
+	{
+		// Authenticated ciphers hold back all output until the end, so grow geometrically
+		if(plain.length < size)
+			plain = new byte[Math.max(size, (int) Math.min(Integer.MAX_VALUE - 8, plain.length * 2L))];
+	}
+	
+	@Override
+	public void close()
+			throws IOException
+	{
+		if(closed)
+			return;
+		closed = true;
+		input.close();
+	}
+}
@@ -0,0 +1,135 @@
+package org.zeith.crypto;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+
+/**
+ * A writable channel encrypting everything written to it into an underlying blocking channel, to be read back by a
+ * {@link DecryptingChannel}.
+ * <p>
+ * Large writes are encrypted in chunks of a configurable size from the caller's buffer into a reused buffer.
+ * The channel must be closed to write the final block or authentication tag; a failure to do so is reported.
+ */
+public class EncryptingChannel
+		implements WritableByteChannel
+{
+	private final WritableByteChannel channel;
+	private final Cipher context;
+	private final byte[] header;
+	private final int chunkSize;
+	private ByteBuffer output;
+	private boolean started, open = true;
+	
+	/**
+	 * Constructs an {@code EncryptingChannel}.
+	 *
+	 * @param cipher
+	 * 		the cipher to encrypt with.
+	 * @param channel
+	 * 		the blocking channel to write the ciphertext to.
+	 * @param bufferSize
+	 * 		the number of plaintext bytes encrypted at once.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the cipher cannot be initialized.
+	 */
+	public EncryptingChannel(ICipher cipher, WritableByteChannel channel, int bufferSize)
+			throws GeneralSecurityException
+	{
+		if(bufferSize < 1)
+			throw new IllegalArgumentException("Buffer size must be positive.");
+		this.channel = Objects.requireNonNull(channel, "channel");
+		this.header = new byte[cipher.getHeaderSize()];
+		this.context = cipher.newCipher(CipherMode.ENCRYPT, header);
+		this.chunkSize = bufferSize;
+		this.output = ByteBuffer.allocate(context.getOutputSize(bufferSize));
+	}
+	
+	@Override
+	public int write(ByteBuffer src)
+			throws IOException
+	{
+		start();
+		int written = src.remaining();
+		try
+		{
+			while(src.hasRemaining())
+			{
+				int n = Math.min(src.remaining(), chunkSize);
+				ByteBuffer chunk = src.slice(src.position(), n);
+				context.update(chunk, prepareOutput(context.getOutputSize(n)));
+				src.position(src.position() + n);
+				writeFully(output.flip());
+			}
+		} catch(GeneralSecurityException e)
+		{
+			throw new IOException("Encryption failed", e);
+		}
+		return written;
+	}
+	
+	@Override
+	public boolean isOpen()
+	{
+		return open;
+	}
+	
+	/**
+	 * Finishes the encryption, writing the final block or authentication tag, and closes the underlying channel.
+	 *
+	 * @throws IOException
+	 * 		if the encryption cannot be finished or writing fails.
+	 */
+	@Override
+	public void close()
+			throws IOException
+	{
+		if(!open)
+			return;
+		try(channel)
+		{
+			start();
+			context.doFinal(ByteBuffer.allocate(0), prepareOutput(context.getOutputSize(0)));
+			writeFully(output.flip());
+		} catch(GeneralSecurityException e)
+		{
+			throw new IOException("Encryption failed", e);
+		} finally
+		{
+			open = false;
+		}
+	}
+	
+	/**
+	 * Writes the cipher's header in front of the first ciphertext.
+	 */
+	private void start()
+			throws IOException
+	{
+		if(!open)
+			throw new ClosedChannelException();
+		if(!started)
+		{
+			started = true;
+			writeFully(ByteBuffer.wrap(header));
+		}
+	}
+	
+	private ByteBuffer prepareOutput(int size)
+	{
+		if(output.capacity() < size)
+			output = ByteBuffer.allocate(size);
+		return output.clear();
+	}
+	
+	private void writeFully(ByteBuffer buf)
+			throws IOException
+	{
+		while(buf.hasRemaining())
+			channel.write(buf);
+	}
+}
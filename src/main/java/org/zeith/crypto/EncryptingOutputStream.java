@@ -0,0 +1,137 @@
+package org.zeith.crypto;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+
+/**
+ * An output stream encrypting everything written to it into an underlying stream, to be read back by a
+ * {@link DecryptingInputStream}.
+ * <p>
+ * Unlike {@link javax.crypto.CipherOutputStream}, large writes are encrypted in chunks of a configurable size
+ * into a reused buffer, and a failure to finish the encryption on {@link #close()} is reported rather than ignored.
+ * The stream must be closed to write the final block or authentication tag.
+ */
+public class EncryptingOutputStream
+		extends OutputStream
+{
+	private final OutputStream output;
+	private final Cipher context;
+	private final byte[] header;
+	private final int chunkSize;
+	private byte[] buffer;
+	private boolean started, closed;
+	
+	/**
+	 * Constructs an {@code EncryptingOutputStream}.
+	 *
+	 * @param cipher
+	 * 		the cipher to encrypt with.
+	 * @param output
+	 * 		the stream to write the ciphertext to.
+	 * @param bufferSize
+	 * 		the number of plaintext bytes encrypted at once.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the cipher cannot be initialized.
+	 */
+	public EncryptingOutputStream(ICipher cipher, OutputStream output, int bufferSize)
+			throws GeneralSecurityException
+	{
+		if(bufferSize < 1)
+			throw new IllegalArgumentException("Buffer size must be positive.");
+		this.output = Objects.requireNonNull(output, "output");
+		this.header = new byte[cipher.getHeaderSize()];
+		this.context = cipher.newCipher(CipherMode.ENCRYPT, header);
+		this.chunkSize = bufferSize;
+		this.buffer = new byte[context.getOutputSize(bufferSize)];
+	}
+	
+	@Override
+	public void write(int b)
+			throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len)
+			throws IOException
+	{
+		Objects.checkFromIndexSize(off, len, b.length);
+		start();
+		try
+		{
+			while(len > 0)
+			{
+				int n = Math.min(len, chunkSize);
+				ensureCapacity(context.getOutputSize(n));
+				int produced = context.update(b, off, n, buffer, 0);
+				output.write(buffer, 0, produced);
+				off += n;
+				len -= n;
+			}
+		} catch(GeneralSecurityException e)
+		{
+			throw new IOException("Encryption failed", e);
+		}
+	}
+	
+	@Override
+	public void flush()
+			throws IOException
+	{
+		if(closed)
+			throw new IOException("Stream closed.");
+		output.flush();
+	}
+	
+	/**
+	 * Finishes the encryption, writing the final block or authentication tag, and closes the underlying stream.
+	 *
+	 * @throws IOException
+	 * 		if the encryption cannot be finished or writing fails.
+	 */
+	@Override
+	public void close()
+			throws IOException
+	{
+		if(closed)
+			return;
+		try(OutputStream out = output)
+		{
+			start();
+			ensureCapacity(context.getOutputSize(0));
+			out.write(buffer, 0, context.doFinal(buffer, 0));
+			out.flush();
+		} catch(GeneralSecurityException e)
+		{
+			throw new IOException("Encryption failed", e);
+		} finally
+		{
+			closed = true;
+		}
+	}
+	
+	/**
+	 * Writes the cipher's header in front of the first ciphertext.
+	 */
+	private void start()
+			throws IOException
+	{
+		if(closed)
+			throw new IOException("Stream closed.");
+		if(!started)
+		{
+			started = true;
+			output.write(header);
+		}
+	}
+	
+	private void ensureCapacity(int size)
+	{
+		if(buffer.length < size)
+			buffer = new byte[size];
+	}
+}
@@ -2,7 +2,10 @@ package org.zeith.crypto;
 
 import javax.crypto.*;
 import java.io.*;
+import java.nio.channels.*;
 import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * ICipher defines the interface for symmetric encryption and decryption operations.
@@ -12,6 +15,16 @@ import java.security.GeneralSecurityException;
  */
 public interface ICipher
 {
+	/**
+	 * The default segment size of {@link #encryptSegmented(byte[])}.
+	 */
+	int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	
+	/**
+	 * The default buffer size of the streams and channels created by this interface.
+	 */
+	int DEFAULT_STREAM_BUFFER_SIZE = 64 * 1024;
+	
 	/**
 	 * Encrypts the provided data.
 	 *
@@ -26,7 +39,7 @@ public interface ICipher
 	default byte[] encrypt(byte[] data)
 			throws GeneralSecurityException
 	{
-		return newCipher(CipherMode.ENCRYPT).doFinal(data);
+		return encrypt(data, 0, data.length);
 	}
 	
 	/**
@@ -43,7 +56,7 @@ public interface ICipher
 	default byte[] decrypt(byte[] data)
 			throws GeneralSecurityException
 	{
-		return newCipher(CipherMode.DECRYPT).doFinal(data);
+		return decrypt(data, 0, data.length);
 	}
 	
 	/**
@@ -64,7 +77,16 @@ public interface ICipher
 	default byte[] encrypt(byte[] data, int off, int len)
 			throws GeneralSecurityException
 	{
-		return newCipher(CipherMode.ENCRYPT).doFinal(data, off, len);
+		int headerSize = getHeaderSize();
+		if(headerSize == 0)
+			return newCipher(CipherMode.ENCRYPT).doFinal(data, off, len);
+		
+		byte[] header = new byte[headerSize];
+		Cipher c = newCipher(CipherMode.ENCRYPT, header);
+		byte[] out = new byte[headerSize + c.getOutputSize(len)];
+		System.arraycopy(header, 0, out, 0, headerSize);
+		int n = headerSize + c.doFinal(data, off, len, out, headerSize);
+		return n == out.length ? out : Arrays.copyOf(out, n);
 	}
 	
 	/**
@@ -85,19 +107,486 @@ public interface ICipher
 	default byte[] decrypt(byte[] data, int off, int len)
 			throws GeneralSecurityException
 	{
-		return newCipher(CipherMode.DECRYPT).doFinal(data, off, len);
+		int headerSize = getHeaderSize();
+		if(headerSize == 0)
+			return newCipher(CipherMode.DECRYPT).doFinal(data, off, len);
+		
+		if(len < headerSize)
+			throw new IllegalBlockSizeException("Ciphertext is shorter than its header.");
+		Cipher c = newCipher(CipherMode.DECRYPT, Arrays.copyOfRange(data, off, off + headerSize));
+		return c.doFinal(data, off + headerSize, len - headerSize);
+	}
+	
+	/**
+	 * Encrypts many independent payloads, spreading the work across the common {@link ForkJoinPool}.
+	 * Small batches are processed on the calling thread.
+	 *
+	 * @param payloads
+	 * 		the payloads to encrypt.
+	 *
+	 * @return the encrypted payloads, in the same order as the input.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if encryption of any payload fails.
+	 */
+	default byte[][] encryptAll(byte[]... payloads)
+			throws GeneralSecurityException
+	{
+		return CipherBatch.process(this, CipherMode.ENCRYPT, payloads, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Decrypts many independent payloads, spreading the work across the common {@link ForkJoinPool}.
+	 * Small batches are processed on the calling thread.
+	 *
+	 * @param payloads
+	 * 		the payloads to decrypt.
+	 *
+	 * @return the decrypted payloads, in the same order as the input.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if decryption of any payload fails.
+	 */
+	default byte[][] decryptAll(byte[]... payloads)
+			throws GeneralSecurityException
+	{
+		return CipherBatch.process(this, CipherMode.DECRYPT, payloads, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Encrypts many independent payloads, spreading the work across the common {@link ForkJoinPool}.
+	 *
+	 * @param payloads
+	 * 		the payloads to encrypt.
+	 *
+	 * @return the encrypted payloads, in the same order as the input.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if encryption of any payload fails.
+	 */
+	default List<byte[]> encryptAll(List<byte[]> payloads)
+			throws GeneralSecurityException
+	{
+		return encryptAll(payloads, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Decrypts many independent payloads, spreading the work across the common {@link ForkJoinPool}.
+	 *
+	 * @param payloads
+	 * 		the payloads to decrypt.
+	 *
+	 * @return the decrypted payloads, in the same order as the input.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if decryption of any payload fails.
+	 */
+	default List<byte[]> decryptAll(List<byte[]> payloads)
+			throws GeneralSecurityException
+	{
+		return decryptAll(payloads, ForkJoinPool.commonPool());
 	}
 	
+	/**
+	 * Encrypts many independent payloads, spreading the work across the given pool.
+	 *
+	 * @param payloads
+	 * 		the payloads to encrypt.
+	 * @param pool
+	 * 		the pool to run on.
+	 *
+	 * @return the encrypted payloads, in the same order as the input.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if encryption of any payload fails.
+	 */
+	default List<byte[]> encryptAll(List<byte[]> payloads, ForkJoinPool pool)
+			throws GeneralSecurityException
+	{
+		return Arrays.asList(CipherBatch.process(this, CipherMode.ENCRYPT, payloads.toArray(byte[][]::new), pool));
+	}
+	
+	/**
+	 * Decrypts many independent payloads, spreading the work across the given pool.
+	 *
+	 * @param payloads
+	 * 		the payloads to decrypt.
+	 * @param pool
+	 * 		the pool to run on.
+	 *
+	 * @return the decrypted payloads, in the same order as the input.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if decryption of any payload fails.
+	 */
+	default List<byte[]> decryptAll(List<byte[]> payloads, ForkJoinPool pool)
+			throws GeneralSecurityException
+	{
+		return Arrays.asList(CipherBatch.process(this, CipherMode.DECRYPT, payloads.toArray(byte[][]::new), pool));
+	}
+	
+	/**
+	 * Encrypts one large payload as independent segments of {@link #DEFAULT_SEGMENT_SIZE} bytes,
+	 * spreading them across the common {@link ForkJoinPool}.
+	 *
+	 * @param data
+	 * 		the data to encrypt.
+	 *
+	 * @return the segment table followed by the encrypted segments, to be read by {@link #decryptSegmented(byte[])}.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if encryption of any segment fails.
+	 */
+	default byte[] encryptSegmented(byte[] data)
+			throws GeneralSecurityException
+	{
+		return encryptSegmented(data, 0, data.length, DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Encrypts one large payload as independent segments, spreading them across the given pool. Every segment is
+	 * encrypted with {@link #newSegmentCipher(CipherMode, byte[], long)} for its index and written in place, and the
+	 * result starts with a small table of the segment lengths and the payload's header.
+	 *
+	 * @param data
+	 * 		the data to encrypt.
+	 * @param off
+	 * 		the starting offset in the data.
+	 * @param len
+	 * 		the number of bytes to encrypt.
+	 * @param segmentSize
+	 * 		the number of plaintext bytes per segment.
+	 * @param pool
+	 * 		the pool to run on.
+	 *
+	 * @return the segment table followed by the encrypted segments.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if encryption of any segment fails.
+	 */
+	default byte[] encryptSegmented(byte[] data, int off, int len, int segmentSize, ForkJoinPool pool)
+			throws GeneralSecurityException
+	{
+		return CipherSegments.encrypt(this, data, off, len, segmentSize, pool);
+	}
+	
+	/**
+	 * Decrypts a payload produced by {@link #encryptSegmented(byte[])}, spreading the segments across the
+	 * common {@link ForkJoinPool}.
+	 *
+	 * @param data
+	 * 		the segmented data to decrypt.
+	 *
+	 * @return the decrypted data.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the segment table is invalid or decryption of any segment fails.
+	 */
+	default byte[] decryptSegmented(byte[] data)
+			throws GeneralSecurityException
+	{
+		return decryptSegmented(data, 0, data.length, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Decrypts a payload produced by {@link #encryptSegmented(byte[], int, int, int, ForkJoinPool)},
+	 * spreading the segments across the given pool.
+	 *
+	 * @param data
+	 * 		the segmented data to decrypt.
+	 * @param off
+	 * 		the starting offset in the data.
+	 * @param len
+	 * 		the number of bytes to decrypt.
+	 * @param pool
+	 * 		the pool to run on.
+	 *
+	 * @return the decrypted data.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the segment table is invalid or decryption of any segment fails.
+	 */
+	default byte[] decryptSegmented(byte[] data, int off, int len, ForkJoinPool pool)
+			throws GeneralSecurityException
+	{
+		return CipherSegments.decrypt(this, data, off, len, pool);
+	}
+	
+	/**
+	 * Gets the number of bytes every message carries in front of its ciphertext, such as a nonce that must be
+	 * fresh for every message. Code that drives {@link Cipher} instances itself must write this header when
+	 * encrypting and pass it back when decrypting, see {@link #newCipher(CipherMode, byte[])}.
+	 *
+	 * @return the header size, 0 for ciphers whose parameters are fixed.
+	 */
+	default int getHeaderSize()
+	{
+		return 0;
+	}
+	
+	/**
+	 * Fills a header with fresh parameters for one message, reserved for {@code segments} consecutive
+	 * {@link #newSegmentCipher(CipherMode, byte[], long) segment ciphers}.
+	 *
+	 * @param header
+	 * 		the header to fill, {@link #getHeaderSize()} bytes long.
+	 * @param segments
+	 * 		the number of segment ciphers that will use this header.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if no fresh parameters are left.
+	 */
+	default void newHeader(byte[] header, long segments)
+			throws GeneralSecurityException
+	{
+	}
+	
+	/**
+	 * Creates a cipher for one message. When encrypting, the header is filled with fresh parameters first and must
+	 * be sent in front of the ciphertext; when decrypting, it must hold the header received with the message.
+	 *
+	 * @param mode
+	 * 		the mode of this cipher
+	 * @param header
+	 * 		the message header, {@link #getHeaderSize()} bytes long.
+	 *
+	 * @return a new configured cipher instance.
+	 */
+	default Cipher newCipher(CipherMode mode, byte[] header)
+			throws GeneralSecurityException
+	{
+		if(getHeaderSize() == 0)
+			return newCipher(mode);
+		if(mode == CipherMode.ENCRYPT)
+			newHeader(header, 1L);
+		return newSegmentCipher(mode, header, 0L);
+	}
+	
+	/**
+	 * Creates a cipher for one segment of a segmented payload. Implementations with an IV or nonce should derive
+	 * a distinct one from the header and the segment index, so that equal segments do not produce equal ciphertext.
+	 *
+	 * @param mode
+	 * 		the mode of this cipher
+	 * @param header
+	 * 		the header of the payload, see {@link #newHeader(byte[], long)}.
+	 * @param segment
+	 * 		the index of the segment.
+	 *
+	 * @return a new configured cipher instance.
+	 */
+	default Cipher newSegmentCipher(CipherMode mode, byte[] header, long segment)
+			throws GeneralSecurityException
+	{
+		return newCipher(mode);
+	}
+	
+	/**
+	 * Indicates whether a cipher returned by {@link #newCipher(CipherMode)} may be used for several
+	 * consecutive {@link Cipher#doFinal} calls, each producing the same output a fresh instance would.
+	 * Batch operations share one cipher context across many payloads when this holds.
+	 *
+	 * @return {@code true} unless the cipher needs fresh parameters (such as a nonce) for every message.
+	 */
+	default boolean isReusable()
+	{
+		return true;
+	}
+	
+	/**
+	 * Wraps a stream in the JDK's {@link CipherInputStream}, which decrypts in small chunks and treats a failed
+	 * decryption as the end of the stream. Prefer {@link #decryptingStream(InputStream)}.
+	 * <p>
+	 * For ciphers with a {@link #getHeaderSize() header}, the header is read from the stream before this method
+	 * returns, so the call blocks until it has arrived.
+	 *
+	 * @param input
+	 * 		the stream holding the header and the ciphertext.
+	 *
+	 * @return a stream decrypting the ciphertext.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the stream ends before its header, or the cipher cannot be initialized.
+	 * @throws UncheckedIOException
+	 * 		if reading the header fails. The signature predates headers and has no room for an {@link IOException}.
+	 */
 	default CipherInputStream stream(InputStream input)
 			throws GeneralSecurityException
 	{
-		return new CipherInputStream(input, newCipher(CipherMode.DECRYPT));
+		byte[] header = new byte[getHeaderSize()];
+		try
+		{
+			if(input.readNBytes(header, 0, header.length) < header.length)
+				throw new IllegalBlockSizeException("Stream ends before its header.");
+		} catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		return new CipherInputStream(input, newCipher(CipherMode.DECRYPT, header));
 	}
 	
+	/**
+	 * Wraps a stream in the JDK's {@link CipherOutputStream}, which encrypts in small chunks and ignores a failure
+	 * to finish the encryption on close. Prefer {@link #encryptingStream(OutputStream)}.
+	 * <p>
+	 * For ciphers with a {@link #getHeaderSize() header}, the header is written to the stream before this method
+	 * returns, so the call may block on the underlying stream.
+	 *
+	 * @param output
+	 * 		the stream receiving the header and the ciphertext.
+	 *
+	 * @return a stream encrypting into {@code output}.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the cipher cannot be initialized.
+	 * @throws UncheckedIOException
+	 * 		if writing the header fails. The signature predates headers and has no room for an {@link IOException}.
+	 */
 	default CipherOutputStream stream(OutputStream output)
 			throws GeneralSecurityException
 	{
-		return new CipherOutputStream(output, newCipher(CipherMode.ENCRYPT));
+		byte[] header = new byte[getHeaderSize()];
+		Cipher cipher = newCipher(CipherMode.ENCRYPT, header);
+		try
+		{
+			output.write(header);
+		} catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		return new CipherOutputStream(output, cipher);
+	}
+	
+	/**
+	 * Creates a stream decrypting the ciphertext read from the given stream, with a buffer of
+	 * {@link #DEFAULT_STREAM_BUFFER_SIZE} bytes.
+	 *
+	 * @param input
+	 * 		the stream holding the ciphertext.
+	 *
+	 * @return a new {@link DecryptingInputStream}.
+	 */
+	default DecryptingInputStream decryptingStream(InputStream input)
+	{
+		return decryptingStream(input, DEFAULT_STREAM_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Creates a stream decrypting the ciphertext read from the given stream.
+	 *
+	 * @param input
+	 * 		the stream holding the ciphertext.
+	 * @param bufferSize
+	 * 		the number of ciphertext bytes read and decrypted at once.
+	 *
+	 * @return a new {@link DecryptingInputStream}.
+	 */
+	default DecryptingInputStream decryptingStream(InputStream input, int bufferSize)
+	{
+		return new DecryptingInputStream(this, input, bufferSize);
+	}
+	
+	/**
+	 * Creates a stream encrypting everything written to it into the given stream, with a buffer of
+	 * {@link #DEFAULT_STREAM_BUFFER_SIZE} bytes.
+	 *
+	 * @param output
+	 * 		the stream receiving the ciphertext.
+	 *
+	 * @return a new {@link EncryptingOutputStream}, to be closed to finish the ciphertext.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the cipher cannot be initialized.
+	 */
+	default EncryptingOutputStream encryptingStream(OutputStream output)
+			throws GeneralSecurityException
+	{
+		return encryptingStream(output, DEFAULT_STREAM_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Creates a stream encrypting everything written to it into the given stream.
+	 *
+	 * @param output
+	 * 		the stream receiving the ciphertext.
+	 * @param bufferSize
+	 * 		the number of plaintext bytes encrypted at once.
+	 *
+	 * @return a new {@link EncryptingOutputStream}, to be closed to finish the ciphertext.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the cipher cannot be initialized.
+	 */
+	default EncryptingOutputStream encryptingStream(OutputStream output, int bufferSize)
+			throws GeneralSecurityException
+	{
+		return new EncryptingOutputStream(this, output, bufferSize);
+	}
+	
+	/**
+	 * Creates a channel decrypting the ciphertext read from the given blocking channel, with a buffer of
+	 * {@link #DEFAULT_STREAM_BUFFER_SIZE} bytes.
+	 *
+	 * @param channel
+	 * 		the channel holding the ciphertext.
+	 *
+	 * @return a new {@link DecryptingChannel}.
+	 */
+	default DecryptingChannel decryptingChannel(ReadableByteChannel channel)
+	{
+		return decryptingChannel(channel, DEFAULT_STREAM_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Creates a channel decrypting the ciphertext read from the given blocking channel.
+	 *
+	 * @param channel
+	 * 		the channel holding the ciphertext.
+	 * @param bufferSize
+	 * 		the number of ciphertext bytes read and decrypted at once.
+	 *
+	 * @return a new {@link DecryptingChannel}.
+	 */
+	default DecryptingChannel decryptingChannel(ReadableByteChannel channel, int bufferSize)
+	{
+		return new DecryptingChannel(this, channel, bufferSize);
+	}
+	
+	/**
+	 * Creates a channel encrypting everything written to it into the given blocking channel, with a buffer of
+	 * {@link #DEFAULT_STREAM_BUFFER_SIZE} bytes.
+	 *
+	 * @param channel
+	 * 		the channel receiving the ciphertext.
+	 *
+	 * @return a new {@link EncryptingChannel}, to be closed to finish the ciphertext.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the cipher cannot be initialized.
+	 */
+	default EncryptingChannel encryptingChannel(WritableByteChannel channel)
+			throws GeneralSecurityException
+	{
+		return encryptingChannel(channel, DEFAULT_STREAM_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Creates a channel encrypting everything written to it into the given blocking channel.
+	 *
+	 * @param channel
+	 * 		the channel receiving the ciphertext.
+	 * @param bufferSize
+	 * 		the number of plaintext bytes encrypted at once.
+	 *
+	 * @return a new {@link EncryptingChannel}, to be closed to finish the ciphertext.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if the cipher cannot be initialized.
+	 */
+	default EncryptingChannel encryptingChannel(WritableByteChannel channel, int bufferSize)
+			throws GeneralSecurityException
+	{
+		return new EncryptingChannel(this, channel, bufferSize);
 	}
 	
 	/**
@@ -0,0 +1,135 @@
+package org.zeith.crypto;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.*;
+import java.security.interfaces.*;
+import java.security.spec.*;
+import java.util.Base64;
+
+/**
+ * Reading and writing of keys in PEM files.
+ */
+final class KeyFiles
+{
+	static final String PRIVATE_KEY = "PRIVATE KEY";
+	static final String PUBLIC_KEY = "PUBLIC KEY";
+	
+	private KeyFiles()
+	{
+	}
+	
+	static PrivateKey readPrivateKey(String algorithm, Path file)
+			throws IOException, GeneralSecurityException
+	{
+		return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(readPem(file, PRIVATE_KEY)));
+	}
+	
+	static PublicKey readPublicKey(String algorithm, Path file)
+			throws IOException, GeneralSecurityException
+	{
+		return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(readPem(file, PUBLIC_KEY)));
+	}
+	
+	/**
+	 * Recomputes the public key of a private key that carries its public parameters, such as an RSA CRT key.
+	 *
+	 * @return the public key, or {@code null} if it cannot be derived from the private key alone.
+	 */
+	static PublicKey derivePublicKey(PrivateKey key)
+			throws GeneralSecurityException
+	{
+		if(key instanceof RSAPrivateCrtKey rsa && rsa.getPublicExponent().signum() > 0)
+			return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(rsa.getModulus(), rsa.getPublicExponent()));
+		return null;
+	}
+	
+	/**
+	 * Checks that a public and a private key belong together: RSA keys by their modulus, signature algorithms by
+	 * verifying a signature over random data. Keys of other algorithms only need to share the algorithm.
+	 */
+	static boolean isPair(PublicKey publicKey, PrivateKey privateKey)
+			throws GeneralSecurityException
+	{
+		if(!publicKey.getAlgorithm().equals(privateKey.getAlgorithm()))
+			return false;
+		if(publicKey instanceof RSAPublicKey pub && privateKey instanceof RSAPrivateKey priv)
+			return pub.getModulus().equals(priv.getModulus())
+					&& (!(priv instanceof RSAPrivateCrtKey crt) || crt.getPublicExponent().equals(pub.getPublicExponent()));
+		
+		String algorithm = switch(privateKey.getAlgorithm())
+		{
+			case "EC" -> "SHA256withECDSA";
+			case "DSA" -> "SHA256withDSA";
+			case "EdDSA", "Ed25519", "Ed448" -> privateKey.getAlgorithm();
+			default -> null;
+		};
+		if(algorithm == null)
+			return true;
+		byte[] challenge = new byte[32];
+		new SecureRandom().nextBytes(challenge);
+		Signature signer = Signature.getInstance(algorithm);
+		signer.initSign(privateKey);
+		signer.update(challenge);
+		byte[] signature = signer.sign();
+		Signature verifier = Signature.getInstance(algorithm);
+		verifier.initVerify(publicKey);
+		verifier.update(challenge);
+		return verifier.verify(signature);
+	}
+	
+	/**
+	 * Decodes the first PEM block of the given type in a file.
+	 */
+	static byte[] readPem(Path file, String type)
+			throws IOException
+	{
+		String text = Files.readString(file, StandardCharsets.US_ASCII);
+		String begin = "-----BEGIN " + type + "-----", end = "-----END " + type + "-----";
+		int start = text.indexOf(begin), stop = text.indexOf(end);
+		if(start < 0 || stop < start)
+			throw new IOException("No " + type + " PEM block in " + file);
+		return Base64.getMimeDecoder().decode(text.substring(start + begin.length(), stop));
+	}
+	
+	/**
+	 * Writes a single PEM block, replacing the file atomically.
+	 *
+	 * @param secret
+	 * 		whether to restrict the file to its owner, where the file system supports it.
+	 */
+	static void writePem(Path file, String type, byte[] der, boolean secret)
+			throws IOException
+	{
+		String pem = "-----BEGIN " + type + "-----\n" +
+				Base64.getMimeEncoder(64, new byte[] { '\n' }).encodeToString(der) +
+				"\n-----END " + type + "-----\n";
+		writeAtomically(file, pem.getBytes(StandardCharsets.US_ASCII), secret);
+	}
+	
+	static void writeAtomically(Path file, byte[] data, boolean secret)
+			throws IOException
+	{
+		Path dir = file.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try
+		{
+			if(secret && tmp.getFileSystem().supportedFileAttributeViews().contains("posix"))
+				Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+			Files.write(tmp, data);
+			try
+			{
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e)
+			{
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally
+		{
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
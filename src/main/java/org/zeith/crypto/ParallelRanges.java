@@ -0,0 +1,114 @@
+package org.zeith.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.*;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Splits a range of indices in halves of similar weight on a {@link ForkJoinPool} and runs a task on every leaf,
+ * rethrowing the {@link GeneralSecurityException} of a failing leaf on the calling thread.
+ */
+final class ParallelRanges
+{
+	private ParallelRanges()
+	{
+	}
+	
+	/**
+	 * Runs the task over the indices {@code [0, count)}.
+	 *
+	 * @param weight
+	 * 		the weight of an index, e.g. the number of bytes it stands for.
+	 * @param total
+	 * 		the sum of all weights.
+	 * @param leafWeight
+	 * 		the weight up to which a range is no longer split.
+	 */
+	static void run(ForkJoinPool pool, int count, IntToLongFunction weight, long total, long leafWeight, RangeTask task)
+			throws GeneralSecurityException
+	{
+		try
+		{
+			pool.invoke(new Partition(task, weight, 0, count, total, leafWeight));
+		} catch(RangeException e)
+		{
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Processes the indices {@code [from, to)}.
+	 */
+	interface RangeTask
+	{
+		void run(int from, int to)
+				throws GeneralSecurityException;
+	}
+	
+	private static class Partition
+			extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		// Tasks are never serialized; the fields only need to survive the fork
+		private final transient RangeTask task;
+		private final transient IntToLongFunction weight;
+		private final int from, to;
+		private final long total, leafWeight;
+		
+		Partition(RangeTask task, IntToLongFunction weight, int from, int to, long total, long leafWeight)
+		{
+			this.task = task;
+			this.weight = weight;
+			this.from = from;
+			this.to = to;
+			this.total = total;
+			this.leafWeight = leafWeight;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if(to - from < 2 || total <= leafWeight)
+			{
+				try
+				{
+					task.run(from, to);
+				} catch(GeneralSecurityException e)
+				{
+					throw new RangeException(e);
+				}
+				return;
+			}
+			
+			// Split by weight rather than by count, so both halves carry similar work
+			long half = total / 2, acc = 0L;
+			int mid = from;
+			while(mid < to - 1 && acc + weight.applyAsLong(mid) <= half)
+				acc += weight.applyAsLong(mid++);
+			if(mid == from) acc += weight.applyAsLong(mid++);
+			
+			invokeAll(
+					new Partition(task, weight, from, mid, acc, leafWeight),
+					new Partition(task, weight, mid, to, total - acc, leafWeight)
+			);
+		}
+	}
+	
+	private static class RangeException
+			extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		RangeException(GeneralSecurityException cause)
+		{
+			super(cause);
+		}
+		
+		@Override
+		public synchronized GeneralSecurityException getCause()
+		{
+			return (GeneralSecurityException) super.getCause();
+		}
+	}
+}
@@ -11,6 +11,7 @@ public class ServerCipher
 		implements ICipher
 {
 	private final SecretKey secretKey;
+	private final ChaCha20Cipher chaCha;
 	
 	/**
 	 * Constructs a ServerCipher using the provided secret key.
@@ -21,12 +22,42 @@ public class ServerCipher
 	public ServerCipher(SecretKey secretKey)
 	{
 		this.secretKey = secretKey;
+		// ChaCha20 needs a nonce per message, which the bare key algorithm cannot provide
+		this.chaCha = ChaCha20Cipher.ALGORITHM.equalsIgnoreCase(secretKey.getAlgorithm()) ? new ChaCha20Cipher(secretKey) : null;
+	}
+	
+	@Override
+	public int getHeaderSize()
+	{
+		return chaCha != null ? chaCha.getHeaderSize() : 0;
+	}
+	
+	@Override
+	public void newHeader(byte[] header, long segments)
+			throws GeneralSecurityException
+	{
+		if(chaCha != null) chaCha.newHeader(header, segments);
+	}
+	
+	@Override
+	public Cipher newSegmentCipher(CipherMode mode, byte[] header, long segment)
+			throws GeneralSecurityException
+	{
+		if(chaCha != null) return chaCha.newSegmentCipher(mode, header, segment);
+		return newCipher(mode);
+	}
+	
+	@Override
+	public boolean isReusable()
+	{
+		return chaCha == null;
 	}
 	
 	@Override
 	public Cipher newCipher(CipherMode mode)
 			throws GeneralSecurityException
 	{
+		if(chaCha != null) return chaCha.newCipher(mode);
 		Cipher cipher = Cipher.getInstance(secretKey.getAlgorithm());
 		cipher.init(mode.mode, secretKey);
 		return cipher;
@@ -1,13 +1,25 @@
 package org.zeith.crypto;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
@@ -19,6 +31,8 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class ServerKeyGen
 {
+	private static final Map<Path, ServerKeyGen> LOADED = new ConcurrentHashMap<>();
+	
 	private final String algorithm;
 	private final KeyPair pair;
 	
@@ -53,6 +67,216 @@ public class ServerKeyGen
 		this.pair = algorithm.generateKeyPair();
 	}
 	
+	/**
+	 * Constructs a new ServerShake instance around an existing key pair, for example one loaded from disk.
+	 *
+	 * @param pair
+	 * 		the server's key pair.
+	 */
+	public ServerKeyGen(KeyPair pair)
+	{
+		this.algorithm = pair.getPublic().getAlgorithm();
+		this.pair = pair;
+	}
+	
+	/**
+	 * Gets the process-wide RSA key generator, creating its key pair on first use.
+	 * Servers that do not need to persist their keys should share this instance between
+	 * connections instead of generating a key pair for each one.
+	 *
+	 * @return the shared RSA {@link ServerKeyGen}.
+	 */
+	public static ServerKeyGen shared()
+	{
+		return SharedHolder.INSTANCE;
+	}
+	
+	/**
+	 * Loads a key pair from PEM files, or generates one and stores it there if the private key file does not exist.
+	 * Results are memoized per private key file, so repeated calls return the same instance.
+	 * <p>
+	 * If only the public key file is missing, it is derived from the private key and written back. An existing
+	 * private key file is never replaced: where the algorithm does not allow deriving the public key, the call fails.
+	 *
+	 * @param algorithm
+	 * 		the key pair algorithm (e.g. "RSA").
+	 * @param privateKey
+	 * 		the PKCS#8 PEM file holding the private key.
+	 * @param publicKey
+	 * 		the X.509 PEM file holding the public key.
+	 *
+	 * @return the loaded or newly created {@link ServerKeyGen}.
+	 *
+	 * @throws IOException
+	 * 		if the files cannot be read or written, or the public key file is missing and cannot be derived.
+	 * @throws GeneralSecurityException
+	 * 		if the keys cannot be decoded or generated, or do not form a key pair.
+	 * @throws IllegalArgumentException
+	 * 		if the file was already loaded as a key pair of another algorithm.
+	 */
+	public static ServerKeyGen loadOrCreate(String algorithm, Path privateKey, Path publicKey)
+			throws IOException, GeneralSecurityException
+	{
+		Path id = privateKey.toAbsolutePath().normalize();
+		ServerKeyGen gen = LOADED.get(id);
+		if(gen == null)
+			synchronized(LOADED)
+			{
+				gen = LOADED.get(id);
+				if(gen == null)
+				{
+					gen = load(algorithm, privateKey, publicKey);
+					LOADED.put(id, gen);
+				}
+			}
+		
+		if(!gen.algorithm.equalsIgnoreCase(algorithm))
+			throw new IllegalArgumentException(privateKey + " holds a " + gen.algorithm + " key pair, not " + algorithm + ".");
+		return gen;
+	}
+	
+	private static ServerKeyGen load(String algorithm, Path privateKey, Path publicKey)
+			throws IOException, GeneralSecurityException
+	{
+		if(Files.exists(privateKey))
+		{
+			if(Files.exists(publicKey))
+				return fromPem(algorithm, privateKey, publicKey);
+			
+			PrivateKey key = KeyFiles.readPrivateKey(algorithm, privateKey);
+			PublicKey derived = KeyFiles.derivePublicKey(key);
+			if(derived == null)
+				throw new IOException(publicKey + " is missing, and the public key cannot be derived from the "
+						+ key.getAlgorithm() + " private key in " + privateKey + ".");
+			KeyFiles.writePem(publicKey, KeyFiles.PUBLIC_KEY, derived.getEncoded(), false);
+			return new ServerKeyGen(new KeyPair(derived, key));
+		}
+		
+		ServerKeyGen gen = new ServerKeyGen(algorithm);
+		gen.savePem(privateKey, publicKey);
+		return gen;
+	}
+	
+	/**
+	 * Loads a key pair from PEM files.
+	 *
+	 * @param algorithm
+	 * 		the key pair algorithm (e.g. "RSA").
+	 * @param privateKey
+	 * 		the PKCS#8 PEM file ({@code BEGIN PRIVATE KEY}) holding the private key.
+	 * @param publicKey
+	 * 		the X.509 PEM file ({@code BEGIN PUBLIC KEY}) holding the public key.
+	 *
+	 * @return a {@link ServerKeyGen} using the loaded key pair.
+	 *
+	 * @throws IOException
+	 * 		if the files cannot be read.
+	 * @throws GeneralSecurityException
+	 * 		if the keys cannot be decoded, or do not form a key pair.
+	 */
+	public static ServerKeyGen fromPem(String algorithm, Path privateKey, Path publicKey)
+			throws IOException, GeneralSecurityException
+	{
+		PublicKey pub = KeyFiles.readPublicKey(algorithm, publicKey);
+		PrivateKey key = KeyFiles.readPrivateKey(algorithm, privateKey);
+		if(!KeyFiles.isPair(pub, key))
+			throw new InvalidKeyException(publicKey + " does not hold the public key of " + privateKey + ".");
+		return new ServerKeyGen(new KeyPair(pub, key));
+	}
+	
+	/**
+	 * Loads a key pair from a PKCS#12 key store, such as one created with {@code keytool -genkeypair}.
+	 *
+	 * @param file
+	 * 		the key store file.
+	 * @param password
+	 * 		the password of both the key store and the key entry.
+	 * @param alias
+	 * 		the alias of the key entry.
+	 *
+	 * @return a {@link ServerKeyGen} using the loaded key pair.
+	 *
+	 * @throws IOException
+	 * 		if the key store cannot be read.
+	 * @throws GeneralSecurityException
+	 * 		if the key store or entry cannot be decoded, or the entry holds no key pair.
+	 */
+	public static ServerKeyGen fromKeyStore(Path file, char[] password, String alias)
+			throws IOException, GeneralSecurityException
+	{
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		try(InputStream in = Files.newInputStream(file))
+		{
+			store.load(in, password);
+		}
+		
+		Key key = store.getKey(alias, password);
+		Certificate cert = store.getCertificate(alias);
+		if(!(key instanceof PrivateKey) || cert == null)
+			throw new KeyStoreException("No key pair stored under alias '" + alias + "' in " + file);
+		
+		return new ServerKeyGen(new KeyPair(cert.getPublicKey(), (PrivateKey) key));
+	}
+	
+	/**
+	 * Stores the key pair in PEM files. The private key file is replaced atomically and,
+	 * where the file system supports it, made readable by its owner only.
+	 *
+	 * @param privateKey
+	 * 		the file to write the PKCS#8 encoded private key to.
+	 * @param publicKey
+	 * 		the file to write the X.509 encoded public key to.
+	 *
+	 * @throws IOException
+	 * 		if the files cannot be written.
+	 */
+	public void savePem(Path privateKey, Path publicKey)
+			throws IOException
+	{
+		KeyFiles.writePem(publicKey, KeyFiles.PUBLIC_KEY, pair.getPublic().getEncoded(), false);
+		KeyFiles.writePem(privateKey, KeyFiles.PRIVATE_KEY, pair.getPrivate().getEncoded(), true);
+	}
+	
+	/**
+	 * Stores the key pair in a PKCS#12 key store, adding to the existing store if the file exists.
+	 * Key store entries require a certificate chain for the public key, e.g. one issued by your CA.
+	 *
+	 * @param file
+	 * 		the key store file.
+	 * @param password
+	 * 		the password of both the key store and the key entry.
+	 * @param alias
+	 * 		the alias of the key entry.
+	 * @param chain
+	 * 		the certificate chain, starting with the certificate of this key pair's public key.
+	 *
+	 * @throws IOException
+	 * 		if the key store cannot be read or written.
+	 * @throws GeneralSecurityException
+	 * 		if the key store cannot be decoded or encoded.
+	 */
+	public void saveKeyStore(Path file, char[] password, String alias, Certificate... chain)
+			throws IOException, GeneralSecurityException
+	{
+		if(chain.length == 0 || !chain[0].getPublicKey().equals(pair.getPublic()))
+			throw new IllegalArgumentException("The certificate chain must start with the certificate of this key pair.");
+		
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		if(Files.exists(file))
+			try(InputStream in = Files.newInputStream(file))
+			{
+				store.load(in, password);
+			}
+		else
+			store.load(null, null);
+		
+		store.setKeyEntry(alias, pair.getPrivate(), password, chain);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		store.store(out, password);
+		KeyFiles.writeAtomically(file, out.toByteArray(), true);
+	}
+	
 	/**
 	 * Retrieves the public key from the key pair.
 	 *
@@ -113,6 +337,24 @@ public class ServerKeyGen
 			throw new RuntimeException(e);
 		}
 		
-		return new ServerCipher(new SecretKeySpec(key, new String(algo, StandardCharsets.UTF_8)));
+		// Interned, so that every connection's key refers to the same algorithm name
+		return new ServerCipher(new SecretKeySpec(key, new String(algo, StandardCharsets.UTF_8).intern()));
+	}
+	
+	private static class SharedHolder
+	{
+		static final ServerKeyGen INSTANCE;
+		
+		static
+		{
+			try
+			{
+				INSTANCE = new ServerKeyGen("RSA");
+			} catch(NoSuchAlgorithmException e)
+			{
+				// Every Java platform is required to support RSA
+				throw new ExceptionInInitializerError(e);
+			}
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,303 @@
+package org.zeith.crypto.util;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A pool of reusable byte buffers grouped in power-of-two size classes.
+ * <p>
+ * Buffers are handed out as {@link Lease}s which must be {@link Lease#release() released} once the buffer
+ * is no longer in use. Requests larger than the largest size class are served by one-off allocations that
+ * are simply dropped on release. Released buffers are retained only while both the per-class and the total
+ * caps allow it.
+ * <p>
+ * In debug mode (constructor flag, or {@code -Dorg.zeith.crypto.bufferpool.debug=true} for the
+ * {@link #shared() shared} pool) every lease records where it was acquired, and leases that become
+ * unreachable without being released are reported to {@code System.err}.
+ */
+public class BufferPool
+{
+	private static final int MIN_CLASS_SHIFT = 9; // 512 bytes
+	private static final Cleaner LEAK_CLEANER = Cleaner.create();
+	
+	private static final BufferPool SHARED = new BufferPool(true, 4 * 1024 * 1024, 64, 64L * 1024 * 1024,
+			Boolean.getBoolean("org.zeith.crypto.bufferpool.debug"));
+	
+	private final boolean direct;
+	private final boolean debug;
+	private final int maxPerClass;
+	private final long maxRetainedBytes;
+	private final List<Queue<ByteBuffer>> classes;
+	private final AtomicInteger[] classCounts;
+	
+	private final AtomicLong retainedBytes = new AtomicLong();
+	private final AtomicLong leased = new AtomicLong();
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	
+	/**
+	 * Gets the process-wide pool of direct buffers used by the ciphered WebSocket listeners by default.
+	 * It pools buffers of up to 4 MiB and retains at most 64 MiB.
+	 */
+	public static BufferPool shared()
+	{
+		return SHARED;
+	}
+	
+	/**
+	 * Constructs a {@code BufferPool} with leak detection disabled.
+	 *
+	 * @param direct
+	 * 		whether to allocate off-heap (direct) buffers.
+	 * @param maxPooledSize
+	 * 		the largest buffer size that is pooled; rounded up to a power of two.
+	 * @param maxPerClass
+	 * 		the maximum number of idle buffers retained per size class.
+	 * @param maxRetainedBytes
+	 * 		the maximum total capacity of idle buffers retained by this pool.
+	 */
+	public BufferPool(boolean direct, int maxPooledSize, int maxPerClass, long maxRetainedBytes)
+	{
+		this(direct, maxPooledSize, maxPerClass, maxRetainedBytes, false);
+	}
+	
+	/**
+	 * Constructs a {@code BufferPool}.
+	 *
+	 * @param direct
+	 * 		whether to allocate off-heap (direct) buffers.
+	 * @param maxPooledSize
+	 * 		the largest buffer size that is pooled; rounded up to a power of two.
+	 * @param maxPerClass
+	 * 		the maximum number of idle buffers retained per size class.
+	 * @param maxRetainedBytes
+	 * 		the maximum total capacity of idle buffers retained by this pool.
+	 * @param debug
+	 * 		whether to track leases and report those that are never released.
+	 */
+	public BufferPool(boolean direct, int maxPooledSize, int maxPerClass, long maxRetainedBytes, boolean debug)
+	{
+		if(maxPooledSize < 1 || maxPooledSize > 1 << 30)
+			throw new IllegalArgumentException("Invalid maximum pooled size: " + maxPooledSize);
+		
+		this.direct = direct;
+		this.debug = debug;
+		this.maxPerClass = maxPerClass;
+		this.maxRetainedBytes = maxRetainedBytes;
+		
+		int count = Math.max(1, classIndex(maxPooledSize) + 1);
+		this.classes = new ArrayList<>(count);
+		this.classCounts = new AtomicInteger[count];
+		for(int i = 0; i < count; ++i)
+		{
+			classes.add(new ConcurrentLinkedQueue<>());
+			classCounts[i] = new AtomicInteger();
+		}
+	}
+	
+	private static int classIndex(int size)
+	{
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+		return Math.max(0, shift - MIN_CLASS_SHIFT);
+	}
+	
+	/**
+	 * Leases a buffer with at least the requested capacity. The returned buffer is cleared,
+	 * with its limit set to {@code size}.
+	 *
+	 * @param size
+	 * 		the number of bytes required.
+	 *
+	 * @return a lease of the buffer, to be released once it is no longer used.
+	 */
+	public Lease acquire(int size)
+	{
+		if(size < 0)
+			throw new IllegalArgumentException("Negative buffer size: " + size);
+		
+		int index = classIndex(size);
+		ByteBuffer buf = null;
+		if(index < classes.size())
+		{
+			buf = classes.get(index).poll();
+			if(buf != null)
+			{
+				classCounts[index].decrementAndGet();
+				retainedBytes.addAndGet(-buf.capacity());
+				reused.incrementAndGet();
+			} else
+				buf = allocate(1 << (index + MIN_CLASS_SHIFT));
+		} else
+			buf = allocate(size);
+		
+		buf.clear().limit(size);
+		leased.incrementAndGet();
+		return new Lease(buf);
+	}
+	
+	private ByteBuffer allocate(int capacity)
+	{
+		allocated.incrementAndGet();
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+	
+	private void recycle(ByteBuffer buf)
+	{
+		leased.decrementAndGet();
+		
+		int capacity = buf.capacity();
+		int index = classIndex(capacity);
+		if(index >= classes.size() || capacity != 1 << (index + MIN_CLASS_SHIFT))
+			return;
+		
+		if(classCounts[index].incrementAndGet() > maxPerClass)
+		{
+			classCounts[index].decrementAndGet();
+			return;
+		}
+		
+		if(retainedBytes.addAndGet(capacity) > maxRetainedBytes)
+		{
+			retainedBytes.addAndGet(-capacity);
+			classCounts[index].decrementAndGet();
+			return;
+		}
+		
+		classes.get(index).offer(buf);
+	}
+	
+	/**
+	 * Gets whether this pool allocates off-heap buffers.
+	 */
+	public boolean isDirect()
+	{
+		return direct;
+	}
+	
+	/**
+	 * Gets the total capacity of idle buffers currently retained by this pool.
+	 */
+	public long getRetainedBytes()
+	{
+		return retainedBytes.get();
+	}
+	
+	/**
+	 * Gets the number of leases that have not been released yet.
+	 */
+	public long getLeasedCount()
+	{
+		return leased.get();
+	}
+	
+	/**
+	 * Gets the number of buffers this pool had to allocate.
+	 */
+	public long getAllocatedCount()
+	{
+		return allocated.get();
+	}
+	
+	/**
+	 * Gets the number of leases served from retained buffers.
+	 */
+	public long getReusedCount()
+	{
+		return reused.get();
+	}
+	
+	/**
+	 * Gets the number of leases that were garbage collected without being released. Only tracked in debug mode.
+	 */
+	public long getLeakCount()
+	{
+		return leaks.get();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "BufferPool{" +
+				"direct=" + direct +
+				", leased=" + getLeasedCount() +
+				", retainedBytes=" + getRetainedBytes() +
+				", allocated=" + getAllocatedCount() +
+				", reused=" + getReusedCount() +
+				(debug ? ", leaks=" + getLeakCount() : "") +
+				'}';
+	}
+	
+	/**
+	 * A buffer leased from a {@link BufferPool}. The buffer must not be used after the lease is released.
+	 */
+	public final class Lease
+			implements AutoCloseable
+	{
+		private final ByteBuffer buffer;
+		private final AtomicBoolean released = new AtomicBoolean();
+		private final Cleaner.Cleanable leakCheck;
+		
+		private Lease(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+			this.leakCheck = debug ? LEAK_CLEANER.register(this, new LeakCheck(released, new Throwable("Buffer leased here"))) : null;
+		}
+		
+		/**
+		 * Gets the leased buffer.
+		 */
+		public ByteBuffer buffer()
+		{
+			return buffer;
+		}
+		
+		/**
+		 * Returns the buffer to the pool.
+		 *
+		 * @throws IllegalStateException
+		 * 		if the lease has already been released.
+		 */
+		public void release()
+		{
+			if(!released.compareAndSet(false, true))
+				throw new IllegalStateException("Buffer lease released twice.");
+			if(leakCheck != null) leakCheck.clean();
+			recycle(buffer);
+		}
+		
+		@Override
+		public void close()
+		{
+			release();
+		}
+	}
+	
+	private class LeakCheck
+			implements Runnable
+	{
+		private final AtomicBoolean released;
+		private final Throwable origin;
+		
+		LeakCheck(AtomicBoolean released, Throwable origin)
+		{
+			this.released = released;
+			this.origin = origin;
+		}
+		
+		@Override
+		public void run()
+		{
+			if(released.get())
+				return;
+			// The buffer may still be referenced elsewhere, so it is not recycled
+			leaks.incrementAndGet();
+			leased.decrementAndGet();
+			System.err.println("BufferPool: a leased buffer was garbage collected without being released.");
+			origin.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package org.zeith.crypto.util;
+
+import org.zeith.crypto.*;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Encrypts a file as independent fixed-size chunks, so that a later run only rewrites the chunks that changed.
+ * <p>
+ * The encrypted file starts with {@code [int magic][int chunk size][int slot size][long salt]}, followed by one
+ * slot of {@code slot size} bytes per chunk: {@code [long generation][int ciphertext length][cipher header][ciphertext]}.
+ * Slots are fixed in size, so every chunk can be rewritten in place with a positional write. The generation is the
+ * number of the run that wrote the chunk; ciphers with fixed parameters derive each chunk's IV from the salt, its
+ * index and generation, so a rewritten chunk never reuses the IV of its previous contents. The salt is drawn anew
+ * whenever the file is written from scratch, as the generations then start over at 1.
+ * <p>
+ * Authenticated ciphers bind every chunk to its place: the salt, index and generation are passed as associated data,
+ * and so is the chunk count for the last chunk. Slots moved to another place, or a file cut short by whole slots,
+ * therefore fail to decrypt. A chunk whose turn as the last one begins or ends is rewritten even if its plaintext
+ * did not change.
+ * <p>
+ * The manifest, kept next to the encrypted file and encrypted with the same cipher, records the salt of the file and
+ * the SHA-256 hash and generation of every chunk. A run hashes the source, marks the changed chunks as invalid in the manifest, rewrites
+ * them, syncs the file and then stores the new manifest. A run interrupted by a crash therefore leaves the
+ * affected chunks marked, and the next run rewrites them.
+ */
+final class ChunkedFileCipher
+{
+	private static final int FILE_MAGIC = 0x5A43484B;
+	private static final int MANIFEST_MAGIC = 0x5A434D46;
+	private static final int FILE_HEADER = 4 + 4 + 4 + 8;
+	private static final int SLOT_HEADER = 8 + 4;
+	private static final int HASH = 32;
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
+	private ChunkedFileCipher()
+	{
+	}
+	
+	static FileCipher.Update encrypt(ICipher cipher, Path source, Path target, Path manifestFile, int chunkSize)
+			throws IOException, GeneralSecurityException
+	{
+		if(chunkSize < 1)
+			throw new IllegalArgumentException("Chunk size must be positive.");
+		
+		int headerSize = cipher.getHeaderSize();
+		int slotSize = Math.addExact(SLOT_HEADER + headerSize, cipher.newCipher(CipherMode.ENCRYPT, new byte[headerSize]).getOutputSize(chunkSize));
+		Manifest old = null;
+		if(Files.exists(target))
+		{
+			try
+			{
+				old = Manifest.read(cipher, manifestFile);
+			} catch(IOException | GeneralSecurityException e)
+			{
+				// A manifest from another key or layout only costs a full rewrite
+			}
+		}
+		if(old != null && (old.chunkSize != chunkSize || old.slotSize != slotSize))
+			old = null;
+		
+		try(FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			// A manifest of another file, e.g. after the target was replaced, must not vouch for its chunks
+			if(old != null && !old.describes(out))
+				old = null;
+			
+			long length = in.size();
+			int count = Math.toIntExact(Math.max(1L, (length + chunkSize - 1) / chunkSize));
+			Manifest next = new Manifest(chunkSize, slotSize, old != null ? old.salt : RANDOM.nextLong(), old != null ? old.run + 1 : 1L, length, count);
+			
+			// Hash everything first, so that the changed chunks can be marked before any of them is touched
+			ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			BitSet dirty = new BitSet(count);
+			for(int i = 0; i < count; ++i)
+			{
+				readChunk(in, chunk, i, length);
+				sha.update(chunk);
+				sha.digest(next.hashes, i * HASH, HASH);
+				boolean lastChanged = old != null && old.count != count && (i == count - 1 || i == old.count - 1);
+				if(old != null && i < old.count && old.hashMatches(i, next.hashes) && old.chunkLength(i) == chunk.limit() && !lastChanged)
+					next.generations[i] = old.generations[i];
+				else
+					dirty.set(i);
+			}
+			
+			if(old == null)
+				writeFileHeader(out, chunkSize, slotSize, next.salt);
+			Manifest pending = next.copy();
+			for(int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1))
+				pending.invalidate(i);
+			pending.write(cipher, manifestFile);
+			
+			ByteBuffer slot = ByteBuffer.allocate(slotSize);
+			byte[] header = new byte[headerSize];
+			long written = 0L;
+			for(int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1))
+			{
+				readChunk(in, chunk, i, length);
+				next.generations[i] = next.run;
+				Cipher c = chunkCipher(cipher, CipherMode.ENCRYPT, header, next.salt, i, next.run, i == count - 1 ? count : 0);
+				
+				slot.clear().position(SLOT_HEADER + headerSize);
+				int n = c.doFinal(chunk, slot);
+				slot.putLong(0, next.run).putInt(8, n).put(SLOT_HEADER, header).flip();
+				long position = FILE_HEADER + (long) i * slotSize;
+				while(slot.hasRemaining())
+					position += out.write(slot, position);
+				written += slot.limit();
+			}
+			
+			long end = FILE_HEADER + (long) (count - 1) * slotSize + SLOT_HEADER + headerSize + ciphertextLength(out, count - 1, slotSize);
+			if(out.size() > end)
+				out.truncate(end);
+			out.force(false);
+			next.write(cipher, manifestFile);
+			return new FileCipher.Update(count, dirty.cardinality(), written);
+		}
+	}
+	
+	static void decrypt(ICipher cipher, Path source, Path target, OpenOption... saveOptions)
+			throws IOException, GeneralSecurityException
+	{
+		try(FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			OutputStream out = Files.newOutputStream(target, saveOptions))
+		{
+			ByteBuffer fileHeader = readFully(in, ByteBuffer.allocate(FILE_HEADER), 0L).flip();
+			if(fileHeader.getInt() != FILE_MAGIC)
+				throw new IOException("Not a chunked encrypted file: " + source);
+			int chunkSize = fileHeader.getInt(), slotSize = fileHeader.getInt();
+			long salt = fileHeader.getLong();
+			int headerSize = cipher.getHeaderSize();
+			if(chunkSize < 1 || slotSize < SLOT_HEADER + headerSize)
+				throw new IOException("Invalid chunk layout in " + source);
+			
+			ByteBuffer slot = ByteBuffer.allocate(slotSize);
+			byte[] header = new byte[headerSize], plain = new byte[chunkSize];
+			long size = in.size();
+			if(size <= FILE_HEADER)
+				throw new IOException("No chunks in " + source);
+			for(long i = 0, position = FILE_HEADER; position < size; ++i, position += slotSize)
+			{
+				slot.clear().limit((int) Math.min(slotSize, size - position));
+				readFully(in, slot, position).flip();
+				long generation = slot.getLong();
+				int length = slot.getInt();
+				if(length < 0 || length > slot.remaining() - headerSize)
+					throw new IOException("Invalid chunk " + i + " in " + source);
+				slot.get(header);
+				
+				boolean last = size - position <= slotSize;
+				Cipher c = chunkCipher(cipher, CipherMode.DECRYPT, header, salt, i, generation, last ? i + 1 : 0L);
+				if(c.getOutputSize(length) > plain.length)
+					plain = new byte[c.getOutputSize(length)];
+				out.write(plain, 0, c.doFinal(slot.array(), slot.position(), length, plain, 0));
+			}
+		}
+	}
+	
+	/**
+	 * Creates the cipher of one chunk. Ciphers with a managed nonce store a fresh one in the slot header;
+	 * the others derive their IV from a hash of the file salt, the chunk index and the generation, so that neither
+	 * a rewritten chunk nor a file written again from scratch with the same key repeats an IV.
+	 * <p>
+	 * Authenticated ciphers also take the salt, index and generation as associated data, followed by the chunk count
+	 * if this is the last chunk and 0 otherwise.
+	 */
+	private static Cipher chunkCipher(ICipher cipher, CipherMode mode, byte[] header, long salt, long index, long generation, long count)
+			throws GeneralSecurityException
+	{
+		Cipher c;
+		if(cipher.getHeaderSize() > 0)
+			c = cipher.newCipher(mode, header);
+		else
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(ByteBuffer.allocate(8 + 8 + 8).putLong(salt).putLong(generation).putLong(index).array());
+			c = cipher.newSegmentCipher(mode, header, ByteBuffer.wrap(digest).getLong());
+		}
+		
+		try
+		{
+			c.updateAAD(ByteBuffer.allocate(8 + 8 + 8 + 8).putLong(salt).putLong(index).putLong(generation).putLong(count).array());
+		} catch(UnsupportedOperationException e)
+		{
+			// Unauthenticated ciphers detect no tampering at all, so there is nothing to bind the chunk to
+		}
+		return c;
+	}
+	
+	private static void readChunk(FileChannel in, ByteBuffer chunk, long index, long length)
+			throws IOException
+	{
+		long position = index * chunk.capacity();
+		chunk.clear().limit((int) Math.min(chunk.capacity(), length - position));
+		readFully(in, chunk, position).flip();
+	}
+	
+	private static ByteBuffer readFully(FileChannel in, ByteBuffer buf, long position)
+			throws IOException
+	{
+		while(buf.hasRemaining())
+		{
+			int n = in.read(buf, position);
+			if(n < 0)
+				throw new EOFException("File ended unexpectedly.");
+			position += n;
+		}
+		return buf;
+	}
+	
+	private static int ciphertextLength(FileChannel file, long index, int slotSize)
+			throws IOException
+	{
+		return readFully(file, ByteBuffer.allocate(4), FILE_HEADER + index * slotSize + 8).getInt(0);
+	}
+	
+	private static void writeFileHeader(FileChannel out, int chunkSize, int slotSize, long salt)
+			throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(FILE_HEADER).putInt(FILE_MAGIC).putInt(chunkSize).putInt(slotSize).putLong(salt).flip();
+		for(long position = 0L; buf.hasRemaining(); )
+			position += out.write(buf, position);
+	}
+	
+	/**
+	 * The plaintext hash and generation of every chunk, as of the last completed run.
+	 */
+	private static class Manifest
+	{
+		final int chunkSize, slotSize, count;
+		final long salt, run, length;
+		final long[] generations;
+		final byte[] hashes;
+		
+		Manifest(int chunkSize, int slotSize, long salt, long run, long length, int count)
+		{
+			this.chunkSize = chunkSize;
+			this.slotSize = slotSize;
+			this.salt = salt;
+			this.run = run;
+			this.length = length;
+			this.count = count;
+			this.generations = new long[count];
+			this.hashes = new byte[count * HASH];
+		}
+		
+		Manifest copy()
+		{
+			Manifest copy = new Manifest(chunkSize, slotSize, salt, run, length, count);
+			System.arraycopy(generations, 0, copy.generations, 0, count);
+			System.arraycopy(hashes, 0, copy.hashes, 0, hashes.length);
+			return copy;
+		}
+		
+		boolean hashMatches(int index, byte[] other)
+		{
+			return Arrays.equals(hashes, index * HASH, (index + 1) * HASH, other, index * HASH, (index + 1) * HASH)
+					&& generations[index] > 0L;
+		}
+		
+		long chunkLength(int index)
+		{
+			return Math.min(chunkSize, length - (long) index * chunkSize);
+		}
+		
+		/**
+		 * Checks that the file header of the encrypted file matches the layout and salt of this manifest.
+		 */
+		boolean describes(FileChannel file)
+				throws IOException
+		{
+			if(file.size() < FILE_HEADER)
+				return false;
+			ByteBuffer header = readFully(file, ByteBuffer.allocate(FILE_HEADER), 0L).flip();
+			return header.getInt() == FILE_MAGIC && header.getInt() == chunkSize && header.getInt() == slotSize && header.getLong() == salt;
+		}
+		
+		/**
+		 * Marks a chunk as unwritten, so that it is rewritten even if the run does not complete.
+		 */
+		void invalidate(int index)
+		{
+			generations[index] = 0L;
+			Arrays.fill(hashes, index * HASH, (index + 1) * HASH, (byte) 0);
+		}
+		
+		static Manifest read(ICipher cipher, Path file)
+				throws IOException, GeneralSecurityException
+		{
+			if(!Files.exists(file))
+				return null;
+			ByteBuffer buf = ByteBuffer.wrap(cipher.decrypt(Files.readAllBytes(file)));
+			if(buf.remaining() < 4 + 4 + 4 + 8 + 8 + 8 + 4 || buf.getInt() != MANIFEST_MAGIC)
+				throw new IOException("Invalid manifest: " + file);
+			
+			Manifest m = new Manifest(buf.getInt(), buf.getInt(), buf.getLong(), buf.getLong(), buf.getLong(), buf.getInt());
+			if(buf.remaining() != m.count * (8L + HASH))
+				throw new IOException("Invalid manifest: " + file);
+			for(int i = 0; i < m.count; ++i)
+				m.generations[i] = buf.getLong();
+			buf.get(m.hashes);
+			return m;
+		}
+		
+		void write(ICipher cipher, Path file)
+				throws IOException, GeneralSecurityException
+		{
+			ByteBuffer buf = ByteBuffer.allocate(4 + 4 + 4 + 8 + 8 + 8 + 4 + count * (8 + HASH));
+			buf.putInt(MANIFEST_MAGIC).putInt(chunkSize).putInt(slotSize).putLong(salt).putLong(run).putLong(length).putInt(count);
+			for(long generation : generations)
+				buf.putLong(generation);
+			buf.put(hashes);
+			
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+			{
+				ByteBuffer data = ByteBuffer.wrap(cipher.encrypt(buf.array()));
+				while(data.hasRemaining())
+					out.write(data);
+				out.force(false);
+			}
+			try
+			{
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e)
+			{
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package org.zeith.crypto.util;
+
+import org.zeith.crypto.*;
+import org.zeith.crypto.ws.*;
+
+import javax.crypto.*;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the library's hot paths ahead of time, so that the first real connection after a start does not
+ * pay for JCA provider loading, algorithm lookups, class loading and JIT compilation.
+ * <p>
+ * Call {@link #run()} during application startup, before accepting traffic. The same routine doubles as an
+ * AppCDS training run through {@link #main(String[])}:
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=ciphers.jsa -cp app.jar org.zeith.crypto.util.CipherWarmup
+ * java -XX:SharedArchiveFile=ciphers.jsa -cp app.jar ...
+ * </pre>
+ * or, to produce a class list for a static archive, run it with {@code -XX:DumpLoadedClassList=ciphers.classlist}.
+ */
+public final class CipherWarmup
+{
+	/**
+	 * The payload sizes exercised by default.
+	 */
+	public static final int[] DEFAULT_SIZES = { 16, 256, 1024, 16 * 1024, 64 * 1024, 1024 * 1024 };
+	
+	/**
+	 * The default number of iterations for payloads of up to 1 KiB. Larger payloads run proportionally fewer times.
+	 */
+	public static final int DEFAULT_ITERATIONS = 2000;
+	
+	private CipherWarmup()
+	{
+	}
+	
+	/**
+	 * Warms up with the default algorithms, iterations and payload sizes.
+	 *
+	 * @return the time spent in every phase.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if any of the default algorithms is unavailable.
+	 */
+	public static Report run()
+			throws GeneralSecurityException
+	{
+		return run("RSA", "AES", DEFAULT_ITERATIONS, DEFAULT_SIZES);
+	}
+	
+	/**
+	 * Warms up the given algorithms: provider lookups, key exchange handshakes, encrypt/decrypt loops and
+	 * a ciphered WebSocket exchange over a {@link LoopbackWebSocket}.
+	 *
+	 * @param asymmetric
+	 * 		the key pair algorithm used for handshakes (e.g. "RSA").
+	 * @param symmetric
+	 * 		the symmetric algorithm negotiated by clients (e.g. "AES").
+	 * @param iterations
+	 * 		the number of iterations for payloads of up to 1 KiB.
+	 * @param sizes
+	 * 		the payload sizes to exercise.
+	 *
+	 * @return the time spent in every phase.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if any of the algorithms is unavailable.
+	 */
+	public static Report run(String asymmetric, String symmetric, int iterations, int... sizes)
+			throws GeneralSecurityException
+	{
+		long t0 = System.nanoTime();
+		warmProviders(asymmetric, symmetric);
+		
+		long t1 = System.nanoTime();
+		// Warming the shared key pair up front also takes its generation off the first connection
+		ServerKeyGen server = "RSA".equals(asymmetric) ? ServerKeyGen.shared() : new ServerKeyGen(asymmetric);
+		ServerCipher negotiated = null;
+		int handshakes = Math.max(1, iterations / 10);
+		for(int i = 0; i < handshakes; ++i)
+		{
+			ClientCipher client = new ClientKeyGen(asymmetric, server.generateServerShake()).generateCipher(symmetric);
+			negotiated = server.generateCipher(client.generateClientShake());
+		}
+		
+		long t2 = System.nanoTime();
+		SecureRandom random = new SecureRandom();
+		byte[] iv = new byte[16];
+		random.nextBytes(iv);
+		AESCipher aes = new AESCipher(KeyGenerator.getInstance("AES").generateKey(), iv);
+		for(int size : sizes)
+		{
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			ByteBuffer plain = ByteBuffer.allocateDirect(size).put(data).flip();
+			for(int i = 0, n = iterationsFor(iterations, size); i < n; ++i)
+			{
+				roundTrip(aes, data, plain.rewind());
+				roundTrip(negotiated, data, plain.rewind());
+			}
+		}
+		
+		long t3 = System.nanoTime();
+		warmWebSocket(server, symmetric, iterations, sizes);
+		
+		long t4 = System.nanoTime();
+		return new Report(t1 - t0, t2 - t1, t3 - t2, t4 - t3);
+	}
+	
+	/**
+	 * Runs the warm-up and exits, for use as an AppCDS training run.
+	 * Accepts an optional iteration count as the first argument.
+	 */
+	public static void main(String[] args)
+			throws GeneralSecurityException
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+		System.out.println(run("RSA", "AES", iterations, DEFAULT_SIZES));
+	}
+	
+	private static int iterationsFor(int iterations, int size)
+	{
+		return Math.max(1, (int) ((long) iterations * 1024 / Math.max(1024, size)));
+	}
+	
+	private static void warmProviders(String asymmetric, String symmetric)
+			throws GeneralSecurityException
+	{
+		Security.getProviders();
+		new SecureRandom().nextLong();
+		KeyFactory.getInstance(asymmetric);
+		KeyPairGenerator.getInstance(asymmetric);
+		Cipher.getInstance(asymmetric);
+		KeyGenerator.getInstance(symmetric);
+		Cipher.getInstance(symmetric);
+		Cipher.getInstance("AES/CBC/PKCS5Padding");
+		if(ChaCha20Cipher.ALGORITHM.equalsIgnoreCase(symmetric))
+			Cipher.getInstance(ChaCha20Cipher.TRANSFORMATION);
+		SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+	}
+	
+	private static void roundTrip(ICipher cipher, byte[] data, ByteBuffer direct)
+			throws GeneralSecurityException
+	{
+		cipher.decrypt(cipher.encrypt(data));
+		
+		// The WebSocket listeners use the ByteBuffer variants with direct buffers
+		byte[] header = new byte[cipher.getHeaderSize()];
+		Cipher enc = cipher.newCipher(CipherMode.ENCRYPT, header);
+		ByteBuffer out = ByteBuffer.allocateDirect(enc.getOutputSize(direct.remaining()));
+		enc.doFinal(direct, out);
+		Cipher dec = cipher.newCipher(CipherMode.DECRYPT, header);
+		dec.doFinal(out.flip(), ByteBuffer.allocate(dec.getOutputSize(out.remaining())));
+	}
+	
+	private static void warmWebSocket(ServerKeyGen key, String symmetric, int iterations, int[] sizes)
+	{
+		WebSocket.Listener sink = new WebSocket.Listener()
+		{
+			@Override
+			public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+			{
+				webSocket.request(1L);
+				return null;
+			}
+		};
+		
+		ServerWebsocketListener server = new ServerWebsocketListener(key, sink);
+		ClientWebsocketListener client = new ClientWebsocketListener(symmetric, sink);
+		LoopbackWebSocket.connect(server, client);
+		client.getHandshake().join();
+		
+		for(int size : sizes)
+		{
+			ByteBuffer data = ByteBuffer.allocate(size);
+			for(int i = 0, n = Math.max(1, iterationsFor(iterations, size) / 4); i < n; ++i)
+			{
+				client.sendBinary(data.rewind(), true).join();
+				server.sendBinary(data.rewind(), true).join();
+			}
+			client.sendStream(data.rewind(), Math.max(1, size / 4)).join();
+		}
+		
+		for(int i = 0; i < Math.max(1, iterations / 4); ++i)
+		{
+			client.sendText("warmup", true).join();
+			client.sendPing(ByteBuffer.allocate(8)).join();
+		}
+		
+		client.getWebSocket().sendClose(WebSocket.NORMAL_CLOSURE, "").join();
+	}
+	
+	/**
+	 * Time spent in each warm-up phase, in nanoseconds.
+	 */
+	public record Report(long providerNanos, long handshakeNanos, long cipherNanos, long webSocketNanos)
+	{
+		/**
+		 * Gets the total time spent warming up, in nanoseconds.
+		 */
+		public long totalNanos()
+		{
+			return providerNanos + handshakeNanos + cipherNanos + webSocketNanos;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format("CipherWarmup{providers=%.1fms, handshakes=%.1fms, ciphers=%.1fms, websocket=%.1fms, total=%.1fms}",
+					providerNanos / 1e6, handshakeNanos / 1e6, cipherNanos / 1e6, webSocketNanos / 1e6, totalNanos() / 1e6);
+		}
+	}
+}
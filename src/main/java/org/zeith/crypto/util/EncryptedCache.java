@@ -0,0 +1,650 @@
+package org.zeith.crypto.util;
+
+import org.zeith.crypto.*;
+
+import javax.crypto.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size-bounded cache of sensitive values, such as tokens or session keys, that keeps every value encrypted in
+ * off-heap memory and only decrypts it on request.
+ * <p>
+ * The cache is split into lock stripes chosen by key hash. Each stripe owns an equal share of the byte budget, an
+ * access-ordered map of its keys and one direct buffer (its arena) holding the ciphertexts back to back. Once a
+ * stripe runs out of room, its least recently used values are evicted; freed space is zeroed and reclaimed by
+ * compacting the arena. Ciphers with a managed nonce store a fresh one in front of every value.
+ * <p>
+ * {@link #get(Object, ByteBuffer)} decrypts into a buffer supplied by the caller and {@link #get(Object)} into one
+ * leased from the {@link BufferPool#shared() shared pool}. Both return a {@link Value} whose plaintext is zeroed
+ * when it is closed. Plaintext passes only through the caller's buffers and per-stripe scratch arrays, which are
+ * zeroed after every operation; buffers internal to the cipher provider are out of this class's control.
+ *
+ * @param <K>
+ * 		the key type, with the usual {@link Object#hashCode()} and {@link Object#equals(Object)} contract.
+ */
+public class EncryptedCache<K>
+{
+	private static final int CHUNK = 4096;
+	private static final int INITIAL_ARENA = 4096;
+	private static final byte[] ZEROS = new byte[CHUNK];
+	
+	private final long maxBytes;
+	private final Stripe[] stripes;
+	private final int stripeShift;
+	private final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * Constructs an {@code EncryptedCache} with four lock stripes per available processor.
+	 *
+	 * @param cipher
+	 * 		the cipher encrypting the values.
+	 * @param maxBytes
+	 * 		the maximum number of off-heap bytes the ciphertexts may occupy.
+	 */
+	public EncryptedCache(ICipher cipher, long maxBytes)
+	{
+		this(cipher, maxBytes, 4 * Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Constructs an {@code EncryptedCache}.
+	 *
+	 * @param cipher
+	 * 		the cipher encrypting the values.
+	 * @param maxBytes
+	 * 		the maximum number of off-heap bytes the ciphertexts may occupy, split evenly between the stripes.
+	 * @param stripes
+	 * 		the number of lock stripes; rounded up to a power of two.
+	 */
+	public EncryptedCache(ICipher cipher, long maxBytes, int stripes)
+	{
+		if(stripes < 1 || stripes > 1 << 16)
+			throw new IllegalArgumentException("Stripe count out of range: " + stripes);
+		int count = Integer.highestOneBit(stripes - 1) << 1;
+		if(count == 0) count = 1;
+		long perStripe = maxBytes / count;
+		if(perStripe < 1L || perStripe > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Cannot split " + maxBytes + " bytes into " + count + " stripes.");
+		
+		int headerSize = cipher.getHeaderSize();
+		boolean reuseContexts = headerSize == 0 && cipher.isReusable();
+		this.maxBytes = perStripe * count;
+		this.stripes = new Stripe[count];
+		this.stripeShift = 32 - Integer.numberOfTrailingZeros(count);
+		for(int i = 0; i < count; ++i)
+			this.stripes[i] = new Stripe(cipher, headerSize, reuseContexts, (int) perStripe, evictions);
+	}
+	
+	/**
+	 * Encrypts and stores a value, replacing any previous value of the key.
+	 *
+	 * @param key
+	 * 		the key of the value.
+	 * @param value
+	 * 		the value; its remaining bytes are consumed. The caller remains responsible for wiping it.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if encryption fails.
+	 * @throws IllegalArgumentException
+	 * 		if the encrypted value is larger than one stripe's share of the byte budget.
+	 */
+	public void put(K key, ByteBuffer value)
+			throws GeneralSecurityException
+	{
+		stripeOf(key).put(key, value);
+	}
+	
+	/**
+	 * Encrypts and stores a value, replacing any previous value of the key.
+	 *
+	 * @see #put(Object, ByteBuffer)
+	 */
+	public void put(K key, byte[] value)
+			throws GeneralSecurityException
+	{
+		put(key, ByteBuffer.wrap(value));
+	}
+	
+	/**
+	 * Decrypts a value into a buffer supplied by the caller, starting at its position, and marks it as recently used.
+	 * The position of {@code dst} is advanced past the plaintext.
+	 *
+	 * @param key
+	 * 		the key of the value.
+	 * @param dst
+	 * 		the buffer to decrypt into.
+	 *
+	 * @return the plaintext within {@code dst}, to be closed once it is no longer needed; {@code null} if the key is
+	 * not cached.
+	 *
+	 * @throws ShortBufferException
+	 * 		if {@code dst} has less room than the value needs; nothing is written then.
+	 * @throws GeneralSecurityException
+	 * 		if decryption fails; any plaintext already written to {@code dst} is zeroed.
+	 */
+	public Value get(K key, ByteBuffer dst)
+			throws GeneralSecurityException
+	{
+		int start = dst.position();
+		int length = stripeOf(key).get(key, dst, null);
+		return length < 0 ? null : new Value(dst.slice(start, length), null);
+	}
+	
+	/**
+	 * Decrypts a value into a buffer leased from the {@link BufferPool#shared() shared pool}, and marks it as
+	 * recently used. Closing the value zeroes the plaintext and returns the buffer to the pool.
+	 *
+	 * @param key
+	 * 		the key of the value.
+	 *
+	 * @return the plaintext, or {@code null} if the key is not cached.
+	 *
+	 * @throws GeneralSecurityException
+	 * 		if decryption fails.
+	 */
+	public Value get(K key)
+			throws GeneralSecurityException
+	{
+		BufferPool.Lease[] lease = new BufferPool.Lease[1];
+		int length = stripeOf(key).get(key, null, lease);
+		return length < 0 ? null : new Value(lease[0].buffer().slice(0, length), lease[0]);
+	}
+	
+	/**
+	 * Checks whether a value is cached, without marking it as recently used.
+	 */
+	public boolean containsKey(K key)
+	{
+		return stripeOf(key).contains(key);
+	}
+	
+	/**
+	 * Removes a value and zeroes its ciphertext.
+	 *
+	 * @return {@code true} if the key was cached.
+	 */
+	public boolean remove(K key)
+	{
+		return stripeOf(key).remove(key);
+	}
+	
+	/**
+	 * Removes all values, zeroes the off-heap memory and releases it.
+	 */
+	public void clear()
+	{
+		for(Stripe stripe : stripes)
+			stripe.clear();
+	}
+	
+	/**
+	 * Gets the number of cached values.
+	 */
+	public int size()
+	{
+		int size = 0;
+		for(Stripe stripe : stripes)
+			size += stripe.size();
+		return size;
+	}
+	
+	/**
+	 * Gets the number of off-heap bytes occupied by cached values, including their cipher headers.
+	 */
+	public long getUsedBytes()
+	{
+		long used = 0L;
+		for(Stripe stripe : stripes)
+			used += stripe.usedBytes();
+		return used;
+	}
+	
+	/**
+	 * Gets the number of off-heap bytes currently allocated for the stripes' arenas.
+	 */
+	public long getAllocatedBytes()
+	{
+		long allocated = 0L;
+		for(Stripe stripe : stripes)
+			allocated += stripe.allocatedBytes();
+		return allocated;
+	}
+	
+	/**
+	 * Gets the byte budget of this cache, rounded down to a multiple of the stripe count.
+	 */
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+	
+	/**
+	 * Gets the number of values evicted to make room for others.
+	 */
+	public long getEvictionCount()
+	{
+		return evictions.sum();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "EncryptedCache{" +
+				"size=" + size() +
+				", usedBytes=" + getUsedBytes() +
+				", allocatedBytes=" + getAllocatedBytes() +
+				", maxBytes=" + maxBytes +
+				", evictions=" + getEvictionCount() +
+				'}';
+	}
+	
+	/**
+	 * Zeroes a buffer between index 0 and its capacity, regardless of its position and limit.
+	 *
+	 * @param buffer
+	 * 		the buffer to wipe.
+	 */
+	public static void wipe(ByteBuffer buffer)
+	{
+		zero(buffer.duplicate().clear(), 0, buffer.capacity());
+	}
+	
+	private static void zero(ByteBuffer buffer, int from, int to)
+	{
+		for(int i = from; i < to; i += CHUNK)
+			buffer.put(i, ZEROS, 0, Math.min(CHUNK, to - i));
+	}
+	
+	private Stripe stripeOf(Object key)
+	{
+		if(stripes.length == 1)
+			return stripes[0];
+		// The stripe takes the high bits, so that the keys of one stripe still spread over its map
+		return stripes[(key.hashCode() * 0x9E3779B9) >>> stripeShift];
+	}
+	
+	/**
+	 * A decrypted value. The plaintext is zeroed and, if it was leased, returned to the pool once the value is closed.
+	 */
+	public static final class Value
+			implements AutoCloseable
+	{
+		private final ByteBuffer plaintext;
+		private final BufferPool.Lease lease;
+		private boolean closed;
+		
+		private Value(ByteBuffer plaintext, BufferPool.Lease lease)
+		{
+			this.plaintext = plaintext;
+			this.lease = lease;
+		}
+		
+		/**
+		 * Gets the plaintext, a buffer spanning exactly the decrypted bytes.
+		 *
+		 * @throws IllegalStateException
+		 * 		if the value has been closed.
+		 */
+		public ByteBuffer buffer()
+		{
+			if(closed)
+				throw new IllegalStateException("Value already closed.");
+			return plaintext;
+		}
+		
+		/**
+		 * Gets the number of plaintext bytes.
+		 */
+		public int length()
+		{
+			return plaintext.capacity();
+		}
+		
+		/**
+		 * Copies the plaintext into a new array, which the caller is responsible for wiping.
+		 */
+		public byte[] toByteArray()
+		{
+			byte[] data = new byte[length()];
+			buffer().get(0, data);
+			return data;
+		}
+		
+		/**
+		 * Zeroes the plaintext and releases its buffer. Further calls do nothing.
+		 */
+		@Override
+		public void close()
+		{
+			if(closed)
+				return;
+			closed = true;
+			wipe(plaintext);
+			if(lease != null)
+				lease.release();
+		}
+	}
+	
+	/**
+	 * The position of one ciphertext, including its header, in the arena of a stripe.
+	 */
+	private static final class Entry
+	{
+		int offset;
+		final int length, plainLength;
+		
+		Entry(int offset, int length, int plainLength)
+		{
+			this.offset = offset;
+			this.length = length;
+			this.plainLength = plainLength;
+		}
+	}
+	
+	/**
+	 * One lock stripe: its share of the budget, the keys hashed to it and the arena of their ciphertexts.
+	 */
+	private static final class Stripe
+	{
+		private final ICipher cipher;
+		private final int headerSize;
+		private final boolean reuseContexts;
+		private final int capacity;
+		private final LongAdder evictions;
+		private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+		private final byte[] header;
+		
+		// Ciphertexts are appended at top; live counts the bytes of the entries, the rest up to top is free
+		private ByteBuffer arena;
+		private int top, live;
+		private byte[] in, out;
+		private Cipher encrypt, decrypt;
+		
+		Stripe(ICipher cipher, int headerSize, boolean reuseContexts, int capacity, LongAdder evictions)
+		{
+			this.cipher = cipher;
+			this.headerSize = headerSize;
+			this.reuseContexts = reuseContexts;
+			this.capacity = capacity;
+			this.evictions = evictions;
+			this.header = new byte[headerSize];
+		}
+		
+		synchronized void put(Object key, ByteBuffer value)
+				throws GeneralSecurityException
+		{
+			Cipher c = reuseContexts && encrypt != null ? encrypt : cipher.newCipher(CipherMode.ENCRYPT, header);
+			int plainLength = value.remaining();
+			int reserve = headerSize + c.getOutputSize(plainLength);
+			if(reserve > capacity)
+				throw new IllegalArgumentException("A value of " + plainLength + " bytes does not fit into a stripe of " + capacity + " bytes.");
+			
+			Entry old = entries.remove(key);
+			if(old != null)
+				free(old);
+			int offset = allocate(reserve), position = offset + headerSize;
+			arena.put(offset, header);
+			byte[] in = scratchIn();
+			try
+			{
+				while(value.hasRemaining())
+				{
+					int n = Math.min(CHUNK, value.remaining());
+					byte[] out = scratchOut(c.getOutputSize(n));
+					int k;
+					if(value.hasArray())
+						k = c.update(value.array(), value.arrayOffset() + value.position(), n, out, 0);
+					else
+					{
+						value.get(value.position(), in, 0, n);
+						k = c.update(in, 0, n, out, 0);
+					}
+					value.position(value.position() + n);
+					arena.put(position, out, 0, k);
+					position += k;
+				}
+				byte[] out = scratchOut(c.getOutputSize(0));
+				int k = c.doFinal(out, 0);
+				arena.put(position, out, 0, k);
+				position += k;
+			} catch(GeneralSecurityException | RuntimeException e)
+			{
+				zero(arena, offset, position);
+				encrypt = null;
+				throw e;
+			} finally
+			{
+				Arrays.fill(in, (byte) 0);
+			}
+			
+			if(reuseContexts)
+				encrypt = c;
+			Entry entry = new Entry(offset, position - offset, plainLength);
+			top = position;
+			live += entry.length;
+			entries.put(key, entry);
+		}
+		
+		synchronized int get(Object key, ByteBuffer dst, BufferPool.Lease[] lease)
+				throws GeneralSecurityException
+		{
+			Entry entry = entries.get(key);
+			if(entry == null)
+				return -1;
+			if(dst == null)
+			{
+				lease[0] = BufferPool.shared().acquire(entry.plainLength);
+				dst = lease[0].buffer();
+			} else if(dst.remaining() < entry.plainLength)
+				throw new ShortBufferException("The value needs " + entry.plainLength + " bytes, but only " + dst.remaining() + " remain.");
+			
+			int start = dst.position();
+			try
+			{
+				decrypt(entry, dst);
+			} catch(GeneralSecurityException | RuntimeException e)
+			{
+				zero(dst, start, dst.position());
+				dst.position(start);
+				if(lease != null && lease[0] != null)
+					lease[0].release();
+				throw e;
+			}
+			return dst.position() - start;
+		}
+		
+		private void decrypt(Entry entry, ByteBuffer dst)
+				throws GeneralSecurityException
+		{
+			Cipher c;
+			if(reuseContexts && decrypt != null)
+				c = decrypt;
+			else
+			{
+				arena.get(entry.offset, header);
+				c = cipher.newCipher(CipherMode.DECRYPT, header);
+			}
+			
+			byte[] in = scratchIn();
+			try
+			{
+				for(int position = entry.offset + headerSize, end = entry.offset + entry.length; position < end; )
+				{
+					int n = Math.min(CHUNK, end - position);
+					arena.get(position, in, 0, n);
+					position += n;
+					byte[] out = scratchOut(c.getOutputSize(n));
+					moveOut(out, c.update(in, 0, n, out, 0), dst);
+				}
+				byte[] out = scratchOut(c.getOutputSize(0));
+				moveOut(out, c.doFinal(out, 0), dst);
+			} catch(GeneralSecurityException | RuntimeException e)
+			{
+				decrypt = null;
+				throw e;
+			}
+			if(reuseContexts)
+				decrypt = c;
+		}
+		
+		/**
+		 * Moves decrypted bytes from the scratch array to the destination and zeroes them in the scratch array.
+		 */
+		private void moveOut(byte[] out, int length, ByteBuffer dst)
+		{
+			try
+			{
+				dst.put(out, 0, length);
+			} finally
+			{
+				Arrays.fill(out, 0, length, (byte) 0);
+			}
+		}
+		
+		synchronized boolean contains(Object key)
+		{
+			return entries.containsKey(key);
+		}
+		
+		synchronized boolean remove(Object key)
+		{
+			Entry entry = entries.remove(key);
+			if(entry == null)
+				return false;
+			free(entry);
+			return true;
+		}
+		
+		synchronized void clear()
+		{
+			entries.clear();
+			if(arena != null)
+				zero(arena, 0, top);
+			arena = null;
+			top = live = 0;
+			in = out = null;
+			encrypt = decrypt = null;
+		}
+		
+		synchronized int size()
+		{
+			return entries.size();
+		}
+		
+		synchronized int usedBytes()
+		{
+			return live;
+		}
+		
+		synchronized int allocatedBytes()
+		{
+			return arena != null ? arena.capacity() : 0;
+		}
+		
+		/**
+		 * Makes room for {@code size} bytes at the top of the arena and returns its offset.
+		 */
+		private int allocate(int size)
+		{
+			evictDownTo(capacity - size);
+			int room = arena != null ? arena.capacity() : 0;
+			if(top + size > room)
+			{
+				if(live + size > room - room / 8 && room < capacity)
+					resize(Math.min(capacity, Math.max(Math.max(INITIAL_ARENA, room * 2), live + size)));
+				else
+				{
+					// Compacting a nearly full arena would free only a few bytes; evict a little more so that it pays off
+					if(room == capacity)
+						evictDownTo(capacity - size - capacity / 8);
+					compact();
+				}
+			}
+			return top;
+		}
+		
+		private void evictDownTo(int limit)
+		{
+			Iterator<Entry> lru = entries.values().iterator();
+			while(live > limit && lru.hasNext())
+			{
+				free(lru.next());
+				lru.remove();
+				evictions.increment();
+			}
+		}
+		
+		private void free(Entry entry)
+		{
+			zero(arena, entry.offset, entry.offset + entry.length);
+			live -= entry.length;
+			if(entry.offset + entry.length == top)
+				top = entry.offset;
+		}
+		
+		/**
+		 * Moves all entries to a new arena, packed in access order, and zeroes the old one.
+		 */
+		private void resize(int newCapacity)
+		{
+			ByteBuffer next = ByteBuffer.allocateDirect(newCapacity);
+			int position = 0;
+			for(Entry entry : entries.values())
+			{
+				next.put(position, arena, entry.offset, entry.length);
+				entry.offset = position;
+				position += entry.length;
+			}
+			if(arena != null)
+				zero(arena, 0, top);
+			arena = next;
+			top = position;
+		}
+		
+		/**
+		 * Slides all entries down to the start of the arena, in address order, and zeroes the space left behind.
+		 */
+		private void compact()
+		{
+			Entry[] byOffset = entries.values().toArray(new Entry[0]);
+			Arrays.sort(byOffset, Comparator.comparingInt(e -> e.offset));
+			byte[] in = scratchIn();
+			int position = 0;
+			for(Entry entry : byOffset)
+			{
+				// Copied through the scratch array, as the source and target ranges may overlap
+				for(int done = 0; done < entry.length; done += CHUNK)
+				{
+					int n = Math.min(CHUNK, entry.length - done);
+					arena.get(entry.offset + done, in, 0, n);
+					arena.put(position + done, in, 0, n);
+				}
+				entry.offset = position;
+				position += entry.length;
+			}
+			zero(arena, position, top);
+			top = position;
+		}
+		
+		private byte[] scratchIn()
+		{
+			if(in == null)
+				in = new byte[CHUNK];
+			return in;
+		}
+		
+		private byte[] scratchOut(int size)
+		{
+			if(out == null || out.length < size)
+			{
+				if(out != null)
+					Arrays.fill(out, (byte) 0);
+				out = new byte[Math.max(size, CHUNK + 64)];
+			}
+			return out;
+		}
+	}
+}
@@ -0,0 +1,596 @@
+package org.zeith.crypto.util;
+
+import org.zeith.crypto.*;
+
+import javax.crypto.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An append-only file of encrypted, individually authenticated records.
+ * <p>
+ * Every record is stored as {@code [int length][long sequence][ciphertext][HMAC-SHA256 tag]}, where the tag
+ * covers the length, the sequence number and the ciphertext. Records are appended by a single writer thread
+ * that takes all records queued since its last write, encrypts them with one reused cipher context and writes
+ * them in one go (group commit). The file is synced at most once per configurable interval, and
+ * {@link #append(byte[])} completes once the record is durable.
+ * <p>
+ * When a log is opened, it is scanned and a record left incomplete by a crash is truncated away. A record that fails
+ * authentication anywhere else, or whose length points past records that still authenticate, fails the open instead.
+ * Records are read back with a {@link Reader}, which can resume from any record offset.
+ */
+public class EncryptedLog
+		implements Closeable
+{
+	/**
+	 * The MAC algorithm authenticating every record.
+	 */
+	public static final String MAC_ALGORITHM = "HmacSHA256";
+	
+	private static final int HEADER = 4 + 8;
+	private static final int TAG = 32;
+	
+	private final Path file;
+	private final ICipher cipher;
+	private final SecretKey macKey;
+	private final long syncIntervalNanos;
+	private final FileChannel channel;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	
+	private volatile boolean closed;
+	private volatile Throwable failure;
+	
+	// Owned by the writer thread
+	private long size, nextSequence;
+	private ByteBuffer out = ByteBuffer.allocateDirect(256 * 1024);
+	
+	/**
+	 * Opens a log that syncs after every batch of appends.
+	 *
+	 * @param file
+	 * 		the log file, created if it does not exist.
+	 * @param cipher
+	 * 		the cipher encrypting the records.
+	 * @param macKey
+	 * 		the key authenticating the records.
+	 *
+	 * @throws IOException
+	 * 		if the file cannot be opened, or holds a corrupted record before its tail.
+	 * @throws GeneralSecurityException
+	 * 		if the cipher or MAC cannot be initialized.
+	 */
+	public EncryptedLog(Path file, ICipher cipher, SecretKey macKey)
+			throws IOException, GeneralSecurityException
+	{
+		this(file, cipher, macKey, 0L, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Opens a log, recovering from a torn tail if the previous writer crashed.
+	 *
+	 * @param file
+	 * 		the log file, created if it does not exist.
+	 * @param cipher
+	 * 		the cipher encrypting the records.
+	 * @param macKey
+	 * 		the key authenticating the records.
+	 * @param syncInterval
+	 * 		the minimum time between two syncs; {@code 0} syncs after every batch.
+	 * @param unit
+	 * 		the unit of {@code syncInterval}.
+	 *
+	 * @throws IOException
+	 * 		if the file cannot be opened, or holds a corrupted record before its tail.
+	 * @throws GeneralSecurityException
+	 * 		if the cipher or MAC cannot be initialized.
+	 */
+	public EncryptedLog(Path file, ICipher cipher, SecretKey macKey, long syncInterval, TimeUnit unit)
+			throws IOException, GeneralSecurityException
+	{
+		this.file = file;
+		this.cipher = cipher;
+		this.macKey = macKey;
+		this.syncIntervalNanos = unit.toNanos(syncInterval);
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try
+		{
+			recover();
+		} catch(IOException | GeneralSecurityException | RuntimeException e)
+		{
+			channel.close();
+			throw e;
+		}
+		
+		this.writer = new Thread(this::writeLoop, "EncryptedLog-" + file.getFileName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Opens a reader over a log file. The reader may be used while the log is being appended to.
+	 *
+	 * @param file
+	 * 		the log file.
+	 * @param cipher
+	 * 		the cipher the records were encrypted with.
+	 * @param macKey
+	 * 		the key the records were authenticated with.
+	 * @param offset
+	 * 		the offset of the first record to read: {@code 0}, or the {@link Record#nextOffset()} of a previous record.
+	 *
+	 * @return a new {@link Reader}.
+	 *
+	 * @throws IOException
+	 * 		if the file cannot be opened.
+	 * @throws GeneralSecurityException
+	 * 		if the cipher or MAC cannot be initialized.
+	 */
+	public static Reader reader(Path file, ICipher cipher, SecretKey macKey, long offset)
+			throws IOException, GeneralSecurityException
+	{
+		return new Reader(FileChannel.open(file, StandardOpenOption.READ), cipher, macKey, offset, true);
+	}
+	
+	/**
+	 * Opens a reader over this log.
+	 *
+	 * @param offset
+	 * 		the offset of the first record to read: {@code 0}, or the {@link Record#nextOffset()} of a previous record.
+	 *
+	 * @return a new {@link Reader}.
+	 *
+	 * @throws IOException
+	 * 		if the file cannot be opened.
+	 * @throws GeneralSecurityException
+	 * 		if the cipher or MAC cannot be initialized.
+	 */
+	public Reader reader(long offset)
+			throws IOException, GeneralSecurityException
+	{
+		return reader(file, cipher, macKey, offset);
+	}
+	
+	/**
+	 * Queues a record for appending.
+	 *
+	 * @param record
+	 * 		the plaintext of the record; must not be modified until the returned future completes.
+	 *
+	 * @return a future completed with the offset of the record once it has been synced to disk.
+	 */
+	public CompletableFuture<Long> append(byte[] record)
+	{
+		Pending pending = new Pending(record);
+		Throwable error = failure;
+		if(error != null)
+			pending.future.completeExceptionally(error);
+		else if(closed)
+			pending.future.completeExceptionally(new IOException("Log is closed."));
+		else
+		{
+			queue.add(pending);
+			// Lost the race with close() or a failing writer, which may have drained the queue already
+			error = failure;
+			if((error != null || closed) && queue.remove(pending))
+				pending.future.completeExceptionally(error != null ? error : new IOException("Log is closed."));
+		}
+		return pending.future;
+	}
+	
+	/**
+	 * Gets the number of records queued but not yet written.
+	 */
+	public int getQueuedCount()
+	{
+		return queue.size();
+	}
+	
+	/**
+	 * Writes and syncs all queued records, then closes the file.
+	 */
+	@Override
+	public void close()
+			throws IOException
+	{
+		if(closed)
+			return;
+		closed = true;
+		queue.add(Pending.CLOSE);
+		try
+		{
+			writer.join();
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+	
+	/**
+	 * Scans the file, truncating an incomplete or unauthenticated last record.
+	 */
+	private void recover()
+			throws IOException, GeneralSecurityException
+	{
+		Reader reader = new Reader(channel, cipher, macKey, 0L, false);
+		long expected = 0L;
+		Record record;
+		SignatureException failure = null;
+		try
+		{
+			while((record = reader.next()) != null)
+			{
+				if(record.sequence() != expected)
+					throw new IOException("Record at offset " + record.offset() + " of " + file + " is out of sequence.");
+				++expected;
+			}
+		} catch(SignatureException e)
+		{
+			failure = e;
+		}
+		
+		// The reader also stops before a record running past the end of the file
+		if(reader.getOffset() < channel.size() && !reader.isTornTail(expected))
+			throw new IOException("Corrupted record at offset " + reader.getOffset() + " of " + file, failure);
+		
+		size = reader.getOffset();
+		nextSequence = expected;
+		if(channel.size() > size)
+		{
+			channel.truncate(size);
+			channel.force(true);
+		}
+	}
+	
+	private void writeLoop()
+	{
+		List<Pending> batch = new ArrayList<>();
+		List<Pending> unsynced = new ArrayList<>();
+		long lastSync = System.nanoTime();
+		boolean stop = false;
+		try
+		{
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(macKey);
+			Cipher context = cipher.isReusable() ? cipher.newCipher(CipherMode.ENCRYPT) : null;
+			
+			while(!stop)
+			{
+				Pending first;
+				if(unsynced.isEmpty())
+					first = queue.take();
+				else
+					first = queue.poll(Math.max(0L, lastSync + syncIntervalNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+				
+				if(first != null)
+				{
+					batch.add(first);
+					queue.drainTo(batch);
+					stop = batch.remove(Pending.CLOSE);
+					write(batch, mac, context);
+					unsynced.addAll(batch);
+					batch.clear();
+				}
+				
+				if(!unsynced.isEmpty() && (stop || System.nanoTime() - lastSync >= syncIntervalNanos))
+				{
+					channel.force(false);
+					lastSync = System.nanoTime();
+					for(Pending p : unsynced)
+						p.future.complete(p.offset);
+					unsynced.clear();
+				}
+			}
+		} catch(Throwable e)
+		{
+			failure = e instanceof InterruptedException ? new IOException("Log writer interrupted.", e) : e;
+			batch.forEach(p -> p.future.completeExceptionally(failure));
+			unsynced.forEach(p -> p.future.completeExceptionally(failure));
+		}
+		
+		Pending p;
+		while((p = queue.poll()) != null)
+			p.future.completeExceptionally(failure != null ? failure : new IOException("Log is closed."));
+	}
+	
+	private void write(List<Pending> batch, Mac mac, Cipher context)
+			throws IOException, GeneralSecurityException
+	{
+		for(Pending p : batch)
+		{
+			byte[] ct = context == null ? cipher.encrypt(p.data) : null;
+			int length = ct != null ? ct.length : context.getOutputSize(p.data.length);
+			int record = HEADER + length + TAG;
+			if(out.remaining() < record)
+			{
+				flush();
+				if(out.capacity() < record)
+					out = ByteBuffer.allocateDirect(Math.max(record, out.capacity() * 2));
+			}
+			
+			int start = out.position();
+			out.putInt(length).putLong(nextSequence);
+			if(ct != null) out.put(ct);
+			else
+			{
+				int written = context.doFinal(ByteBuffer.wrap(p.data), out);
+				if(written != length)
+				{
+					// Output size is only an upper bound; fix the length prefix
+					length = written;
+					out.putInt(start, length);
+				}
+			}
+			
+			mac.update(out.duplicate().position(start).limit(start + HEADER + length));
+			out.put(mac.doFinal());
+			
+			p.offset = size;
+			size += out.position() - start;
+			++nextSequence;
+		}
+		flush();
+	}
+	
+	private void flush()
+			throws IOException
+	{
+		out.flip();
+		while(out.hasRemaining())
+			channel.write(out, size - out.remaining());
+		out.clear();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "EncryptedLog{" +
+				"file=" + file +
+				", queued=" + getQueuedCount() +
+				", closed=" + closed +
+				'}';
+	}
+	
+	/**
+	 * A decrypted record of an {@link EncryptedLog}.
+	 *
+	 * @param offset
+	 * 		the offset of the record in the file.
+	 * @param sequence
+	 * 		the sequence number of the record, counting from zero.
+	 * @param data
+	 * 		the plaintext of the record.
+	 * @param nextOffset
+	 * 		the offset of the following record, to resume reading from.
+	 */
+	public record Record(long offset, long sequence, byte[] data, long nextOffset)
+	{
+	}
+	
+	/**
+	 * Reads the records of a log sequentially.
+	 */
+	public static final class Reader
+			implements Closeable
+	{
+		private final FileChannel channel;
+		private final ICipher cipher;
+		private final Cipher context;
+		private final Mac mac;
+		private final boolean owned;
+		
+		private ByteBuffer buf = ByteBuffer.allocate(64 * 1024).flip();
+		private long offset, readPosition;
+		
+		private Reader(FileChannel channel, ICipher cipher, SecretKey macKey, long offset, boolean owned)
+				throws GeneralSecurityException
+		{
+			this.channel = channel;
+			this.cipher = cipher;
+			this.context = cipher.isReusable() ? cipher.newCipher(CipherMode.DECRYPT) : null;
+			this.mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(macKey);
+			this.owned = owned;
+			this.offset = offset;
+			this.readPosition = offset;
+		}
+		
+		/**
+		 * Gets the offset of the next record to be read.
+		 */
+		public long getOffset()
+		{
+			return offset;
+		}
+		
+		/**
+		 * Reads the next record. At the end of the log, or before a record that has not been fully written yet,
+		 * {@code null} is returned; calling again later picks up records appended since.
+		 *
+		 * @return the next record, or {@code null} if there is none yet.
+		 *
+		 * @throws IOException
+		 * 		if the file cannot be read.
+		 * @throws SignatureException
+		 * 		if the next record fails authentication.
+		 * @throws GeneralSecurityException
+		 * 		if the next record cannot be decrypted.
+		 */
+		public Record next()
+				throws IOException, GeneralSecurityException
+		{
+			if(!ensure(HEADER))
+				return null;
+			
+			int pos = buf.position();
+			int length = buf.getInt(pos);
+			long sequence = buf.getLong(pos + 4);
+			if(length < 0 || length > Integer.MAX_VALUE - HEADER - TAG)
+				throw new SignatureException("Invalid record length at offset " + offset);
+			// The length is not authenticated yet, so nothing is allocated for a record the file cannot hold
+			if(length > channel.size() - offset - HEADER - TAG || !ensure(HEADER + length + TAG))
+				return null;
+			
+			pos = buf.position();
+			mac.update(buf.duplicate().position(pos).limit(pos + HEADER + length));
+			byte[] tag = mac.doFinal();
+			if(!MessageDigest.isEqual(tag, Arrays.copyOfRange(buf.array(), buf.arrayOffset() + pos + HEADER + length, buf.arrayOffset() + pos + HEADER + length + TAG)))
+				throw new SignatureException("Record at offset " + offset + " failed authentication.");
+			
+			byte[] data;
+			if(context != null)
+				data = context.doFinal(buf.array(), buf.arrayOffset() + pos + HEADER, length);
+			else
+				data = cipher.decrypt(buf.array(), buf.arrayOffset() + pos + HEADER, length);
+			
+			long start = offset;
+			buf.position(pos + HEADER + length + TAG);
+			offset += HEADER + length + TAG;
+			return new Record(start, sequence, data, offset);
+		}
+		
+		/**
+		 * Makes at least {@code n} bytes available in the buffer.
+		 *
+		 * @return false if the file ends before that.
+		 */
+		private boolean ensure(int n)
+				throws IOException
+		{
+			if(buf.remaining() >= n)
+				return true;
+			if(buf.capacity() < n)
+				buf = ByteBuffer.allocate(Math.max(n, buf.capacity() * 2)).put(buf).flip();
+			
+			buf.compact();
+			int read;
+			while(buf.position() < n && (read = channel.read(buf, readPosition)) > 0)
+				readPosition += read;
+			buf.flip();
+			return buf.remaining() >= n;
+		}
+		
+		/**
+		 * Checks whether the record at the current offset, which failed authentication or runs past the end of the file,
+		 * was torn by a crash while being appended. If the record fits the file, only zeros may follow it. If it does
+		 * not, no authenticated record may follow it, which tells a write cut short from a corrupted length.
+		 *
+		 * @param sequence
+		 * 		the sequence number the record at the current offset should have.
+		 */
+		boolean isTornTail(long sequence)
+				throws IOException, GeneralSecurityException
+		{
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			if(!readFully(header, offset))
+				return true;
+			
+			int length = header.getInt(0);
+			if(length < 0)
+				return false;
+			long end = offset + HEADER + length + TAG;
+			if(end <= size)
+				return isZeroFrom(end, size);
+			return !hasRecordBetween(offset + HEADER, size, sequence + 1);
+		}
+		
+		private boolean isZeroFrom(long from, long size)
+				throws IOException
+		{
+			ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+			for(long pos = from; pos < size; pos += chunk.limit())
+			{
+				chunk.clear();
+				if(channel.read(chunk, pos) < 0)
+					break;
+				chunk.flip();
+				while(chunk.hasRemaining())
+					if(chunk.get() != 0)
+						return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Looks for a complete, authenticated record with the given sequence number starting anywhere in the range.
+		 */
+		private boolean hasRecordBetween(long from, long size, long sequence)
+				throws IOException, GeneralSecurityException
+		{
+			ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+			for(long pos = from; size - pos >= HEADER + TAG; pos += chunk.limit() - (HEADER - 1))
+			{
+				readFully(chunk.clear(), pos);
+				chunk.flip();
+				for(int i = 0; i + HEADER <= chunk.limit(); ++i)
+				{
+					int length = chunk.getInt(i);
+					if(chunk.getLong(i + 4) == sequence && length >= 0 && pos + i + HEADER + length + TAG <= size
+							&& authenticates(pos + i, length))
+						return true;
+				}
+				if(chunk.limit() < HEADER)
+					break;
+			}
+			return false;
+		}
+		
+		private boolean authenticates(long at, int length)
+				throws IOException
+		{
+			mac.reset();
+			ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(64 * 1024, HEADER + (long) length));
+			for(long pos = at, end = at + HEADER + length; pos < end; pos += chunk.limit())
+			{
+				chunk.clear().limit((int) Math.min(chunk.capacity(), end - pos));
+				if(!readFully(chunk, pos))
+					return false;
+				mac.update(chunk.flip());
+			}
+			ByteBuffer tag = ByteBuffer.allocate(TAG);
+			return readFully(tag, at + HEADER + length) && MessageDigest.isEqual(mac.doFinal(), tag.array());
+		}
+		
+		/**
+		 * Fills the buffer from the given file position.
+		 *
+		 * @return false if the file ends before that.
+		 */
+		private boolean readFully(ByteBuffer dst, long position)
+				throws IOException
+		{
+			int read;
+			while(dst.hasRemaining() && (read = channel.read(dst, position)) > 0)
+				position += read;
+			return !dst.hasRemaining();
+		}
+		
+		@Override
+		public void close()
+				throws IOException
+		{
+			if(owned) channel.close();
+		}
+	}
+	
+	private static class Pending
+	{
+		static final Pending CLOSE = new Pending(new byte[0]);
+		
+		final byte[] data;
+		final CompletableFuture<Long> future = new CompletableFuture<>();
+		long offset;
+		
+		Pending(byte[] data)
+		{
+			this.data = data;
+		}
+	}
+}
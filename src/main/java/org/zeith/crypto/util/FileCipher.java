@@ -2,35 +2,204 @@ package org.zeith.crypto.util;
 
 import org.zeith.crypto.ICipher;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.security.GeneralSecurityException;
+import java.util.*;
 
 public class FileCipher
 {
 	public static void encrypt(ICipher cipher, Path source, Path target, OpenOption... saveOptions)
 			throws IOException
 	{
-		try(InputStream input = Files.newInputStream(source);
-			OutputStream out = cipher.stream(Files.newOutputStream(target, saveOptions)))
+		encrypt(cipher, source, target, ICipher.DEFAULT_STREAM_BUFFER_SIZE, saveOptions);
+	}
+	
+	public static void decrypt(ICipher cipher, Path source, Path target, OpenOption... saveOptions)
+			throws IOException
+	{
+		decrypt(cipher, source, target, ICipher.DEFAULT_STREAM_BUFFER_SIZE, saveOptions);
+	}
+	
+	/**
+	 * Encrypts a file through an {@link org.zeith.crypto.EncryptingChannel}.
+	 *
+	 * @param cipher
+	 * 		the cipher to encrypt with.
+	 * @param source
+	 * 		the file to encrypt.
+	 * @param target
+	 * 		the file to write the ciphertext to.
+	 * @param bufferSize
+	 * 		the number of bytes read and encrypted at once.
+	 * @param saveOptions
+	 * 		options for opening the target, as with {@link Files#newOutputStream(Path, OpenOption...)}.
+	 *
+	 * @throws IOException
+	 * 		if reading, writing or encryption fails.
+	 */
+	public static void encrypt(ICipher cipher, Path source, Path target, int bufferSize, OpenOption... saveOptions)
+			throws IOException
+	{
+		try(FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+			FileChannel file = openTarget(target, saveOptions);
+			WritableByteChannel out = cipher.encryptingChannel(file, bufferSize))
 		{
-			input.transferTo(out);
+			copy(input, out, bufferSize);
 		} catch(GeneralSecurityException e)
 		{
 			throw new IOException(e);
 		}
 	}
 	
-	public static void decrypt(ICipher cipher, Path source, Path target, OpenOption... saveOptions)
+	/**
+	 * Decrypts a file through a {@link org.zeith.crypto.DecryptingChannel}. Unlike a
+	 * {@link javax.crypto.CipherInputStream}, a failed decryption is reported as an {@link IOException}.
+	 *
+	 * @param cipher
+	 * 		the cipher the file was encrypted with.
+	 * @param source
+	 * 		the file to decrypt.
+	 * @param target
+	 * 		the file to write the plaintext to.
+	 * @param bufferSize
+	 * 		the number of bytes read and decrypted at once.
+	 * @param saveOptions
+	 * 		options for opening the target, as with {@link Files#newOutputStream(Path, OpenOption...)}.
+	 *
+	 * @throws IOException
+	 * 		if reading, writing or decryption fails.
+	 */
+	public static void decrypt(ICipher cipher, Path source, Path target, int bufferSize, OpenOption... saveOptions)
 			throws IOException
 	{
-		try(InputStream input = cipher.stream(Files.newInputStream(source));
-			OutputStream out = Files.newOutputStream(target, saveOptions))
+		try(FileChannel file = FileChannel.open(source, StandardOpenOption.READ);
+			ReadableByteChannel input = cipher.decryptingChannel(file, bufferSize);
+			FileChannel out = openTarget(target, saveOptions))
 		{
-			input.transferTo(out);
+			copy(input, out, bufferSize);
+		}
+	}
+	
+	public static Update encryptIncremental(ICipher cipher, Path source, Path target)
+			throws IOException
+	{
+		return encryptIncremental(cipher, source, target, defaultManifest(target), ICipher.DEFAULT_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * Encrypts a file as independently encrypted chunks, rewriting only the chunks whose plaintext changed since the
+	 * last call for the same target. A manifest of per-chunk SHA-256 hashes, encrypted with the same cipher, is kept
+	 * next to the target to detect the changes; changed chunks are written in place with positional writes.
+	 * <p>
+	 * The target is not compatible with {@link #decrypt(ICipher, Path, Path, OpenOption...)} and must be read with
+	 * {@link #decryptIncremental(ICipher, Path, Path, OpenOption...)}. A missing or unreadable manifest, a manifest
+	 * of another file, or a change of the chunk size, causes a full rewrite.
+	 *
+	 * @param cipher
+	 * 		the cipher to encrypt with.
+	 * @param source
+	 * 		the file to encrypt.
+	 * @param target
+	 * 		the chunked encrypted file to create or update.
+	 * @param manifest
+	 * 		the file keeping the chunk hashes of the target.
+	 * @param chunkSize
+	 * 		the number of plaintext bytes per chunk.
+	 *
+	 * @return what was rewritten.
+	 *
+	 * @throws IOException
+	 * 		if reading, writing or encryption fails.
+	 */
+	public static Update encryptIncremental(ICipher cipher, Path source, Path target, Path manifest, int chunkSize)
+			throws IOException
+	{
+		try
+		{
+			return ChunkedFileCipher.encrypt(cipher, source, target, manifest, chunkSize);
 		} catch(GeneralSecurityException e)
 		{
 			throw new IOException(e);
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Decrypts a file written by {@link #encryptIncremental(ICipher, Path, Path, Path, int)}.
+	 *
+	 * @param cipher
+	 * 		the cipher the file was encrypted with.
+	 * @param source
+	 * 		the chunked encrypted file.
+	 * @param target
+	 * 		the file to write the plaintext to.
+	 * @param saveOptions
+	 * 		options for opening the target, as with {@link Files#newOutputStream(Path, OpenOption...)}.
+	 *
+	 * @throws IOException
+	 * 		if reading, writing or decryption fails.
+	 */
+	public static void decryptIncremental(ICipher cipher, Path source, Path target, OpenOption... saveOptions)
+			throws IOException
+	{
+		try
+		{
+			ChunkedFileCipher.decrypt(cipher, source, target, saveOptions);
+		} catch(GeneralSecurityException e)
+		{
+			throw new IOException("Decryption failed", e);
+		}
+	}
+	
+	/**
+	 * The manifest path used for a chunked encrypted file when none is given.
+	 */
+	public static Path defaultManifest(Path target)
+	{
+		return target.resolveSibling(target.getFileName() + ".manifest");
+	}
+	
+	/**
+	 * The outcome of {@link #encryptIncremental(ICipher, Path, Path, Path, int)}.
+	 *
+	 * @param chunks
+	 * 		the number of chunks in the encrypted file.
+	 * @param rewritten
+	 * 		the number of chunks that were encrypted and written.
+	 * @param bytesWritten
+	 * 		the number of bytes written to the encrypted file, excluding its header and the manifest.
+	 */
+	public record Update(int chunks, int rewritten, long bytesWritten)
+	{
+	}
+	
+	private static void copy(ReadableByteChannel input, WritableByteChannel output, int bufferSize)
+			throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(bufferSize);
+		while(input.read(buf.clear()) >= 0)
+		{
+			buf.flip();
+			while(buf.hasRemaining())
+				output.write(buf);
+		}
+	}
+	
+	/**
+	 * Opens a file for writing with the defaults of {@link Files#newOutputStream(Path, OpenOption...)}.
+	 */
+	private static FileChannel openTarget(Path target, OpenOption... options)
+			throws IOException
+	{
+		Set<OpenOption> set = new HashSet<>(Arrays.asList(options));
+		if(set.isEmpty())
+		{
+			set.add(StandardOpenOption.CREATE);
+			set.add(StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		set.add(StandardOpenOption.WRITE);
+		return FileChannel.open(target, set);
+	}
+}
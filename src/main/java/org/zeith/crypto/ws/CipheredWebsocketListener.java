@@ -1,13 +1,20 @@
 package org.zeith.crypto.ws;
 
-import org.zeith.crypto.ICipher;
+import org.zeith.crypto.*;
+import org.zeith.crypto.util.BufferPool;
 
+import javax.crypto.*;
+import java.io.*;
 import java.net.http.WebSocket;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
-import java.util.Base64;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
 
 /**
  * A WebSocket listener that supports encrypted communication by delegating events
@@ -22,9 +29,78 @@ public class CipheredWebsocketListener
 	 */
 	public static final int MAGIC_NUMBER = 0xAEF85217;
 	
+	/**
+	 * Marks a client handshake that carries early data, sent by clients that already know the server's key.
+	 */
+	public static final int EARLY_MAGIC_NUMBER = 0xAEF85218;
+	
+	/**
+	 * The default size of the plaintext fragments produced by {@code sendStream}.
+	 */
+	public static final int DEFAULT_FRAGMENT_SIZE = 64 * 1024;
+	
+	/**
+	 * The default number of messages that may wait in the send queue.
+	 */
+	public static final int DEFAULT_SEND_QUEUE_CAPACITY = 1024;
+	
+	/**
+	 * The envelope byte of a binary message encrypted as a whole, see {@link #setSegmentedMessages(boolean)}.
+	 */
+	public static final byte ENVELOPE_PLAIN = 0;
+	
+	/**
+	 * The envelope byte of a binary message encrypted in segments, see {@link #sendSegmented(ByteBuffer)}.
+	 */
+	public static final byte ENVELOPE_SEGMENTED = 1;
+	
+	private static final byte[] NO_HEADER = new byte[0];
+	
+	// Field updaters instead of atomic objects keep idle connections small
+	private static final AtomicIntegerFieldUpdater<CipheredWebsocketListener> QUEUED_SENDS = AtomicIntegerFieldUpdater.newUpdater(CipheredWebsocketListener.class, "queuedSends");
+	private static final AtomicIntegerFieldUpdater<CipheredWebsocketListener> DRAINING = AtomicIntegerFieldUpdater.newUpdater(CipheredWebsocketListener.class, "draining");
+	private static final AtomicReferenceFieldUpdater<CipheredWebsocketListener, SendQueue> SEND_QUEUE = AtomicReferenceFieldUpdater.newUpdater(CipheredWebsocketListener.class, SendQueue.class, "sendQueue");
+	private static final AtomicReferenceFieldUpdater<CipheredWebsocketListener, Cipher> ENCRYPT_CONTEXT = AtomicReferenceFieldUpdater.newUpdater(CipheredWebsocketListener.class, Cipher.class, "encryptContext");
+	private static final AtomicReferenceFieldUpdater<CipheredWebsocketListener, Cipher> DECRYPT_CONTEXT = AtomicReferenceFieldUpdater.newUpdater(CipheredWebsocketListener.class, Cipher.class, "decryptContext");
+	private static final AtomicReferenceFieldUpdater<CipheredWebsocketListener, Multipart> OUTBOUND_BINARY = AtomicReferenceFieldUpdater.newUpdater(CipheredWebsocketListener.class, Multipart.class, "outboundBinary");
+	private static final AtomicReferenceFieldUpdater<CipheredWebsocketListener, Multipart> OUTBOUND_TEXT = AtomicReferenceFieldUpdater.newUpdater(CipheredWebsocketListener.class, Multipart.class, "outboundText");
+	
 	private final WebSocket.Listener delegate;
-	protected WebSocket webSocket;
-	protected ICipher cipher;
+	protected final CompletableFuture<WebSocket> handshake = new CompletableFuture<>();
+	protected volatile WebSocket webSocket;
+	protected volatile ICipher cipher;
+	private volatile BufferPool bufferPool = BufferPool.shared();
+	
+	// Messages are encrypted by their producers and sent one frame at a time, lane by lane, by whichever
+	// thread wins the draining flag. The WebSocket only allows a single outstanding send.
+	// The queues are allocated with the first send and dropped by trim() while idle.
+	private volatile SendQueue sendQueue;
+	private volatile AtomicLongArray queueStats;
+	private volatile int queuedSends;
+	private volatile int draining;
+	private volatile int sendQueueCapacity = DEFAULT_SEND_QUEUE_CAPACITY;
+	private volatile int maxFrameSize;
+	
+	// Only touched by the thread holding the draining flag
+	private Outbound current;
+	private Object openMessage;
+	
+	// Multipart messages are encrypted as one continuous cipher stream, so that the receiver
+	// may process them regardless of how the transport splits the frames.
+	// An outbound one is continued by the next send of its type, whichever thread makes it, until its last part.
+	private volatile Multipart outboundBinary, outboundText;
+	private Cipher inboundBinary;
+	private ByteBuffer inboundHeader;
+	private StringBuilder inboundText;
+	
+	// Contexts of reusable ciphers, borrowed for one whole message at a time and dropped by trim()
+	private volatile Cipher encryptContext, decryptContext;
+	
+	// With segmented messages enabled, every binary message starts with an envelope byte outside the encryption
+	private volatile boolean segmentedMessages;
+	private volatile ForkJoinPool segmentPool = ForkJoinPool.commonPool();
+	private int inboundEnvelope = -1;
+	private ByteBuffer inboundSegments;
 	
 	/**
 	 * Constructs a {@code CipheredWebsocketListener} with a specified delegate.
@@ -39,28 +115,127 @@ public class CipheredWebsocketListener
 	
 	/**
 	 * Sends a text message through the WebSocket after the connection cipher has been established.
+	 * <p>
+	 * Like all send methods of this listener, this may be called from any number of threads at once: the message
+	 * is encrypted on the calling thread and then queued, and queued messages are sent one at a time, in order within
+	 * each {@link SendPriority lane}. The parts of a multipart message must still be sent in order from one thread
+	 * at a time.
 	 *
 	 * @param text
 	 * 		the plain text message to be sent.
 	 * @param last
 	 * 		indicates if this is the last part of a multipart message.
+	 *
+	 * @return a future completed once the message has been sent, or failed with a {@link RejectedExecutionException}
+	 * if the send queue is full.
 	 */
 	public CompletableFuture<WebSocket> sendText(String text, boolean last)
 	{
-		try
+		return sendText(text, last, SendPriority.NORMAL);
+	}
+	
+	/**
+	 * Sends a text message through the given lane of the send queue.
+	 * The parts of a multipart message after the first one keep the place of the message.
+	 * <p>
+	 * As with {@link WebSocket#sendText(CharSequence, boolean)}, every text message sent while a multipart text
+	 * message is open continues it, whichever thread sends it, so its parts may be chained through the returned
+	 * futures. Parts sent from several threads at once are encrypted and queued one at a time, in the order they
+	 * win the message.
+	 *
+	 * @param text
+	 * 		the plain text message to be sent.
+	 * @param last
+	 * 		indicates if this is the last part of a multipart message.
+	 * @param priority
+	 * 		the lane to queue the message in, {@link SendPriority#HIGH} or {@link SendPriority#NORMAL}.
+	 *
+	 * @return a future completed once the message has been sent.
+	 */
+	public CompletableFuture<WebSocket> sendText(String text, boolean last, SendPriority priority)
+	{
+		checkDataPriority(priority);
+		byte[] data = text.getBytes(StandardCharsets.UTF_8);
+		while(true)
 		{
-			// Encoded base64 -> decoded UTF-8 text
-			text = Base64.getEncoder().encodeToString(cipher.encrypt(text.getBytes(StandardCharsets.UTF_8)));
-		} catch(GeneralSecurityException e)
+			Multipart open = outboundText;
+			Outbound part;
+			boolean reserved = false;
+			try
+			{
+				if(open == null)
+				{
+					if(last)
+						// Encoded base64 -> decoded UTF-8 text
+						return enqueue(new Outbound(Outbound.TEXT, priority, null, true, Base64.getEncoder().encodeToString(encryptWhole(data)), null, true));
+					byte[] header = allocateHeader();
+					open = new Multipart(cipher.newCipher(CipherMode.ENCRYPT, header), header);
+					if(!OUTBOUND_TEXT.compareAndSet(this, null, open))
+						continue;
+				}
+				synchronized(open)
+				{
+					// The message was completed by another thread meanwhile; this starts the next one
+					if(open.finished)
+						continue;
+					// A part refused by a full queue must not advance the cipher stream
+					if(!reserve(priority))
+						return rejected();
+					reserved = true;
+					boolean first = open.header != null;
+					byte[] enc = last ? open.cipher.doFinal(data) : open.cipher.update(data);
+					if(last) finish(OUTBOUND_TEXT, open);
+					part = new Outbound(Outbound.TEXT, priority, open, first, encodeTextPart(open, enc, last), null, last);
+					// Queued while holding the message, so the parts keep the order of the cipher stream
+					offer(part);
+				}
+			} catch(GeneralSecurityException e)
+			{
+				if(reserved) QUEUED_SENDS.decrementAndGet(this);
+				if(open != null) finish(OUTBOUND_TEXT, open);
+				throw new WebSocketDecryptionException("Failed to encrypt WebSocket text message.", e);
+			}
+			drain();
+			return part.future;
+		}
+	}
+	
+	/**
+	 * Marks a multipart message as complete and stops it from being continued.
+	 */
+	private void finish(AtomicReferenceFieldUpdater<CipheredWebsocketListener, Multipart> outbound, Multipart message)
+	{
+		message.finished = true;
+		outbound.compareAndSet(this, message, null);
+	}
+	
+	/**
+	 * Base64-encodes a part of a multipart text message, preceded by the message header on the first part.
+	 * Bytes that do not fill a whole base64 quantum are carried over to the next part, so the concatenated
+	 * parts form a single valid encoding.
+	 */
+	private static String encodeTextPart(Multipart message, byte[] enc, boolean last)
+	{
+		if(enc == null) enc = new byte[0];
+		byte[] carry = message.carry != null ? message.carry : message.header;
+		message.header = null;
+		if(carry != null && carry.length > 0)
 		{
-			throw new WebSocketDecryptionException("Failed to encrypt WebSocket text message.", e);
+			byte[] joined = new byte[carry.length + enc.length];
+			System.arraycopy(carry, 0, joined, 0, carry.length);
+			System.arraycopy(enc, 0, joined, carry.length, enc.length);
+			enc = joined;
 		}
 		
-		return webSocket.sendText(text, last);
+		int whole = last ? enc.length : enc.length - enc.length % 3;
+		message.carry = whole < enc.length ? Arrays.copyOfRange(enc, whole, enc.length) : null;
+		return Base64.getEncoder().encodeToString(whole < enc.length ? Arrays.copyOf(enc, whole) : enc);
 	}
 	
 	/**
 	 * Sends a binary message through the WebSocket after the connection cipher has been established.
+	 * The ciphertext is written into a buffer leased from the {@link #getBufferPool() buffer pool},
+	 * which is returned to the pool once the send completes.
 	 *
 	 * @param message
 	 * 		the binary message buffer to be sent.
@@ -69,7 +244,324 @@ public class CipheredWebsocketListener
 	 */
 	public CompletableFuture<WebSocket> sendBinary(ByteBuffer message, boolean last)
 	{
-		return webSocket.sendBinary(encrypt(message), last);
+		return sendBinary(message, last, SendPriority.NORMAL);
+	}
+	
+	/**
+	 * Sends a binary message through the given lane of the send queue.
+	 * The parts of a multipart message after the first one keep the place of the message.
+	 * <p>
+	 * As with {@link WebSocket#sendBinary(ByteBuffer, boolean)}, every binary message sent while a multipart binary
+	 * message is open continues it, whichever thread sends it, so its parts may be chained through the returned
+	 * futures. Parts sent from several threads at once are encrypted and queued one at a time, in the order they
+	 * win the message.
+	 *
+	 * @param message
+	 * 		the binary message buffer to be sent.
+	 * @param last
+	 * 		indicates if this is the last part of a multipart message.
+	 * @param priority
+	 * 		the lane to queue the message in, {@link SendPriority#HIGH} or {@link SendPriority#NORMAL}.
+	 *
+	 * @return a future completed once the message has been sent.
+	 */
+	public CompletableFuture<WebSocket> sendBinary(ByteBuffer message, boolean last, SendPriority priority)
+	{
+		checkDataPriority(priority);
+		while(true)
+		{
+			Multipart open = outboundBinary;
+			Outbound part;
+			boolean reserved = false;
+			try
+			{
+				if(open == null)
+				{
+					byte[] header = allocateHeader();
+					Cipher c = borrowContext(CipherMode.ENCRYPT, header);
+					if(last)
+					{
+						BufferPool.Lease lease = encrypt(c, header, message, true, true);
+						recycle(CipherMode.ENCRYPT, c);
+						return enqueue(new Outbound(Outbound.BINARY, priority, null, true, null, lease, true));
+					}
+					open = new Multipart(c, header);
+					if(!OUTBOUND_BINARY.compareAndSet(this, null, open))
+					{
+						recycle(CipherMode.ENCRYPT, c);
+						continue;
+					}
+				}
+				synchronized(open)
+				{
+					// The message was completed by another thread meanwhile; this starts the next one
+					if(open.finished)
+						continue;
+					// A part refused by a full queue must not advance the cipher stream
+					if(!reserve(priority))
+						return rejected();
+					reserved = true;
+					boolean first = open.header != null;
+					BufferPool.Lease lease = encrypt(open.cipher, open.header, message, last, first);
+					open.header = null;
+					if(last)
+					{
+						finish(OUTBOUND_BINARY, open);
+						recycle(CipherMode.ENCRYPT, open.cipher);
+					}
+					part = new Outbound(Outbound.BINARY, priority, open, first, null, lease, last);
+					// Queued while holding the message, so the parts keep the order of the cipher stream
+					offer(part);
+				}
+			} catch(GeneralSecurityException e)
+			{
+				if(reserved) QUEUED_SENDS.decrementAndGet(this);
+				if(open != null) finish(OUTBOUND_BINARY, open);
+				throw new WebSocketDecryptionException("Encryption failed", e);
+			}
+			drain();
+			return part.future;
+		}
+	}
+	
+	/**
+	 * Sends a typed message as a single binary message. The codec writes the message straight into a leased buffer,
+	 * which is then encrypted into the outgoing buffer, so the payload is never copied into an intermediate array.
+	 * Receivers may decode it with a {@link DecodingListener} using the same codec.
+	 *
+	 * @param message
+	 * 		the message to be sent.
+	 * @param codec
+	 * 		the codec that serializes the message.
+	 *
+	 * @return a future completed once the message has been sent.
+	 */
+	public <T> CompletableFuture<WebSocket> sendObject(T message, MessageCodec<? super T> codec)
+	{
+		return sendObject(message, codec, SendPriority.NORMAL);
+	}
+	
+	/**
+	 * Sends a typed message as a single binary message through the given lane of the send queue.
+	 *
+	 * @param message
+	 * 		the message to be sent.
+	 * @param codec
+	 * 		the codec that serializes the message.
+	 * @param priority
+	 * 		the lane to queue the message in, {@link SendPriority#HIGH} or {@link SendPriority#NORMAL}.
+	 *
+	 * @return a future completed once the message has been sent.
+	 */
+	public <T> CompletableFuture<WebSocket> sendObject(T message, MessageCodec<? super T> codec, SendPriority priority)
+	{
+		checkDataPriority(priority);
+		BufferPool.Lease plain = encode(message, codec);
+		BufferPool.Lease lease;
+		try
+		{
+			byte[] header = allocateHeader();
+			Cipher c = borrowContext(CipherMode.ENCRYPT, header);
+			lease = encrypt(c, header, plain.buffer(), true, true);
+			recycle(CipherMode.ENCRYPT, c);
+		} catch(GeneralSecurityException e)
+		{
+			throw new WebSocketDecryptionException("Encryption failed", e);
+		} finally
+		{
+			plain.release();
+		}
+		return enqueue(new Outbound(Outbound.BINARY, priority, null, true, null, lease, true));
+	}
+	
+	/**
+	 * Encodes a message into a leased buffer, retrying with a larger buffer if the codec's size hint was too small.
+	 */
+	private <T> BufferPool.Lease encode(T message, MessageCodec<? super T> codec)
+	{
+		int size = Math.max(64, codec.sizeHint(message));
+		while(true)
+		{
+			BufferPool.Lease lease = bufferPool.acquire(size);
+			ByteBuffer buf = lease.buffer();
+			try
+			{
+				// Pooled buffers are rounded up to their size class; let the codec use all of it
+				codec.encode(message, buf.limit(buf.capacity()));
+				buf.flip();
+				return lease;
+			} catch(BufferOverflowException e)
+			{
+				lease.release();
+				size = Math.multiplyExact(buf.capacity(), 2);
+			} catch(RuntimeException e)
+			{
+				lease.release();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Sends a binary message in fragments of {@link #DEFAULT_FRAGMENT_SIZE} bytes, encrypting each fragment
+	 * just before it is sent.
+	 *
+	 * @param message
+	 * 		the binary message buffer to be sent.
+	 *
+	 * @return a future completed once the last fragment has been sent.
+	 *
+	 * @see #sendStream(ReadableByteChannel, int, Executor)
+	 */
+	public CompletableFuture<WebSocket> sendStream(ByteBuffer message)
+	{
+		return sendStream(message, DEFAULT_FRAGMENT_SIZE);
+	}
+	
+	/**
+	 * Sends a binary message in fragments, encrypting each fragment just before it is sent.
+	 * The message is never copied as a whole, so only a few fragments of ciphertext exist at any time.
+	 *
+	 * @param message
+	 * 		the binary message buffer to be sent.
+	 * @param fragmentSize
+	 * 		the number of plaintext bytes per fragment.
+	 *
+	 * @return a future completed once the last fragment has been sent.
+	 *
+	 * @see #sendStream(ReadableByteChannel, int, Executor)
+	 */
+	public CompletableFuture<WebSocket> sendStream(ByteBuffer message, int fragmentSize)
+	{
+		return new StreamSender(message, null, fragmentSize, ForkJoinPool.commonPool()).start();
+	}
+	
+	/**
+	 * Reads the given stream until its end and sends it as a single binary message in fragments
+	 * of {@link #DEFAULT_FRAGMENT_SIZE} bytes. The stream is not closed.
+	 * <p>
+	 * The blocking reads run on a shared pool of daemon threads reserved for stream reads, never on
+	 * the common fork/join pool; pass an {@link Executor} to {@link #sendStream(ReadableByteChannel, int, Executor)}
+	 * to control where they run.
+	 *
+	 * @param input
+	 * 		the stream to send.
+	 *
+	 * @return a future completed once the last fragment has been sent.
+	 *
+	 * @see #sendStream(ReadableByteChannel, int, Executor)
+	 */
+	public CompletableFuture<WebSocket> sendStream(InputStream input)
+	{
+		return sendStream(Channels.newChannel(input), DEFAULT_FRAGMENT_SIZE, StreamReaders.EXECUTOR);
+	}
+	
+	/**
+	 * Reads the given channel until its end and sends it as a single binary message in fragments
+	 * of {@link #DEFAULT_FRAGMENT_SIZE} bytes. The channel is not closed.
+	 * <p>
+	 * The blocking reads run on a shared pool of daemon threads reserved for stream reads, never on
+	 * the common fork/join pool; pass an {@link Executor} to {@link #sendStream(ReadableByteChannel, int, Executor)}
+	 * to control where they run.
+	 *
+	 * @param channel
+	 * 		the blocking channel to send.
+	 *
+	 * @return a future completed once the last fragment has been sent.
+	 *
+	 * @see #sendStream(ReadableByteChannel, int, Executor)
+	 */
+	public CompletableFuture<WebSocket> sendStream(ReadableByteChannel channel)
+	{
+		return sendStream(channel, DEFAULT_FRAGMENT_SIZE, StreamReaders.EXECUTOR);
+	}
+	
+	/**
+	 * Reads the given channel until its end and sends it as a single binary message in fragments.
+	 * Each fragment is read, encrypted and sent only after the previous one has been sent, so the first
+	 * bytes reach the wire immediately and memory use stays at a couple of fragments regardless of the
+	 * message size. The channel is not closed.
+	 * <p>
+	 * The fragments form one continuous cipher stream, which the receiving listener decrypts as it arrives.
+	 * No other binary or text message may be sent through this listener until the returned future completes.
+	 * If sending fails after the first fragment, the connection is aborted, since the peer cannot recover
+	 * from a truncated message.
+	 *
+	 * @param channel
+	 * 		the blocking channel to send.
+	 * @param fragmentSize
+	 * 		the number of plaintext bytes per fragment.
+	 * @param executor
+	 * 		the executor reading and encrypting all fragments after the first. Since every read blocks until
+	 * 		the channel has data, this should not be a pool meant for short computations such as
+	 * 		{@link ForkJoinPool#commonPool()}.
+	 *
+	 * @return a future completed once the last fragment has been sent.
+	 */
+	public CompletableFuture<WebSocket> sendStream(ReadableByteChannel channel, int fragmentSize, Executor executor)
+	{
+		return new StreamSender(null, channel, fragmentSize, executor).start();
+	}
+	
+	/**
+	 * Sends one large binary message encrypted in segments of {@link ICipher#DEFAULT_SEGMENT_SIZE} bytes,
+	 * see {@link #sendSegmented(ByteBuffer, int, ForkJoinPool)}.
+	 *
+	 * @param message
+	 * 		the binary message buffer to be sent.
+	 *
+	 * @return a future completed once the message has been sent.
+	 */
+	public CompletableFuture<WebSocket> sendSegmented(ByteBuffer message)
+	{
+		return sendSegmented(message, ICipher.DEFAULT_SEGMENT_SIZE, segmentPool);
+	}
+	
+	/**
+	 * Sends one large binary message encrypted in independent segments, which are encrypted concurrently on the
+	 * given pool. A receiving listener with {@link #setSegmentedMessages(boolean) segmented messages} enabled
+	 * decrypts the segments concurrently as well, so both ends use several cores for a single message instead
+	 * of one. Worthwhile for messages of several megabytes; smaller ones are better sent with
+	 * {@link #sendBinary(ByteBuffer, boolean)}.
+	 *
+	 * @param message
+	 * 		the binary message buffer to be sent.
+	 * @param segmentSize
+	 * 		the number of plaintext bytes per segment.
+	 * @param pool
+	 * 		the pool encrypting the segments.
+	 *
+	 * @return a future completed once the message has been sent.
+	 *
+	 * @throws IllegalStateException
+	 * 		if segmented messages are not enabled.
+	 * @see ICipher#encryptSegmented(byte[], int, int, int, ForkJoinPool)
+	 */
+	public CompletableFuture<WebSocket> sendSegmented(ByteBuffer message, int segmentSize, ForkJoinPool pool)
+	{
+		if(!segmentedMessages)
+			throw new IllegalStateException("Segmented messages are not enabled.");
+		
+		byte[] container;
+		try
+		{
+			int len = message.remaining();
+			if(message.hasArray())
+				container = cipher.encryptSegmented(message.array(), message.arrayOffset() + message.position(), len, segmentSize, pool);
+			else
+			{
+				byte[] data = new byte[len];
+				message.get(message.position(), data);
+				container = cipher.encryptSegmented(data, 0, len, segmentSize, pool);
+			}
+			message.position(message.limit());
+		} catch(GeneralSecurityException e)
+		{
+			throw new WebSocketDecryptionException("Encryption failed", e);
+		}
+		
+		return enqueue(new Outbound(Outbound.SEGMENTED, SendPriority.NORMAL, null, true, null, null, true,
+				ByteBuffer.wrap(new byte[] { ENVELOPE_SEGMENTED }), ByteBuffer.wrap(container)));
 	}
 	
 	/**
@@ -80,7 +572,8 @@ public class CipheredWebsocketListener
 	 */
 	public CompletableFuture<WebSocket> sendPing(ByteBuffer ping)
 	{
-		return webSocket.sendPing(encrypt(ping));
+		BufferPool.Lease lease = encryptPooled(ping);
+		return enqueue(new Outbound(Outbound.PING, SendPriority.CONTROL, null, true, null, lease, true));
 	}
 	
 	/**
@@ -91,7 +584,447 @@ public class CipheredWebsocketListener
 	 */
 	public CompletableFuture<WebSocket> sendPong(ByteBuffer ping)
 	{
-		return webSocket.sendPong(encrypt(ping));
+		BufferPool.Lease lease = encryptPooled(ping);
+		return enqueue(new Outbound(Outbound.PONG, SendPriority.CONTROL, null, true, null, lease, true));
+	}
+	
+	/**
+	 * Gets the pool that outbound ciphertext and handshake buffers are leased from.
+	 */
+	public BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+	
+	/**
+	 * Sets the pool that outbound ciphertext and handshake buffers are leased from.
+	 * Defaults to {@link BufferPool#shared()}.
+	 *
+	 * @param bufferPool
+	 * 		the buffer pool to use.
+	 */
+	public void setBufferPool(BufferPool bufferPool)
+	{
+		this.bufferPool = Objects.requireNonNull(bufferPool, "bufferPool");
+	}
+	
+	/**
+	 * Checks whether binary messages carry an envelope byte, allowing {@link #sendSegmented(ByteBuffer) segmented} messages.
+	 */
+	public boolean isSegmentedMessages()
+	{
+		return segmentedMessages;
+	}
+	
+	/**
+	 * Enables an envelope byte in front of every binary message, which tells the receiver whether the message
+	 * was encrypted as a whole or {@link #sendSegmented(ByteBuffer) in segments}. This changes the wire format,
+	 * so it must be enabled on both ends, before the connection opens. Disabled by default.
+	 *
+	 * @param segmentedMessages
+	 * 		whether binary messages carry an envelope byte.
+	 */
+	public void setSegmentedMessages(boolean segmentedMessages)
+	{
+		this.segmentedMessages = segmentedMessages;
+	}
+	
+	/**
+	 * Sets the pool that segmented messages are encrypted and decrypted on. Defaults to {@link ForkJoinPool#commonPool()}.
+	 *
+	 * @param segmentPool
+	 * 		the pool to use.
+	 */
+	public void setSegmentPool(ForkJoinPool segmentPool)
+	{
+		this.segmentPool = Objects.requireNonNull(segmentPool, "segmentPool");
+	}
+	
+	/**
+	 * Gets the maximum number of messages that may wait in the send queue.
+	 */
+	public int getSendQueueCapacity()
+	{
+		return sendQueueCapacity;
+	}
+	
+	/**
+	 * Sets the maximum number of messages that may wait in the send queue. Sends beyond this
+	 * fail with a {@link RejectedExecutionException}. Defaults to {@link #DEFAULT_SEND_QUEUE_CAPACITY}.
+	 *
+	 * @param sendQueueCapacity
+	 * 		the send queue capacity.
+	 */
+	public void setSendQueueCapacity(int sendQueueCapacity)
+	{
+		if(sendQueueCapacity < 1)
+			throw new IllegalArgumentException("Send queue capacity must be positive.");
+		this.sendQueueCapacity = sendQueueCapacity;
+	}
+	
+	/**
+	 * Gets the number of messages waiting to be sent.
+	 */
+	public int getQueuedSendCount()
+	{
+		return queuedSends;
+	}
+	
+	/**
+	 * Checks whether the send queue has room for more messages. Producers should hold back while this is false.
+	 */
+	public boolean isWritable()
+	{
+		return queuedSends < sendQueueCapacity;
+	}
+	
+	/**
+	 * Gets the largest binary frame sent, in bytes, or 0 if binary messages are sent as a single frame.
+	 */
+	public int getMaxFrameSize()
+	{
+		return maxFrameSize;
+	}
+	
+	/**
+	 * Sets the largest binary frame sent. Binary messages larger than this are sent as several frames, between which
+	 * queued {@link SendPriority#CONTROL control} frames may go out, so a large message does not hold back pings and
+	 * pongs until it has been written. The receiving delegate then gets such a message in parts.
+	 * {@link #sendSegmented(ByteBuffer) Segmented messages}, which the receiver joins before decrypting, are always
+	 * sent in frames of at most {@link #DEFAULT_FRAGMENT_SIZE} bytes unless a frame size is set.
+	 * Defaults to 0, which sends every binary message as a single frame.
+	 *
+	 * @param maxFrameSize
+	 * 		the largest binary frame in bytes, or 0.
+	 */
+	public void setMaxFrameSize(int maxFrameSize)
+	{
+		if(maxFrameSize < 0)
+			throw new IllegalArgumentException("Frame size must not be negative.");
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * Gets how long the messages sent through a lane of the send queue have waited in it so far.
+	 *
+	 * @param priority
+	 * 		the lane.
+	 *
+	 * @return the queue-time statistics of the lane.
+	 */
+	public QueueStats getQueueStats(SendPriority priority)
+	{
+		AtomicLongArray stats = queueStats;
+		if(stats == null)
+			return new QueueStats(0L, 0L, 0L);
+		int i = priority.ordinal() * 3;
+		return new QueueStats(stats.get(i), stats.get(i + 1), stats.get(i + 2));
+	}
+	
+	/**
+	 * Rejects the control lane for data messages, which may not be sent between the frames of another message.
+	 */
+	private static void checkDataPriority(SendPriority priority)
+	{
+		if(Objects.requireNonNull(priority, "priority") == SendPriority.CONTROL)
+			throw new IllegalArgumentException("Only ping and pong frames may use the control lane.");
+	}
+	
+	/**
+	 * Adds an encrypted message to the send queue and starts draining it if no send is in progress.
+	 * Parts of a multipart message after the first one wait aside until their message is on the wire.
+	 */
+	private CompletableFuture<WebSocket> enqueue(Outbound message)
+	{
+		if(!reserve(message.priority))
+		{
+			if(message.lease != null) message.lease.release();
+			return rejected();
+		}
+		offer(message);
+		drain();
+		return message.future;
+	}
+	
+	/**
+	 * Takes a place in the send queue for one message, unless the queue is full. Control frames always get one.
+	 */
+	private boolean reserve(SendPriority priority)
+	{
+		if(QUEUED_SENDS.incrementAndGet(this) > sendQueueCapacity && priority != SendPriority.CONTROL)
+		{
+			QUEUED_SENDS.decrementAndGet(this);
+			return false;
+		}
+		return true;
+	}
+	
+	private CompletableFuture<WebSocket> rejected()
+	{
+		return CompletableFuture.failedFuture(new RejectedExecutionException("Send queue is full (" + sendQueueCapacity + " messages)."));
+	}
+	
+	/**
+	 * Adds an encrypted message to the send queue without draining it.
+	 * Its place must have been {@link #reserve(SendPriority) reserved}.
+	 */
+	private void offer(Outbound message)
+	{
+		message.enqueued = System.nanoTime();
+		while(true)
+		{
+			SendQueue queue = sendQueue;
+			if(queue == null && !SEND_QUEUE.compareAndSet(this, null, queue = new SendQueue()))
+				continue;
+			queue.queueOf(message).add(message);
+			// trim() may have dropped the queue meanwhile; move the message unless it was already taken
+			if(!queue.retired || !queue.queueOf(message).remove(message))
+				break;
+		}
+	}
+	
+	private void drain()
+	{
+		while(DRAINING.compareAndSet(this, 0, 1))
+		{
+			Outbound next;
+			while((next = pollSendable()) != null)
+			{
+				CompletableFuture<WebSocket> send = sendFrame(next);
+				Outbound sent = next;
+				if(!send.isDone())
+				{
+					// Resume from the completion; loop instead while sends complete synchronously
+					send.whenComplete((ws, err) ->
+					{
+						frameSent(sent, ws, err);
+						draining = 0;
+						drain();
+					});
+					return;
+				}
+				send.whenComplete((ws, err) -> frameSent(sent, ws, err));
+			}
+			draining = 0;
+			
+			// A producer may have queued a message after the poll, but before the flag was cleared
+			if(!hasSendable())
+				return;
+		}
+	}
+	
+	/**
+	 * Picks the message to send the next frame of: control frames first, then the rest of a message that is partly
+	 * on the wire, and only at a message boundary the head of the first non-empty data lane.
+	 */
+	private Outbound pollSendable()
+	{
+		SendQueue queue = sendQueue;
+		if(queue == null)
+			return current;
+		Outbound next = queue.control.poll();
+		if(next != null)
+			return next;
+		if(current != null)
+			return current;
+		if(openMessage != null)
+		{
+			for(Iterator<Outbound> it = queue.continuations.iterator(); it.hasNext(); )
+			{
+				next = it.next();
+				if(next.owner == openMessage)
+				{
+					it.remove();
+					return next;
+				}
+			}
+			return null;
+		}
+		return (next = queue.high.poll()) != null ? next : queue.normal.poll();
+	}
+	
+	private boolean hasSendable()
+	{
+		SendQueue queue = sendQueue;
+		if(current != null)
+			return true;
+		if(queue == null)
+			return false;
+		if(!queue.control.isEmpty())
+			return true;
+		Object open = openMessage;
+		if(open != null)
+		{
+			for(Outbound o : queue.continuations)
+				if(o.owner == open)
+					return true;
+			return false;
+		}
+		return !queue.high.isEmpty() || !queue.normal.isEmpty();
+	}
+	
+	private CompletableFuture<WebSocket> sendFrame(Outbound message)
+	{
+		if(message != current)
+		{
+			QUEUED_SENDS.decrementAndGet(this);
+			recordQueueTime(message.priority, System.nanoTime() - message.enqueued);
+		}
+		int frameSize = maxFrameSize;
+		if(frameSize == 0 && message.kind == Outbound.SEGMENTED)
+			frameSize = DEFAULT_FRAGMENT_SIZE;
+		CompletableFuture<WebSocket> send = message.send(webSocket, frameSize);
+		if(message.kind != Outbound.PING && message.kind != Outbound.PONG)
+		{
+			current = message.hasRemaining() ? message : null;
+			if(current == null)
+				openMessage = message.last ? null : message.owner;
+		}
+		return send;
+	}
+	
+	/**
+	 * Adds to the queue-time statistics of a lane. Only called while holding the draining flag.
+	 */
+	private void recordQueueTime(SendPriority priority, long wait)
+	{
+		AtomicLongArray stats = queueStats;
+		if(stats == null)
+			queueStats = stats = new AtomicLongArray(3 * SendPriority.values().length);
+		int i = priority.ordinal() * 3;
+		stats.incrementAndGet(i);
+		stats.addAndGet(i + 1, wait);
+		stats.accumulateAndGet(i + 2, wait, Math::max);
+	}
+	
+	private void frameSent(Outbound message, WebSocket ws, Throwable error)
+	{
+		if(error != null)
+		{
+			if(current == message) current = null;
+			message.complete(ws, error);
+		} else if(!message.hasRemaining())
+			message.complete(ws, null);
+	}
+	
+	/**
+	 * Starts a send and returns a leased buffer to its pool once the send has completed, or right away if starting
+	 * the send throws.
+	 *
+	 * @param lease
+	 * 		the lease of the buffer being sent.
+	 * @param send
+	 * 		starts the send.
+	 *
+	 * @return the future of the send.
+	 */
+	protected static CompletableFuture<WebSocket> releaseAfter(BufferPool.Lease lease, Supplier<CompletableFuture<WebSocket>> send)
+	{
+		CompletableFuture<WebSocket> future;
+		try
+		{
+			future = send.get();
+		} catch(RuntimeException e)
+		{
+			lease.release();
+			throw e;
+		}
+		future.whenComplete((ws, err) -> lease.release());
+		return future;
+	}
+	
+	/**
+	 * Gets a cipher context for one message. The contexts of {@link ICipher#isReusable() reusable} ciphers are
+	 * cached between messages, so that a busy connection does not create one per message.
+	 *
+	 * @see #recycle(CipherMode, Cipher)
+	 */
+	private Cipher borrowContext(CipherMode mode, byte[] header)
+			throws GeneralSecurityException
+	{
+		if(header.length == 0 && cipher.isReusable())
+		{
+			Cipher c = (mode == CipherMode.ENCRYPT ? ENCRYPT_CONTEXT : DECRYPT_CONTEXT).getAndSet(this, null);
+			if(c != null)
+				return c;
+		}
+		return cipher.newCipher(mode, header);
+	}
+	
+	/**
+	 * Caches the context of a message that was processed successfully for the next message.
+	 * A context that failed is never recycled, as its state is unknown.
+	 */
+	private void recycle(CipherMode mode, Cipher c)
+	{
+		if(cipher.getHeaderSize() == 0 && cipher.isReusable())
+			(mode == CipherMode.ENCRYPT ? ENCRYPT_CONTEXT : DECRYPT_CONTEXT).lazySet(this, c);
+	}
+	
+	private byte[] encryptWhole(byte[] data)
+			throws GeneralSecurityException
+	{
+		if(cipher.getHeaderSize() > 0)
+			return cipher.encrypt(data);
+		Cipher c = borrowContext(CipherMode.ENCRYPT, NO_HEADER);
+		byte[] enc = c.doFinal(data);
+		recycle(CipherMode.ENCRYPT, c);
+		return enc;
+	}
+	
+	private byte[] decryptWhole(byte[] data)
+			throws GeneralSecurityException
+	{
+		if(cipher.getHeaderSize() > 0)
+			return cipher.decrypt(data);
+		Cipher c = borrowContext(CipherMode.DECRYPT, NO_HEADER);
+		byte[] dec = c.doFinal(data);
+		recycle(CipherMode.DECRYPT, c);
+		return dec;
+	}
+	
+	/**
+	 * Releases the cipher contexts this connection keeps between messages. Servers holding many mostly idle
+	 * connections may call this for the ones that have been idle for a while; the contexts are created again
+	 * with the next message. Messages in flight are not affected.
+	 */
+	public void trim()
+	{
+		encryptContext = null;
+		decryptContext = null;
+		
+		// Drop the queues unless a message is being sent; producers that raced with this move their message
+		SendQueue queue = sendQueue;
+		if(queue != null && DRAINING.compareAndSet(this, 0, 1))
+		{
+			if(current == null && openMessage == null)
+			{
+				queue.retired = true;
+				if(queue.isEmpty())
+					sendQueue = null;
+				else
+					queue.retired = false;
+			}
+			draining = 0;
+			drain();
+		}
+	}
+	
+	/**
+	 * Allocates a buffer for the header of one message of the connection cipher.
+	 */
+	private byte[] allocateHeader()
+	{
+		int size = cipher.getHeaderSize();
+		return size == 0 ? NO_HEADER : new byte[size];
+	}
+	
+	/**
+	 * Gets the listener that receives the decrypted events.
+	 */
+	protected WebSocket.Listener getDelegate()
+	{
+		return delegate;
 	}
 	
 	/**
@@ -104,6 +1037,17 @@ public class CipheredWebsocketListener
 		return webSocket;
 	}
 	
+	/**
+	 * Gets a future that completes once the connection cipher has been established
+	 * and encrypted messages may be sent through this listener.
+	 *
+	 * @return the handshake future, completed exceptionally if the connection fails before the handshake.
+	 */
+	public CompletableFuture<WebSocket> getHandshake()
+	{
+		return handshake;
+	}
+	
 	/**
 	 * Handles the WebSocket connection opening event and stores the WebSocket instance.
 	 *
@@ -132,21 +1076,36 @@ public class CipheredWebsocketListener
 	@Override
 	public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last)
 	{
+		// The base64 encoding of a multipart message is only valid as a whole
+		if(!last || inboundText != null)
+		{
+			if(inboundText == null) inboundText = new StringBuilder();
+			inboundText.append(data);
+			if(!last)
+			{
+				webSocket.request(1L);
+				return CompletableFuture.completedFuture(null);
+			}
+			data = inboundText;
+			inboundText = null;
+		}
+		
 		try
 		{
 			// Encoded base64 -> decoded UTF-8 text
-			data = new String(cipher.decrypt(Base64.getDecoder().decode(data.toString())), StandardCharsets.UTF_8);
+			data = new String(decryptWhole(Base64.getDecoder().decode(data.toString())), StandardCharsets.UTF_8);
 		} catch(GeneralSecurityException e)
 		{
 			throw new WebSocketDecryptionException("Failed to decrypt WebSocket text message.", e);
 		}
 		
-		delegate.onText(webSocket, data, last);
+		delegate.onText(webSocket, data, true);
 		return CompletableFuture.completedFuture(null);
 	}
 	
 	/**
 	 * Handles incoming binary messages by decrypting them and delegating the event.
+	 * Parts of a multipart message are decrypted as they arrive.
 	 *
 	 * @param webSocket
 	 * 		the WebSocket that received the message.
@@ -160,7 +1119,106 @@ public class CipheredWebsocketListener
 	@Override
 	public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
 	{
-		delegate.onBinary(webSocket, decrypt(data), last);
+		if(segmentedMessages && inboundEnvelope < 0)
+		{
+			if(!data.hasRemaining())
+			{
+				if(last)
+					throw new WebSocketDecryptionException("Binary message without envelope.");
+				webSocket.request(1L);
+				return CompletableFuture.completedFuture(null);
+			}
+			inboundEnvelope = data.get();
+		}
+		if(inboundEnvelope == ENVELOPE_SEGMENTED)
+			return onSegmented(webSocket, data, last);
+		if(last) inboundEnvelope = -1;
+		
+		if(last && inboundBinary == null && inboundHeader == null)
+		{
+			delegate.onBinary(webSocket, decrypt(data), true);
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		ByteBuffer dec;
+		try
+		{
+			if(inboundBinary == null)
+			{
+				// The header may be split across parts as well
+				if(inboundHeader == null) inboundHeader = ByteBuffer.allocate(cipher.getHeaderSize());
+				int n = Math.min(inboundHeader.remaining(), data.remaining());
+				inboundHeader.put(data.slice(data.position(), n));
+				data.position(data.position() + n);
+				if(inboundHeader.hasRemaining())
+				{
+					if(last)
+						throw new IllegalBlockSizeException("Message is shorter than its header.");
+					webSocket.request(1L);
+					return CompletableFuture.completedFuture(null);
+				}
+				inboundBinary = borrowContext(CipherMode.DECRYPT, inboundHeader.array());
+				inboundHeader = null;
+			}
+			dec = ByteBuffer.allocate(inboundBinary.getOutputSize(data.remaining()));
+			if(last)
+			{
+				inboundBinary.doFinal(data, dec);
+				recycle(CipherMode.DECRYPT, inboundBinary);
+				inboundBinary = null;
+			} else
+				inboundBinary.update(data, dec);
+			dec.flip();
+		} catch(GeneralSecurityException e)
+		{
+			inboundBinary = null;
+			inboundHeader = null;
+			throw new WebSocketDecryptionException("Decryption failed", e);
+		}
+		
+		if(!last && !dec.hasRemaining())
+		{
+			// Not a whole block yet, wait for more data
+			webSocket.request(1L);
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		delegate.onBinary(webSocket, dec, last);
+		return CompletableFuture.completedFuture(null);
+	}
+	
+	/**
+	 * Collects the parts of a segmented message, then decrypts its segments concurrently.
+	 */
+	private CompletionStage<?> onSegmented(WebSocket webSocket, ByteBuffer data, boolean last)
+	{
+		ByteBuffer joined = inboundSegments;
+		if(joined == null || joined.remaining() < data.remaining())
+		{
+			int size = joined == null ? data.remaining() : Math.max(joined.capacity() * 2, joined.position() + data.remaining());
+			ByteBuffer grown = ByteBuffer.allocate(size);
+			if(joined != null) grown.put(joined.flip());
+			joined = grown;
+		}
+		inboundSegments = joined.put(data);
+		if(!last)
+		{
+			webSocket.request(1L);
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		inboundSegments = null;
+		inboundEnvelope = -1;
+		byte[] plain;
+		try
+		{
+			plain = cipher.decryptSegmented(joined.array(), 0, joined.position(), segmentPool);
+		} catch(GeneralSecurityException e)
+		{
+			throw new WebSocketDecryptionException("Decryption failed", e);
+		}
+		
+		delegate.onBinary(webSocket, ByteBuffer.wrap(plain), true);
 		return CompletableFuture.completedFuture(null);
 	}
 	
@@ -214,6 +1272,7 @@ public class CipheredWebsocketListener
 	public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason)
 	{
 		this.webSocket = null;
+		handshake.completeExceptionally(new WebSocketDecryptionException("Connection closed before handshake (" + statusCode + ")"));
 		return delegate.onClose(webSocket, statusCode, reason);
 	}
 	
@@ -228,6 +1287,7 @@ public class CipheredWebsocketListener
 	@Override
 	public void onError(WebSocket webSocket, Throwable error)
 	{
+		handshake.completeExceptionally(error);
 		delegate.onError(webSocket, error);
 	}
 	
@@ -244,16 +1304,21 @@ public class CipheredWebsocketListener
 	 */
 	protected ByteBuffer decrypt(ByteBuffer message)
 	{
-		byte[] tmp = new byte[message.remaining()];
-		message.get(tmp);
 		try
 		{
-			message = ByteBuffer.wrap(cipher.decrypt(tmp));
+			byte[] header = allocateHeader();
+			if(message.remaining() < header.length)
+				throw new IllegalBlockSizeException("Message is shorter than its header.");
+			message.get(header);
+			Cipher c = borrowContext(CipherMode.DECRYPT, header);
+			ByteBuffer out = ByteBuffer.allocate(c.getOutputSize(message.remaining()));
+			c.doFinal(message, out);
+			recycle(CipherMode.DECRYPT, c);
+			return out.flip();
 		} catch(GeneralSecurityException e)
 		{
 			throw new WebSocketDecryptionException("Decryption failed", e);
 		}
-		return message;
 	}
 	
 	/**
@@ -269,16 +1334,374 @@ public class CipheredWebsocketListener
 	 */
 	protected ByteBuffer encrypt(ByteBuffer message)
 	{
-		byte[] tmp = new byte[message.remaining()];
-		message.get(tmp);
 		try
 		{
-			message = ByteBuffer.wrap(cipher.encrypt(tmp));
+			byte[] header = allocateHeader();
+			Cipher c = borrowContext(CipherMode.ENCRYPT, header);
+			ByteBuffer out = ByteBuffer.allocate(header.length + c.getOutputSize(message.remaining()));
+			c.doFinal(message, out.put(header));
+			recycle(CipherMode.ENCRYPT, c);
+			return out.flip();
 		} catch(GeneralSecurityException e)
 		{
 			throw new WebSocketDecryptionException("Encryption failed", e);
 		}
-		return message;
+	}
+	
+	/**
+	 * Encrypts a complete binary message using the established cipher into a leased buffer.
+	 *
+	 * @param message
+	 * 		the binary message buffer to be encrypted.
+	 *
+	 * @return the lease of a buffer holding the ciphertext, to be released once it has been sent.
+	 *
+	 * @throws RuntimeException
+	 * 		if encryption fails.
+	 */
+	protected BufferPool.Lease encryptPooled(ByteBuffer message)
+	{
+		try
+		{
+			byte[] header = allocateHeader();
+			Cipher c = borrowContext(CipherMode.ENCRYPT, header);
+			BufferPool.Lease lease = encrypt(c, header, message, true, false);
+			recycle(CipherMode.ENCRYPT, c);
+			return lease;
+		} catch(GeneralSecurityException e)
+		{
+			throw new WebSocketDecryptionException("Encryption failed", e);
+		}
+	}
+	
+	/**
+	 * Runs a message through the given cipher into a leased buffer.
+	 *
+	 * @param c
+	 * 		an initialized cipher.
+	 * @param header
+	 * 		the cipher's message header to write in front of the output, or {@code null} for a continuation.
+	 * @param message
+	 * 		the data to process.
+	 * @param last
+	 * 		whether to finish the cipher operation, or only update it.
+	 * @param first
+	 * 		whether this starts a binary message, which then gets the {@link #ENVELOPE_PLAIN} byte if enabled.
+	 *
+	 * @return the lease of a buffer holding the output, flipped for reading.
+	 */
+	private BufferPool.Lease encrypt(Cipher c, byte[] header, ByteBuffer message, boolean last, boolean first)
+			throws GeneralSecurityException
+	{
+		boolean envelope = first && segmentedMessages;
+		int prefix = (envelope ? 1 : 0) + (header != null ? header.length : 0);
+		BufferPool.Lease lease = bufferPool.acquire(c.getOutputSize(message.remaining()) + prefix);
+		try
+		{
+			ByteBuffer out = lease.buffer();
+			if(envelope) out.put(ENVELOPE_PLAIN);
+			if(header != null) out.put(header);
+			if(last) c.doFinal(message, out);
+			else c.update(message, out);
+			out.flip();
+			return lease;
+		} catch(GeneralSecurityException | RuntimeException e)
+		{
+			lease.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * How long the messages sent through a lane of the send queue waited in it, from being queued until their
+	 * first frame was handed to the WebSocket.
+	 *
+	 * @param messages
+	 * 		the number of messages sent through the lane.
+	 * @param totalWaitNanos
+	 * 		the sum of their queue times.
+	 * @param maxWaitNanos
+	 * 		the longest queue time.
+	 */
+	public record QueueStats(long messages, long totalWaitNanos, long maxWaitNanos)
+	{
+		/**
+		 * Gets the average queue time, or 0 if no message was sent yet.
+		 */
+		public long averageWaitNanos()
+		{
+			return messages == 0 ? 0 : totalWaitNanos / messages;
+		}
+	}
+	
+	/**
+	 * The lanes of the send queue.
+	 */
+	private static class SendQueue
+	{
+		final Queue<Outbound> control = new ConcurrentLinkedQueue<>(), high = new ConcurrentLinkedQueue<>(), normal = new ConcurrentLinkedQueue<>();
+		// Parts of multipart messages after the first one
+		final Queue<Outbound> continuations = new ConcurrentLinkedQueue<>();
+		// Set while trim() drops this queue
+		volatile boolean retired;
+		
+		Queue<Outbound> queueOf(Outbound message)
+		{
+			if(!message.first)
+				return continuations;
+			return switch(message.priority)
+			{
+				case CONTROL -> control;
+				case HIGH -> high;
+				case NORMAL -> normal;
+			};
+		}
+		
+		boolean isEmpty()
+		{
+			return control.isEmpty() && high.isEmpty() && normal.isEmpty() && continuations.isEmpty();
+		}
+	}
+	
+	/**
+	 * An encrypted message waiting in the send queue. Binary messages may be sent as several frames.
+	 */
+	private static class Outbound
+	{
+		static final int TEXT = 0, BINARY = 1, PING = 2, PONG = 3, SEGMENTED = 4;
+		
+		final int kind;
+		final SendPriority priority;
+		// The cipher of a multipart message, shared by all its parts; null for a message sent in one part
+		final Object owner;
+		final boolean first;
+		final String text;
+		final BufferPool.Lease lease;
+		final ByteBuffer[] data;
+		final boolean last;
+		final CompletableFuture<WebSocket> future = new CompletableFuture<>();
+		long enqueued;
+		private int part;
+		
+		Outbound(int kind, SendPriority priority, Object owner, boolean first, String text, BufferPool.Lease lease, boolean last)
+		{
+			this(kind, priority, owner, first, text, lease, last, lease != null ? new ByteBuffer[] { lease.buffer() } : new ByteBuffer[0]);
+		}
+		
+		Outbound(int kind, SendPriority priority, Object owner, boolean first, String text, BufferPool.Lease lease, boolean last, ByteBuffer... data)
+		{
+			this.kind = kind;
+			this.priority = priority;
+			this.owner = owner;
+			this.first = first;
+			this.text = text;
+			this.lease = lease;
+			this.data = data;
+			this.last = last;
+		}
+		
+		/**
+		 * Sends the next frame of this message.
+		 *
+		 * @param frameSize
+		 * 		the largest binary frame, or 0 to send each buffer as one frame.
+		 */
+		CompletableFuture<WebSocket> send(WebSocket ws, int frameSize)
+		{
+			if(ws == null)
+			{
+				part = data.length;
+				return CompletableFuture.failedFuture(new IllegalStateException("WebSocket is not connected."));
+			}
+			try
+			{
+				if(kind == TEXT || kind == PING || kind == PONG)
+				{
+					part = data.length;
+					return switch(kind)
+					{
+						case TEXT -> ws.sendText(text, last);
+						case PING -> ws.sendPing(lease.buffer());
+						default -> ws.sendPong(lease.buffer());
+					};
+				}
+				
+				// The frames of one message go out back to back, with nothing but control frames between them
+				ByteBuffer buf = data[part];
+				int n = frameSize > 0 ? Math.min(frameSize, buf.remaining()) : buf.remaining();
+				ByteBuffer frame = buf.slice(buf.position(), n);
+				buf.position(buf.position() + n);
+				if(!buf.hasRemaining()) ++part;
+				return ws.sendBinary(frame, last && !hasRemaining());
+			} catch(RuntimeException e)
+			{
+				part = data.length;
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+		
+		/**
+		 * Checks whether frames of this message are still to be sent.
+		 */
+		boolean hasRemaining()
+		{
+			return part < data.length;
+		}
+		
+		void complete(WebSocket ws, Throwable error)
+		{
+			if(lease != null) lease.release();
+			if(error != null) future.completeExceptionally(error);
+			else future.complete(ws);
+		}
+	}
+	
+	/**
+	 * A multipart text or binary message being sent. Its parts are encrypted and queued while holding its monitor.
+	 */
+	private static final class Multipart
+	{
+		final Cipher cipher;
+		
+		// The cipher header, until the first part has been encrypted
+		byte[] header;
+		// Encrypted text bytes not filling a whole base64 quantum yet
+		byte[] carry;
+		// Set once the last part was encrypted, or encryption failed
+		volatile boolean finished;
+		
+		Multipart(Cipher cipher, byte[] header)
+		{
+			this.cipher = cipher;
+			this.header = header;
+		}
+	}
+	
+	/**
+	 * Holds the daemon threads running the blocking reads of {@code sendStream}, created on first use.
+	 * Idle threads exit after a minute, so the pool costs nothing while no stream is sent.
+	 */
+	private static final class StreamReaders
+	{
+		static final Executor EXECUTOR;
+		
+		static
+		{
+			AtomicInteger counter = new AtomicInteger();
+			EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+					r ->
+					{
+						Thread t = new Thread(r, "CipheredStreamReader-" + counter.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+			);
+		}
+	}
+	
+	/**
+	 * Sends one message as a chain of fragments, each sent once the previous one completed.
+	 */
+	private class StreamSender
+	{
+		private final ByteBuffer message;
+		private final ReadableByteChannel channel;
+		private final int fragmentSize;
+		private final Executor executor;
+		private final CompletableFuture<WebSocket> result = new CompletableFuture<>();
+		
+		private Cipher context;
+		private byte[] header;
+		private BufferPool.Lease plain;
+		private boolean started;
+		
+		StreamSender(ByteBuffer message, ReadableByteChannel channel, int fragmentSize, Executor executor)
+		{
+			if(fragmentSize < 1)
+				throw new IllegalArgumentException("Fragment size must be positive.");
+			this.message = message;
+			this.channel = channel;
+			this.fragmentSize = fragmentSize;
+			this.executor = executor;
+		}
+		
+		CompletableFuture<WebSocket> start()
+		{
+			try
+			{
+				header = allocateHeader();
+				context = cipher.newCipher(CipherMode.ENCRYPT, header);
+				if(channel != null) plain = bufferPool.acquire(fragmentSize);
+			} catch(GeneralSecurityException e)
+			{
+				throw new WebSocketDecryptionException("Encryption failed", e);
+			}
+			step();
+			return result;
+		}
+		
+		private void step()
+		{
+			try
+			{
+				ByteBuffer fragment;
+				boolean last;
+				if(message != null)
+				{
+					int n = Math.min(fragmentSize, message.remaining());
+					fragment = message.slice(message.position(), n);
+					message.position(message.position() + n);
+					last = !message.hasRemaining();
+				} else
+				{
+					// The pooled buffer may be larger than a fragment
+					fragment = plain.buffer().clear().limit(fragmentSize);
+					last = fill(fragment);
+					fragment.flip();
+				}
+				
+				boolean first = !started;
+				BufferPool.Lease out = encrypt(context, first ? header : null, fragment, last, first);
+				started = true;
+				enqueue(new Outbound(Outbound.BINARY, SendPriority.NORMAL, context, first, null, out, last))
+						.whenComplete((ws, err) ->
+						{
+							if(err != null) fail(err);
+							else if(last) finish(ws);
+							else executor.execute(this::step);
+						});
+			} catch(IOException | GeneralSecurityException | RuntimeException e)
+			{
+				fail(e);
+			}
+		}
+		
+		/**
+		 * Reads until the buffer is full or the channel ends.
+		 *
+		 * @return whether the end of the channel was reached.
+		 */
+		private boolean fill(ByteBuffer buf)
+				throws IOException
+		{
+			while(buf.hasRemaining())
+				if(channel.read(buf) < 0)
+					return true;
+			return false;
+		}
+		
+		private void finish(WebSocket ws)
+		{
+			if(plain != null) plain.release();
+			result.complete(ws);
+		}
+		
+		private void fail(Throwable error)
+		{
+			if(plain != null) plain.release();
+			if(started && webSocket != null) webSocket.abort();
+			result.completeExceptionally(error);
+		}
 	}
 	
 	@Override
@@ -1,11 +1,14 @@
 package org.zeith.crypto.ws;
 
 import org.zeith.crypto.*;
+import org.zeith.crypto.util.BufferPool;
 
 import java.net.http.WebSocket;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.GeneralSecurityException;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
 import java.util.concurrent.*;
 
 /**
@@ -15,20 +18,176 @@ import java.util.concurrent.*;
 public class ClientWebsocketListener
 		extends CipheredWebsocketListener
 {
+	// Clients mostly connect to one server, so its decoded key is kept for all connections to share
+	private static volatile ServerKey lastServerKey;
+	
 	private final String algorithm;
+	private final PublicKey pinnedKey;
+	private final List<ByteBuffer> earlyData;
+	private volatile boolean awaitingServerShake;
 	
 	/**
 	 * Constructs a {@code ClientWebsocketListener}.
 	 *
 	 * @param algorithm
-	 * 		the cryptographic algorithm to use for communication.
+	 * 		the cryptographic algorithm to use for communication, e.g. "AES", or "ChaCha20" on hosts without AES hardware acceleration.
 	 * @param delegate
 	 * 		the WebSocket listener to delegate non-encrypted messages to.
 	 */
 	public ClientWebsocketListener(String algorithm, WebSocket.Listener delegate)
+	{
+		this(algorithm, null, delegate);
+	}
+	
+	/**
+	 * Constructs a {@code ClientWebsocketListener} that only accepts a known server key.
+	 * The handshake fails, and the connection is aborted, if the server presents any other key.
+	 *
+	 * @param algorithm
+	 * 		the cryptographic algorithm to use for communication.
+	 * @param pinnedKey
+	 * 		the server's public key, or {@code null} to accept any key.
+	 * @param delegate
+	 * 		the WebSocket listener to delegate non-encrypted messages to.
+	 */
+	public ClientWebsocketListener(String algorithm, PublicKey pinnedKey, WebSocket.Listener delegate)
+	{
+		this(algorithm, pinnedKey, null, delegate);
+	}
+	
+	/**
+	 * Constructs a {@code ClientWebsocketListener} that sends early data: since the server's key is already known,
+	 * the client handshake is sent as soon as the connection opens, together with the given messages, and
+	 * the {@link #getHandshake() handshake} completes without waiting for the server. The key the server
+	 * presents is still checked once it arrives.
+	 * <p>
+	 * Early messages may be replayed by an attacker who captured them, so they should be idempotent. Servers only
+	 * accept them within the limits of their {@link EarlyDataPolicy}, and close the connection with
+	 * {@link EarlyDataPolicy#POLICY_VIOLATION} otherwise, after which the client should connect without early data.
+	 *
+	 * @param algorithm
+	 * 		the cryptographic algorithm to use for communication.
+	 * @param pinnedKey
+	 * 		the server's public key.
+	 * @param earlyData
+	 * 		the binary messages to send with the handshake, or {@code null} to wait for the server's key as usual.
+	 * @param delegate
+	 * 		the WebSocket listener to delegate non-encrypted messages to.
+	 */
+	public ClientWebsocketListener(String algorithm, PublicKey pinnedKey, List<ByteBuffer> earlyData, WebSocket.Listener delegate)
 	{
 		super(delegate);
+		if(earlyData != null && pinnedKey == null)
+			throw new IllegalArgumentException("Early data requires a pinned server key.");
 		this.algorithm = algorithm;
+		this.pinnedKey = pinnedKey;
+		this.earlyData = earlyData != null ? List.copyOf(earlyData) : null;
+	}
+	
+	/**
+	 * Gets the server key this listener is pinned to, or {@code null} if any key is accepted.
+	 */
+	public PublicKey getPinnedKey()
+	{
+		return pinnedKey;
+	}
+	
+	/**
+	 * Gets whether this listener sends its handshake and early data without waiting for the server's key.
+	 */
+	public boolean isEarlyDataEnabled()
+	{
+		return earlyData != null;
+	}
+	
+	/**
+	 * Handles the WebSocket connection opening event. In early data mode, sends the client handshake
+	 * together with the early messages right away.
+	 *
+	 * @param webSocket
+	 * 		the WebSocket that has been opened.
+	 */
+	@Override
+	public void onOpen(WebSocket webSocket)
+	{
+		if(earlyData == null)
+		{
+			super.onOpen(webSocket);
+			return;
+		}
+		
+		// Set up before the delegate's onOpen requests the server's shake
+		try
+		{
+			ClientCipher cs = new ClientKeyGen(pinnedKey).generateCipher(algorithm);
+			byte[] shake = cs.generateClientShake();
+			long timestamp = System.currentTimeMillis();
+			byte[] payload = cs.encrypt(encodeEarlyData(timestamp));
+			
+			// The timestamp goes out in the clear as well, so the server can refuse stale early data without decrypting it
+			BufferPool.Lease lease = getBufferPool().acquire(4 + 8 + 2 + shake.length + payload.length);
+			ByteBuffer buf = lease.buffer();
+			buf.putInt(EARLY_MAGIC_NUMBER);
+			buf.putLong(timestamp);
+			buf.putShort((short) shake.length).put(shake);
+			buf.put(payload);
+			
+			cipher = cs;
+			awaitingServerShake = true;
+			releaseAfter(lease, () -> webSocket.sendBinary(buf.flip(), true))
+					.whenComplete((ws, err) ->
+					{
+						if(err != null) handshake.completeExceptionally(err);
+						else handshake.complete(ws);
+					});
+		} catch(GeneralSecurityException e)
+		{
+			handshake.completeExceptionally(e);
+			webSocket.abort();
+		}
+		super.onOpen(webSocket);
+	}
+	
+	/**
+	 * Lays out the early messages as {@code [long timestamp][short count]} followed by {@code [int length][bytes]}
+	 * for every message. The timestamp lets the server reject stale replays; the encrypted copy vouches for the one sent
+	 * in the clear.
+	 */
+	private byte[] encodeEarlyData(long timestamp)
+	{
+		int size = 8 + 2;
+		for(ByteBuffer message : earlyData)
+			size += 4 + message.remaining();
+		
+		ByteBuffer plain = ByteBuffer.allocate(size);
+		plain.putLong(timestamp);
+		plain.putShort((short) earlyData.size());
+		for(ByteBuffer message : earlyData)
+			plain.putInt(message.remaining()).put(message.duplicate());
+		return plain.array();
+	}
+	
+	private static PublicKey decodeServerKey(byte[] alg, byte[] key)
+			throws GeneralSecurityException
+	{
+		String algorithm = new String(alg, StandardCharsets.UTF_8);
+		ServerKey cached = lastServerKey;
+		if(cached != null && cached.algorithm().equals(algorithm) && Arrays.equals(cached.encoded(), key))
+			return cached.key();
+		
+		PublicKey decoded = KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(key));
+		lastServerKey = new ServerKey(algorithm, key, decoded);
+		return decoded;
+	}
+	
+	private record ServerKey(String algorithm, byte[] encoded, PublicKey key)
+	{
+	}
+	
+	private boolean matchesPinnedKey(byte[] alg, byte[] key)
+	{
+		return pinnedKey == null || pinnedKey.getAlgorithm().equals(new String(alg, StandardCharsets.UTF_8))
+				&& Arrays.equals(pinnedKey.getEncoded(), key);
 	}
 	
 	/**
@@ -46,6 +205,32 @@ public class ClientWebsocketListener
 	@Override
 	public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
 	{
+		if(awaitingServerShake)
+		{
+			// The early handshake went out already; only make sure the server is the one we pinned
+			awaitingServerShake = false;
+			boolean valid = data.getInt() == MAGIC_NUMBER;
+			if(valid)
+			{
+				byte[] alg = new byte[data.getShort()];
+				data.get(alg);
+				byte[] key = new byte[data.getShort()];
+				data.get(key);
+				valid = matchesPinnedKey(alg, key);
+			}
+			
+			if(!valid)
+			{
+				GeneralSecurityException error = new GeneralSecurityException("Server presented a key that does not match the pinned key");
+				webSocket.abort();
+				getDelegate().onError(webSocket, error);
+				return CompletableFuture.completedFuture(null);
+			}
+			
+			webSocket.request(1L);
+			return CompletableFuture.completedFuture(null);
+		}
+		
 		if(cipher == null)
 		{
 			if(data.getInt() == MAGIC_NUMBER)
@@ -56,21 +241,35 @@ public class ClientWebsocketListener
 				byte[] key = new byte[data.getShort()];
 				data.get(key);
 				
+				if(!matchesPinnedKey(alg, key))
+				{
+					handshake.completeExceptionally(new GeneralSecurityException("Server presented a key that does not match the pinned key"));
+					webSocket.abort();
+					return CompletableFuture.completedFuture(null);
+				}
+				
 				try
 				{
-					ClientKeyGen ckg = new ClientKeyGen(new String(alg, StandardCharsets.UTF_8), key);
+					ClientKeyGen ckg = new ClientKeyGen(pinnedKey != null ? pinnedKey : decodeServerKey(alg, key));
 					ClientCipher cs = ckg.generateCipher(algorithm);
 					cipher = cs;
 					
 					key = cs.generateClientShake();
 					
-					ByteBuffer ndata = ByteBuffer.allocate(4 + 2 + key.length);
+					BufferPool.Lease lease = getBufferPool().acquire(4 + 2 + key.length);
+					ByteBuffer ndata = lease.buffer();
 					ndata.putInt(MAGIC_NUMBER);
 					ndata.putShort((short) key.length);
 					ndata.put(key);
-					webSocket.sendBinary(ndata.flip(), true);
+					releaseAfter(lease, () -> webSocket.sendBinary(ndata.flip(), true))
+							 .whenComplete((ws, err) ->
+							 {
+								 if(err != null) handshake.completeExceptionally(err);
+								 else handshake.complete(ws);
+							 });
 				} catch(GeneralSecurityException e)
 				{
+					handshake.completeExceptionally(e);
 					throw new WebSocketDecryptionException("Failed to initialize client cipher", e);
 				}
 			}
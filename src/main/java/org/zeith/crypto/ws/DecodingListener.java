@@ -0,0 +1,118 @@
+package org.zeith.crypto.ws;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link WebSocket.Listener} that decodes every binary message with a {@link MessageCodec} and hands
+ * the result to a handler. Intended as the delegate of a {@link CipheredWebsocketListener}, where it reads
+ * the decrypted output directly. Events other than binary messages are passed on to an optional delegate.
+ *
+ * @param <T>
+ * 		the type of the messages.
+ */
+public class DecodingListener<T>
+		implements WebSocket.Listener
+{
+	private final MessageCodec<T> codec;
+	private final BiConsumer<WebSocket, T> handler;
+	private final WebSocket.Listener delegate;
+	
+	private ByteBuffer partial;
+	
+	/**
+	 * Constructs a {@code DecodingListener} that ignores all events other than binary messages.
+	 *
+	 * @param codec
+	 * 		the codec to decode messages with.
+	 * @param handler
+	 * 		receives every decoded message.
+	 */
+	public DecodingListener(MessageCodec<T> codec, BiConsumer<WebSocket, T> handler)
+	{
+		this(codec, handler, new WebSocket.Listener() {});
+	}
+	
+	/**
+	 * Constructs a {@code DecodingListener}.
+	 *
+	 * @param codec
+	 * 		the codec to decode messages with.
+	 * @param handler
+	 * 		receives every decoded message.
+	 * @param delegate
+	 * 		the WebSocket listener to delegate all other events to.
+	 */
+	public DecodingListener(MessageCodec<T> codec, BiConsumer<WebSocket, T> handler, WebSocket.Listener delegate)
+	{
+		this.codec = codec;
+		this.handler = handler;
+		this.delegate = delegate;
+	}
+	
+	@Override
+	public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+	{
+		if(!last || partial != null)
+		{
+			// Decode once the whole message has arrived
+			if(partial == null)
+				partial = ByteBuffer.allocate(Math.max(1024, data.remaining() * 2));
+			else if(partial.remaining() < data.remaining())
+			{
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(partial.capacity() * 2, partial.position() + data.remaining()));
+				partial = grown.put(partial.flip());
+			}
+			partial.put(data);
+			if(!last)
+			{
+				webSocket.request(1L);
+				return null;
+			}
+			data = partial.flip();
+			partial = null;
+		}
+		
+		handler.accept(webSocket, codec.decode(data));
+		webSocket.request(1L);
+		return null;
+	}
+	
+	@Override
+	public void onOpen(WebSocket webSocket)
+	{
+		delegate.onOpen(webSocket);
+	}
+	
+	@Override
+	public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last)
+	{
+		return delegate.onText(webSocket, data, last);
+	}
+	
+	@Override
+	public CompletionStage<?> onPing(WebSocket webSocket, ByteBuffer message)
+	{
+		return delegate.onPing(webSocket, message);
+	}
+	
+	@Override
+	public CompletionStage<?> onPong(WebSocket webSocket, ByteBuffer message)
+	{
+		return delegate.onPong(webSocket, message);
+	}
+	
+	@Override
+	public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason)
+	{
+		return delegate.onClose(webSocket, statusCode, reason);
+	}
+	
+	@Override
+	public void onError(WebSocket webSocket, Throwable error)
+	{
+		delegate.onError(webSocket, error);
+	}
+}
@@ -0,0 +1,219 @@
+package org.zeith.crypto.ws;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a {@link ServerWebsocketListener} accepts early data, i.e. a client handshake sent together with
+ * application messages before the server's key arrived (see {@link ClientWebsocketListener}).
+ * <p>
+ * Early data is accepted only if it stays within the size and count limits, its timestamp is within the
+ * replay window of the server's clock, and the same client handshake has not been seen within the window before.
+ * Seen handshakes are remembered by digest; when the cache is full of unexpired entries, early data is refused
+ * rather than forgetting an entry. Share one policy between all listeners of a server.
+ */
+public class EarlyDataPolicy
+{
+	/**
+	 * WebSocket close status code sent to clients whose early data was refused. They should reconnect without early data.
+	 */
+	public static final int POLICY_VIOLATION = 1008;
+	
+	/**
+	 * The default maximum number of plaintext bytes of early data.
+	 */
+	public static final int DEFAULT_MAX_BYTES = 16 * 1024;
+	
+	/**
+	 * The default maximum number of early messages.
+	 */
+	public static final int DEFAULT_MAX_MESSAGES = 8;
+	
+	// Room for the nonce, tag or padding the handshake cipher adds to the early data
+	private static final int CIPHER_OVERHEAD = 256;
+	
+	private final int maxBytes, maxMessages, maxReplayEntries;
+	private final long windowMillis;
+	private final LinkedHashMap<ByteBuffer, Long> seen = new LinkedHashMap<>();
+	
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+	
+	/**
+	 * Constructs an {@code EarlyDataPolicy} with the default limits, a replay window of one minute
+	 * and room for 100 000 remembered handshakes.
+	 */
+	public EarlyDataPolicy()
+	{
+		this(DEFAULT_MAX_BYTES, DEFAULT_MAX_MESSAGES, 1L, TimeUnit.MINUTES, 100_000);
+	}
+	
+	/**
+	 * Constructs an {@code EarlyDataPolicy}.
+	 *
+	 * @param maxBytes
+	 * 		the maximum number of plaintext bytes of early data.
+	 * @param maxMessages
+	 * 		the maximum number of early messages.
+	 * @param window
+	 * 		how far the client's timestamp may deviate from the server's clock.
+	 * @param unit
+	 * 		the unit of {@code window}.
+	 * @param maxReplayEntries
+	 * 		the maximum number of remembered handshakes.
+	 */
+	public EarlyDataPolicy(int maxBytes, int maxMessages, long window, TimeUnit unit, int maxReplayEntries)
+	{
+		this.maxBytes = maxBytes;
+		this.maxMessages = maxMessages;
+		this.windowMillis = unit.toMillis(window);
+		this.maxReplayEntries = maxReplayEntries;
+	}
+	
+	/**
+	 * Checks early data and, if accepted, remembers its handshake.
+	 *
+	 * @param clientShake
+	 * 		the encrypted client handshake.
+	 * @param timestamp
+	 * 		the client's timestamp, in milliseconds since the epoch.
+	 * @param messages
+	 * 		the number of early messages.
+	 * @param bytes
+	 * 		the total plaintext size of the early messages.
+	 *
+	 * @return whether the early data may be processed.
+	 */
+	boolean accept(byte[] clientShake, long timestamp, int messages, int bytes)
+	{
+		long now = System.currentTimeMillis();
+		if(messages > maxMessages || bytes > maxBytes || Math.abs(now - timestamp) > windowMillis)
+		{
+			rejected.incrementAndGet();
+			return false;
+		}
+		
+		ByteBuffer digest;
+		try
+		{
+			digest = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(clientShake));
+		} catch(NoSuchAlgorithmException e)
+		{
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+		
+		synchronized(seen)
+		{
+			// A timestamp is valid for twice the window, so entries are kept that long
+			Iterator<Long> expiries = seen.values().iterator();
+			while(expiries.hasNext() && expiries.next() < now)
+				expiries.remove();
+			
+			if(seen.containsKey(digest))
+			{
+				replayed.incrementAndGet();
+				return false;
+			}
+			if(seen.size() >= maxReplayEntries)
+			{
+				rejected.incrementAndGet();
+				return false;
+			}
+			seen.put(digest, now + 2 * windowMillis);
+		}
+		
+		accepted.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Checks the encrypted size of early data before it is decrypted, so that oversized early data is refused
+	 * without a private key operation.
+	 *
+	 * @param length
+	 * 		the number of encrypted bytes of early data.
+	 *
+	 * @return whether early data of that size may be within the limits.
+	 */
+	boolean admitsPayload(int length)
+	{
+		// [long timestamp][short count], then [int length] per message
+		if(length <= (long) maxBytes + 4L * maxMessages + 8 + 2 + CIPHER_OVERHEAD)
+			return true;
+		rejected.incrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Checks the timestamp sent in the clear before early data is decrypted, so that stale early data is refused
+	 * without a private key operation. The encrypted timestamp must match it and is checked again by
+	 * {@link #accept(byte[], long, int, int)}.
+	 *
+	 * @param timestamp
+	 * 		the client's timestamp, in milliseconds since the epoch.
+	 *
+	 * @return whether the timestamp is within the replay window.
+	 */
+	boolean admitsTimestamp(long timestamp)
+	{
+		if(Math.abs(System.currentTimeMillis() - timestamp) <= windowMillis)
+			return true;
+		rejected.incrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Gets the maximum number of plaintext bytes of early data.
+	 */
+	public int getMaxBytes()
+	{
+		return maxBytes;
+	}
+	
+	/**
+	 * Gets the maximum number of early messages.
+	 */
+	public int getMaxMessages()
+	{
+		return maxMessages;
+	}
+	
+	/**
+	 * Gets the number of connections whose early data was accepted.
+	 */
+	public long getAcceptedCount()
+	{
+		return accepted.get();
+	}
+	
+	/**
+	 * Gets the number of connections whose early data exceeded the limits or the replay window.
+	 */
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+	
+	/**
+	 * Gets the number of connections that repeated a handshake seen before.
+	 */
+	public long getReplayedCount()
+	{
+		return replayed.get();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "EarlyDataPolicy{" +
+				"accepted=" + getAcceptedCount() +
+				", rejected=" + getRejectedCount() +
+				", replayed=" + getReplayedCount() +
+				'}';
+	}
+}
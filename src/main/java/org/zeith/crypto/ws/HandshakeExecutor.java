@@ -0,0 +1,304 @@
+package org.zeith.crypto.ws;
+
+import java.net.http.WebSocket;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Function;
+
+/**
+ * A bounded executor for server-side handshakes. The private-key decryption of a client handshake
+ * is comparatively expensive, so moving it off the WebSocket threads keeps established connections
+ * responsive during reconnect storms.
+ * <p>
+ * Handshakes are rejected immediately when the queue is full, or when the originating source
+ * exceeds its rate limit. Rejected connections are closed by {@link ServerWebsocketListener}
+ * with status {@link #TRY_AGAIN_LATER}.
+ */
+public class HandshakeExecutor
+		implements AutoCloseable
+{
+	/**
+	 * WebSocket close status code sent to clients whose handshake was rejected.
+	 */
+	public static final int TRY_AGAIN_LATER = 1013;
+	
+	private static final int BUCKET_SWEEP_THRESHOLD = 4096;
+	
+	private final ThreadPoolExecutor executor;
+	private final int queueCapacity;
+	private final Function<WebSocket, ?> sourceKey;
+	private final double permitsPerNano;
+	private final double burst;
+	private final long sweepIntervalNanos;
+	private final Map<Object, TokenBucket> buckets = new ConcurrentHashMap<>();
+	private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+	
+	private final LongAdder submitted = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder rateLimited = new LongAdder();
+	private final LongAdder queueTimeTotal = new LongAdder();
+	private final AtomicLong queueTimeMax = new AtomicLong();
+	private final LongAdder serviceTimeTotal = new LongAdder();
+	
+	/**
+	 * Constructs a {@code HandshakeExecutor} without per-source rate limiting.
+	 *
+	 * @param threads
+	 * 		the number of threads performing handshakes.
+	 * @param queueCapacity
+	 * 		the maximum number of handshakes waiting for a thread.
+	 */
+	public HandshakeExecutor(int threads, int queueCapacity)
+	{
+		this(threads, queueCapacity, null, 0D, 0);
+	}
+	
+	/**
+	 * Constructs a {@code HandshakeExecutor} with per-source rate limiting.
+	 *
+	 * @param threads
+	 * 		the number of threads performing handshakes.
+	 * @param queueCapacity
+	 * 		the maximum number of handshakes waiting for a thread.
+	 * @param sourceKey
+	 * 		extracts the source (e.g. remote host) of a connection, or {@code null} to disable rate limiting.
+	 * 		Connections for which it returns {@code null} are not rate limited.
+	 * @param handshakesPerSecond
+	 * 		the sustained handshake rate allowed for a single source; must be positive and finite if {@code sourceKey}
+	 * 		is given.
+	 * @param burst
+	 * 		the number of handshakes a single source may perform at once.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if there are no threads, the queue capacity is negative or the rate is not positive and finite.
+	 */
+	public HandshakeExecutor(int threads, int queueCapacity, Function<WebSocket, ?> sourceKey, double handshakesPerSecond, int burst)
+	{
+		if(threads < 1)
+			throw new IllegalArgumentException("At least one handshake thread is required.");
+		if(queueCapacity < 0)
+			throw new IllegalArgumentException("Queue capacity must not be negative.");
+		if(sourceKey != null && !(handshakesPerSecond > 0D && Double.isFinite(handshakesPerSecond)))
+			throw new IllegalArgumentException("Handshake rate must be positive and finite: " + handshakesPerSecond);
+		
+		this.queueCapacity = queueCapacity;
+		this.sourceKey = sourceKey;
+		this.permitsPerNano = handshakesPerSecond / TimeUnit.SECONDS.toNanos(1L);
+		this.burst = Math.max(1, burst);
+		// A bucket can only become removable once it had the time to refill completely
+		this.sweepIntervalNanos = permitsPerNano > 0D
+				? (long) Math.min(Long.MAX_VALUE / 4, Math.ceil(this.burst / permitsPerNano))
+				: TimeUnit.SECONDS.toNanos(1L);
+		
+		AtomicInteger counter = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+				queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>(),
+				r ->
+				{
+					Thread t = new Thread(r, "HandshakeExecutor-" + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				},
+				new ThreadPoolExecutor.AbortPolicy()
+		);
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Submits a handshake task for the given connection.
+	 *
+	 * @param webSocket
+	 * 		the connection performing the handshake, used for rate limiting.
+	 * @param task
+	 * 		the handshake work.
+	 *
+	 * @return a future with the result of the task, failed with {@link RejectedExecutionException}
+	 * if the handshake was not admitted.
+	 */
+	public <T> CompletableFuture<T> submit(WebSocket webSocket, Callable<T> task)
+	{
+		submitted.increment();
+		
+		Object source = sourceKey != null ? sourceKey.apply(webSocket) : null;
+		if(source != null && !acquire(source))
+		{
+			rateLimited.increment();
+			return CompletableFuture.failedFuture(new RejectedExecutionException("Handshake rate limit exceeded for " + source));
+		}
+		
+		CompletableFuture<T> result = new CompletableFuture<>();
+		long enqueued = System.nanoTime();
+		try
+		{
+			executor.execute(() ->
+			{
+				long start = System.nanoTime();
+				long waited = start - enqueued;
+				queueTimeTotal.add(waited);
+				queueTimeMax.accumulateAndGet(waited, Math::max);
+				try
+				{
+					result.complete(task.call());
+				} catch(Throwable e)
+				{
+					result.completeExceptionally(e);
+				} finally
+				{
+					serviceTimeTotal.add(System.nanoTime() - start);
+					completed.increment();
+				}
+			});
+		} catch(RejectedExecutionException e)
+		{
+			rejected.increment();
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+	
+	private boolean acquire(Object source)
+	{
+		long now = System.nanoTime();
+		if(buckets.size() > BUCKET_SWEEP_THRESHOLD)
+		{
+			// Drop sources that have been quiet long enough to refill completely, at most once per refill
+			// interval and on one thread, so that admissions during a storm do not all scan the map
+			long due = nextSweep.get();
+			if(now - due >= 0L && nextSweep.compareAndSet(due, now + sweepIntervalNanos))
+				buckets.values().removeIf(b -> b.isFull(now));
+		}
+		return buckets.computeIfAbsent(source, k -> new TokenBucket(now)).tryAcquire(now);
+	}
+	
+	/**
+	 * Gets the number of handshakes currently waiting for a thread.
+	 */
+	public int getQueueDepth()
+	{
+		return executor.getQueue().size();
+	}
+	
+	/**
+	 * Gets the maximum number of handshakes that may wait for a thread.
+	 */
+	public int getQueueCapacity()
+	{
+		return queueCapacity;
+	}
+	
+	/**
+	 * Gets the number of handshakes submitted to this executor, including rejected ones.
+	 */
+	public long getSubmittedCount()
+	{
+		return submitted.sum();
+	}
+	
+	/**
+	 * Gets the number of handshakes that have finished running, successfully or not.
+	 */
+	public long getCompletedCount()
+	{
+		return completed.sum();
+	}
+	
+	/**
+	 * Gets the number of handshakes rejected because the queue was full.
+	 */
+	public long getRejectedCount()
+	{
+		return rejected.sum();
+	}
+	
+	/**
+	 * Gets the number of handshakes rejected because their source exceeded its rate limit.
+	 */
+	public long getRateLimitedCount()
+	{
+		return rateLimited.sum();
+	}
+	
+	/**
+	 * Gets the average time, in nanoseconds, a handshake waited in the queue before it started running.
+	 */
+	public long getAverageQueueTimeNanos()
+	{
+		long n = completed.sum();
+		return n > 0 ? queueTimeTotal.sum() / n : 0L;
+	}
+	
+	/**
+	 * Gets the longest time, in nanoseconds, a handshake waited in the queue before it started running.
+	 */
+	public long getMaxQueueTimeNanos()
+	{
+		return queueTimeMax.get();
+	}
+	
+	/**
+	 * Gets the average time, in nanoseconds, a handshake spent running.
+	 */
+	public long getAverageServiceTimeNanos()
+	{
+		long n = completed.sum();
+		return n > 0 ? serviceTimeTotal.sum() / n : 0L;
+	}
+	
+	/**
+	 * Stops accepting handshakes. Queued handshakes still run.
+	 */
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "HandshakeExecutor{" +
+				"queued=" + getQueueDepth() + "/" + queueCapacity +
+				", submitted=" + getSubmittedCount() +
+				", completed=" + getCompletedCount() +
+				", rejected=" + getRejectedCount() +
+				", rateLimited=" + getRateLimitedCount() +
+				", avgQueueNanos=" + getAverageQueueTimeNanos() +
+				", maxQueueNanos=" + getMaxQueueTimeNanos() +
+				'}';
+	}
+	
+	private class TokenBucket
+	{
+		private double tokens;
+		private long updated;
+		
+		TokenBucket(long now)
+		{
+			this.tokens = burst;
+			this.updated = now;
+		}
+		
+		synchronized boolean tryAcquire(long now)
+		{
+			refill(now);
+			if(tokens < 1D)
+				return false;
+			tokens -= 1D;
+			return true;
+		}
+		
+		synchronized boolean isFull(long now)
+		{
+			refill(now);
+			return tokens >= burst;
+		}
+		
+		private void refill(long now)
+		{
+			tokens = Math.min(burst, tokens + (now - updated) * permitsPerNano);
+			updated = now;
+		}
+	}
+}
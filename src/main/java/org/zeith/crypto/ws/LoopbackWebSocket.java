@@ -0,0 +1,180 @@
+package org.zeith.crypto.ws;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory {@link WebSocket} connecting two listeners within the same process.
+ * Messages sent through one end are copied and delivered to the listener of the other end,
+ * honoring its {@link #request(long) demand}. Delivery happens on the thread that sends or requests.
+ * <p>
+ * Useful for warming up and testing the ciphered listeners without any network.
+ */
+public class LoopbackWebSocket
+		implements WebSocket
+{
+	private final WebSocket.Listener listener;
+	private final Queue<Consumer<WebSocket.Listener>> inbound = new ConcurrentLinkedQueue<>();
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicBoolean draining = new AtomicBoolean();
+	private LoopbackWebSocket peer;
+	private volatile boolean inputClosed, outputClosed;
+	
+	private LoopbackWebSocket(WebSocket.Listener listener)
+	{
+		this.listener = listener;
+	}
+	
+	/**
+	 * Connects two listeners with each other and opens both ends, {@code first} before {@code second}.
+	 *
+	 * @param first
+	 * 		the listener opened first (typically the server).
+	 * @param second
+	 * 		the listener opened second (typically the client).
+	 *
+	 * @return the two ends of the connection, in the order of their listeners.
+	 */
+	public static LoopbackWebSocket[] connect(WebSocket.Listener first, WebSocket.Listener second)
+	{
+		LoopbackWebSocket a = new LoopbackWebSocket(first);
+		LoopbackWebSocket b = new LoopbackWebSocket(second);
+		a.peer = b;
+		b.peer = a;
+		first.onOpen(a);
+		second.onOpen(b);
+		return new LoopbackWebSocket[] { a, b };
+	}
+	
+	/**
+	 * Gets the other end of this connection.
+	 */
+	public LoopbackWebSocket getPeer()
+	{
+		return peer;
+	}
+	
+	private static ByteBuffer copy(ByteBuffer data)
+	{
+		ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data).flip();
+		return copy;
+	}
+	
+	private CompletableFuture<WebSocket> deliver(Consumer<WebSocket.Listener> event)
+	{
+		if(outputClosed)
+			return CompletableFuture.failedFuture(new IllegalStateException("Output closed"));
+		peer.inbound.add(event);
+		peer.drain();
+		return CompletableFuture.completedFuture(this);
+	}
+	
+	private void drain()
+	{
+		do
+		{
+			if(!draining.compareAndSet(false, true))
+				return;
+			try
+			{
+				Consumer<WebSocket.Listener> event;
+				while(!inputClosed && demand.get() > 0 && (event = inbound.poll()) != null)
+				{
+					demand.decrementAndGet();
+					event.accept(listener);
+				}
+			} finally
+			{
+				draining.set(false);
+			}
+		} while(!inputClosed && demand.get() > 0 && !inbound.isEmpty());
+	}
+	
+	@Override
+	public CompletableFuture<WebSocket> sendText(CharSequence data, boolean last)
+	{
+		String text = data.toString();
+		return deliver(l -> l.onText(peer, text, last));
+	}
+	
+	@Override
+	public CompletableFuture<WebSocket> sendBinary(ByteBuffer data, boolean last)
+	{
+		ByteBuffer copy = copy(data);
+		return deliver(l -> l.onBinary(peer, copy, last));
+	}
+	
+	@Override
+	public CompletableFuture<WebSocket> sendPing(ByteBuffer message)
+	{
+		ByteBuffer copy = copy(message);
+		return deliver(l -> l.onPing(peer, copy));
+	}
+	
+	@Override
+	public CompletableFuture<WebSocket> sendPong(ByteBuffer message)
+	{
+		ByteBuffer copy = copy(message);
+		return deliver(l -> l.onPong(peer, copy));
+	}
+	
+	@Override
+	public CompletableFuture<WebSocket> sendClose(int statusCode, String reason)
+	{
+		CompletableFuture<WebSocket> result = deliver(l ->
+		{
+			peer.inputClosed = true;
+			l.onClose(peer, statusCode, reason);
+		});
+		outputClosed = true;
+		return result;
+	}
+	
+	@Override
+	public void request(long n)
+	{
+		if(n <= 0)
+			throw new IllegalArgumentException("Demand must be positive: " + n);
+		demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+		drain();
+	}
+	
+	@Override
+	public String getSubprotocol()
+	{
+		return "";
+	}
+	
+	@Override
+	public boolean isOutputClosed()
+	{
+		return outputClosed;
+	}
+	
+	@Override
+	public boolean isInputClosed()
+	{
+		return inputClosed;
+	}
+	
+	@Override
+	public void abort()
+	{
+		// A close sent before still reaches the peer, as it would over the network
+		boolean closeSent = outputClosed;
+		inputClosed = true;
+		outputClosed = true;
+		inbound.clear();
+		if(!closeSent && !peer.inputClosed)
+		{
+			peer.inputClosed = true;
+			peer.outputClosed = true;
+			peer.listener.onClose(peer, 1006, "Aborted");
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.zeith.crypto.ws;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes typed messages directly to and from byte buffers, so that
+ * {@link CipheredWebsocketListener#sendObject(Object, MessageCodec)} can encode a message straight into the
+ * buffer that feeds the cipher, and a {@link DecodingListener} can decode straight from the decrypted output,
+ * without any intermediate {@code String} or {@code byte[]}.
+ *
+ * @param <T>
+ * 		the type of the messages.
+ */
+public interface MessageCodec<T>
+{
+	/**
+	 * Estimates the encoded size of a message. Exact or upper bounds avoid re-encoding; if the estimate is
+	 * too small, encoding is retried with a larger buffer.
+	 *
+	 * @param message
+	 * 		the message to be encoded.
+	 *
+	 * @return the expected number of encoded bytes.
+	 */
+	int sizeHint(T message);
+	
+	/**
+	 * Writes a message into the given buffer, starting at its position.
+	 *
+	 * @param message
+	 * 		the message to encode.
+	 * @param out
+	 * 		the buffer to write to.
+	 *
+	 * @throws java.nio.BufferOverflowException
+	 * 		if the buffer is too small for the message.
+	 */
+	void encode(T message, ByteBuffer out);
+	
+	/**
+	 * Reads a message from the given buffer.
+	 *
+	 * @param in
+	 * 		the decrypted message bytes, from its position to its limit.
+	 *
+	 * @return the decoded message.
+	 */
+	T decode(ByteBuffer in);
+}
@@ -0,0 +1,28 @@
+package org.zeith.crypto.ws;
+
+/**
+ * The lanes of the send queue of a {@link CipheredWebsocketListener}. A lane is only served while all lanes before
+ * it are empty; within a lane, messages are sent in order.
+ * <p>
+ * WebSocket data messages may not interleave, so a data message can only overtake another one at a message
+ * boundary. Control frames may be sent between the frames of a message, see
+ * {@link CipheredWebsocketListener#setMaxFrameSize(int)}.
+ */
+public enum SendPriority
+{
+	/**
+	 * Ping and pong frames, sent before anything else, even between the fragments of a message.
+	 * Control frames are never rejected by a full send queue.
+	 */
+	CONTROL,
+	
+	/**
+	 * Interactive data messages, sent before all normal messages at the next message boundary.
+	 */
+	HIGH,
+	
+	/**
+	 * The default lane of data messages.
+	 */
+	NORMAL
+}
@@ -1,11 +1,13 @@
 package org.zeith.crypto.ws;
 
 import org.zeith.crypto.*;
+import org.zeith.crypto.util.BufferPool;
 
 import java.net.http.WebSocket;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 /**
@@ -16,9 +18,13 @@ public class ServerWebsocketListener
 		extends CipheredWebsocketListener
 {
 	private final ServerKeyGen key;
+	private final HandshakeExecutor executor;
+	private final EarlyDataPolicy earlyData;
+	private volatile boolean deliveringEarlyData;
 	
 	/**
-	 * Constructs a {@code ServerWebsocketListener} using the default cryptographic algorithm.
+	 * Constructs a {@code ServerWebsocketListener} using the {@link ServerKeyGen#shared() shared} RSA key pair,
+	 * so that connections no longer generate a key pair each.
 	 *
 	 * @param delegate
 	 * 		the WebSocket listener to delegate non-encrypted messages to.
@@ -29,7 +35,7 @@ public class ServerWebsocketListener
 	public ServerWebsocketListener(WebSocket.Listener delegate)
 			throws NoSuchAlgorithmException
 	{
-		this(new ServerKeyGen("RSA"), delegate);
+		this(ServerKeyGen.shared(), delegate);
 	}
 	
 	/**
@@ -41,9 +47,55 @@ public class ServerWebsocketListener
 	 * 		the WebSocket listener to delegate non-encrypted messages to.
 	 */
 	public ServerWebsocketListener(ServerKeyGen key, WebSocket.Listener delegate)
+	{
+		this(key, null, delegate);
+	}
+	
+	/**
+	 * Constructs a {@code ServerWebsocketListener} that performs its handshake on a dedicated executor.
+	 *
+	 * @param key
+	 * 		the server key generator.
+	 * @param executor
+	 * 		the executor to run handshakes on, or {@code null} to run them on the WebSocket thread.
+	 * @param delegate
+	 * 		the WebSocket listener to delegate non-encrypted messages to.
+	 */
+	public ServerWebsocketListener(ServerKeyGen key, HandshakeExecutor executor, WebSocket.Listener delegate)
+	{
+		this(key, executor, null, delegate);
+	}
+	
+	/**
+	 * Constructs a {@code ServerWebsocketListener} that accepts early data from clients that know its key
+	 * (see {@link ClientWebsocketListener}). Early messages are decrypted together with the handshake and passed
+	 * to the delegate before any other message; {@link #isDeliveringEarlyData()} tells them apart.
+	 *
+	 * @param key
+	 * 		the server key generator.
+	 * @param executor
+	 * 		the executor to run handshakes on, or {@code null} to run them on the WebSocket thread.
+	 * @param earlyData
+	 * 		the limits and replay cache for early data, or {@code null} to refuse early data.
+	 * @param delegate
+	 * 		the WebSocket listener to delegate non-encrypted messages to.
+	 */
+	public ServerWebsocketListener(ServerKeyGen key, HandshakeExecutor executor, EarlyDataPolicy earlyData, WebSocket.Listener delegate)
 	{
 		super(delegate);
 		this.key = key;
+		this.executor = executor;
+		this.earlyData = earlyData;
+	}
+	
+	/**
+	 * Gets whether the delegate is currently being handed early data. Early data may have been replayed
+	 * within the limits of the {@link EarlyDataPolicy}, so delegates should only act on idempotent requests
+	 * while this is true.
+	 */
+	public boolean isDeliveringEarlyData()
+	{
+		return deliveringEarlyData;
 	}
 	
 	/**
@@ -59,14 +111,15 @@ public class ServerWebsocketListener
 		
 		var k = key.generateServerShake();
 		var alg = key.getAlgorithm().getBytes(StandardCharsets.UTF_8);
-		ByteBuffer buf = ByteBuffer.allocate(4 + 2 + alg.length + 2 + k.length);
+		BufferPool.Lease lease = getBufferPool().acquire(4 + 2 + alg.length + 2 + k.length);
+		ByteBuffer buf = lease.buffer();
 		buf.putInt(MAGIC_NUMBER);
 		buf.putShort((short) alg.length).put(alg);
 		buf.putShort((short) k.length).put(k);
 		
-		webSocket.sendBinary(buf.flip(), true)
-				 // Pass the onOpen only after our packet was sent!
-				 .thenAccept(super::onOpen);
+		releaseAfter(lease, () -> webSocket.sendBinary(buf.flip(), true))
+				// Pass the onOpen only after our packet was sent!
+				.thenAccept(super::onOpen);
 	}
 	
 	/**
@@ -86,15 +139,37 @@ public class ServerWebsocketListener
 	{
 		if(cipher == null)
 		{
-			if(data.getInt() == MAGIC_NUMBER)
+			int magic = data.getInt();
+			if(magic == EARLY_MAGIC_NUMBER)
+				return acceptEarlyData(webSocket, data);
+			
+			if(magic == MAGIC_NUMBER)
 			{
 				byte[] key = new byte[data.getShort()];
 				data.get(key);
+				
+				if(executor != null)
+					return executor.submit(webSocket, () -> this.key.generateCipher(key))
+								   .handle((sc, err) ->
+								   {
+									   if(err != null)
+									   {
+										   rejectHandshake(webSocket, err);
+										   return null;
+									   }
+									   this.cipher = sc;
+									   handshake.complete(webSocket);
+									   webSocket.request(1L);
+									   return null;
+								   });
+				
 				try
 				{
 					this.cipher = this.key.generateCipher(key);
+					handshake.complete(webSocket);
 				} catch(GeneralSecurityException e)
 				{
+					handshake.completeExceptionally(e);
 					throw new RuntimeException(e);
 				}
 			}
@@ -104,4 +179,247 @@ public class ServerWebsocketListener
 		}
 		return super.onBinary(webSocket, data, last);
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Processes a client handshake that carries early data.
+	 */
+	private CompletionStage<?> acceptEarlyData(WebSocket webSocket, ByteBuffer data)
+	{
+		if(earlyData == null)
+		{
+			refuseEarlyData(webSocket, "Early data is not accepted");
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		long timestamp = data.remaining() >= 8 + 2 ? data.getLong() : 0L;
+		int shakeLength = data.remaining() >= 2 ? data.getShort() & 0xFFFF : -1;
+		if(shakeLength < 0 || shakeLength > data.remaining())
+		{
+			rejectHandshake(webSocket, new GeneralSecurityException("Malformed early data handshake"));
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		// Checked before the private key operation, so oversized or stale early data costs the server nothing
+		if(!earlyData.admitsPayload(data.remaining() - shakeLength))
+		{
+			refuseEarlyData(webSocket, "Early data too large");
+			return CompletableFuture.completedFuture(null);
+		}
+		if(!earlyData.admitsTimestamp(timestamp))
+		{
+			refuseEarlyData(webSocket, "Early data expired");
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		byte[] shake = new byte[shakeLength];
+		data.get(shake);
+		byte[] payload = new byte[data.remaining()];
+		data.get(payload);
+		
+		if(executor != null)
+			return executor.submit(webSocket, () -> key.generateCipher(shake))
+						   .handle((sc, err) ->
+						   {
+							   if(err != null) rejectHandshake(webSocket, err);
+							   else finishEarlyData(webSocket, sc, shake, timestamp, payload);
+							   return null;
+						   });
+		
+		try
+		{
+			finishEarlyData(webSocket, key.generateCipher(shake), shake, timestamp, payload);
+		} catch(GeneralSecurityException e)
+		{
+			rejectHandshake(webSocket, e);
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+	
+	private void finishEarlyData(WebSocket webSocket, ServerCipher sc, byte[] shake, long timestamp, byte[] payload)
+	{
+		List<ByteBuffer> messages = new ArrayList<>();
+		int bytes = 0;
+		try
+		{
+			ByteBuffer plain = ByteBuffer.wrap(sc.decrypt(payload));
+			if(plain.getLong() != timestamp)
+				throw new GeneralSecurityException("Early data timestamp was tampered with");
+			int count = plain.getShort() & 0xFFFF;
+			for(int i = 0; i < count; ++i)
+			{
+				int length = plain.getInt();
+				if(length < 0 || length > plain.remaining())
+					throw new GeneralSecurityException("Malformed early data");
+				messages.add(plain.slice(plain.position(), length));
+				plain.position(plain.position() + length);
+				bytes += length;
+			}
+		} catch(GeneralSecurityException | RuntimeException e)
+		{
+			rejectHandshake(webSocket, e);
+			return;
+		}
+		
+		if(!earlyData.accept(shake, timestamp, messages.size(), bytes))
+		{
+			refuseEarlyData(webSocket, "Early data refused");
+			return;
+		}
+		
+		this.cipher = sc;
+		handshake.complete(webSocket);
+		
+		if(messages.isEmpty())
+		{
+			webSocket.request(1L);
+			return;
+		}
+		
+		EarlyDataWebSocket early = new EarlyDataWebSocket(webSocket, messages.size());
+		deliveringEarlyData = true;
+		try
+		{
+			for(ByteBuffer message : messages)
+				getDelegate().onBinary(early, message, true);
+		} finally
+		{
+			deliveringEarlyData = false;
+			early.finish();
+		}
+	}
+	
+	private void refuseEarlyData(WebSocket webSocket, String reason)
+	{
+		handshake.completeExceptionally(new GeneralSecurityException(reason));
+		webSocket.sendClose(EarlyDataPolicy.POLICY_VIOLATION, reason)
+				 .whenComplete((ws, e) -> webSocket.abort());
+	}
+	
+	/**
+	 * Fails the handshake of a connection. Connections refused by the {@link HandshakeExecutor}
+	 * are asked to retry later, any other failure aborts the connection.
+	 */
+	private void rejectHandshake(WebSocket webSocket, Throwable error)
+	{
+		if(error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+		handshake.completeExceptionally(error);
+		
+		if(error instanceof RejectedExecutionException)
+			webSocket.sendClose(HandshakeExecutor.TRY_AGAIN_LATER, "Server busy")
+					 .whenComplete((ws, e) -> webSocket.abort());
+		else
+			webSocket.abort();
+	}
+	
+	/**
+	 * The connection as handed to the delegate along with early messages. Early messages did not arrive as frames of
+	 * their own, so the demand the delegate requests for all but the last of them is not passed on, and demand
+	 * requested during the delivery is only passed on after it, so that no other message comes in between.
+	 */
+	private static final class EarlyDataWebSocket
+			implements WebSocket
+	{
+		private final WebSocket webSocket;
+		private long absorbed, held;
+		private boolean delivering = true;
+		
+		EarlyDataWebSocket(WebSocket webSocket, int messages)
+		{
+			this.webSocket = webSocket;
+			this.absorbed = messages - 1;
+		}
+		
+		void finish()
+		{
+			long pass;
+			synchronized(this)
+			{
+				delivering = false;
+				pass = held;
+				held = 0L;
+			}
+			if(pass > 0L)
+				webSocket.request(pass);
+		}
+		
+		@Override
+		public void request(long n)
+		{
+			if(n <= 0L)
+			{
+				webSocket.request(n);
+				return;
+			}
+			
+			long pass;
+			synchronized(this)
+			{
+				long taken = Math.min(n, absorbed);
+				absorbed -= taken;
+				pass = n - taken;
+				if(delivering)
+				{
+					held = held + pass < 0L ? Long.MAX_VALUE : held + pass;
+					return;
+				}
+			}
+			if(pass > 0L)
+				webSocket.request(pass);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendText(CharSequence data, boolean last)
+		{
+			return webSocket.sendText(data, last);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendBinary(ByteBuffer data, boolean last)
+		{
+			return webSocket.sendBinary(data, last);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendPing(ByteBuffer message)
+		{
+			return webSocket.sendPing(message);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendPong(ByteBuffer message)
+		{
+			return webSocket.sendPong(message);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendClose(int statusCode, String reason)
+		{
+			return webSocket.sendClose(statusCode, reason);
+		}
+		
+		@Override
+		public String getSubprotocol()
+		{
+			return webSocket.getSubprotocol();
+		}
+		
+		@Override
+		public boolean isOutputClosed()
+		{
+			return webSocket.isOutputClosed();
+		}
+		
+		@Override
+		public boolean isInputClosed()
+		{
+			return webSocket.isInputClosed();
+		}
+		
+		@Override
+		public void abort()
+		{
+			webSocket.abort();
+		}
+	}
+}
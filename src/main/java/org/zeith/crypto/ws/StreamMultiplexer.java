@@ -0,0 +1,679 @@
+package org.zeith.crypto.ws;
+
+import org.zeith.crypto.util.BufferPool;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Carries several independent logical streams over a single ciphered WebSocket connection,
+ * so that one handshake and one socket serve all subsystems of a client.
+ * <p>
+ * The multiplexer acts as the delegate of a {@link CipheredWebsocketListener}, which it creates itself:
+ * <pre>
+ * StreamMultiplexer mux = new StreamMultiplexer(d -&gt; new ClientWebsocketListener("AES", d), id -&gt; null);
+ * httpClient.newWebSocketBuilder().buildAsync(uri, mux.getConnection());
+ * StreamMultiplexer.Stream chat = mux.open(1, chatListener);
+ * </pre>
+ * Every binary message on the connection is one frame of {@code [int stream id][byte type][byte flags][payload]},
+ * encrypted as a whole, so stream IDs never appear in plaintext on the wire.
+ * <p>
+ * Closing a stream fails the messages the peer has not sent yet, and the peer answers with a close of its own.
+ * A stream stays registered until both closes have crossed, so frames still in flight cannot reopen it.
+ * {@link Stream#reset() Resetting} a stream also drops this end's own unsent messages and closes it right away.
+ * <p>
+ * Messages are cut into fragments of at most {@code fragmentSize} bytes, and the streams with pending data take
+ * turns sending one fragment each, so a large transfer on one stream does not hold back small messages
+ * on the others. Each stream may only have {@code window} unacknowledged bytes in flight; the receiver
+ * returns credit as its {@link StreamListener} consumes data. Both ends must use the same window.
+ */
+public class StreamMultiplexer
+		implements WebSocket.Listener
+{
+	/**
+	 * The default number of bytes a stream may have in flight.
+	 */
+	public static final int DEFAULT_WINDOW = 256 * 1024;
+	
+	/**
+	 * The default maximum number of payload bytes in one frame.
+	 */
+	public static final int DEFAULT_FRAGMENT_SIZE = 16 * 1024;
+	
+	private static final byte DATA = 0, CREDIT = 1;
+	private static final byte FLAG_FIN = 1, FLAG_CLOSE = 2;
+	private static final int HEADER = 4 + 1 + 1;
+	
+	private final CipheredWebsocketListener connection;
+	private final IntFunction<StreamListener> acceptor;
+	private final int window, fragmentSize;
+	
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+	private final Object lock = new Object();
+	private final ArrayDeque<Stream> ready = new ArrayDeque<>();
+	private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+	private boolean sending;
+	
+	private ByteBuffer partial;
+	
+	/**
+	 * Constructs a {@code StreamMultiplexer} with the default window and fragment size.
+	 *
+	 * @param transport
+	 * 		creates the ciphered listener of the connection around the given delegate,
+	 * 		e.g. {@code d -> new ClientWebsocketListener("AES", d)}.
+	 * @param acceptor
+	 * 		returns the listener for a stream opened by the peer, or {@code null} to refuse it.
+	 */
+	public StreamMultiplexer(Function<WebSocket.Listener, ? extends CipheredWebsocketListener> transport, IntFunction<StreamListener> acceptor)
+	{
+		this(transport, acceptor, DEFAULT_WINDOW, DEFAULT_FRAGMENT_SIZE);
+	}
+	
+	/**
+	 * Constructs a {@code StreamMultiplexer}.
+	 *
+	 * @param transport
+	 * 		creates the ciphered listener of the connection around the given delegate,
+	 * 		e.g. {@code d -> new ClientWebsocketListener("AES", d)}.
+	 * @param acceptor
+	 * 		returns the listener for a stream opened by the peer, or {@code null} to refuse it.
+	 * @param window
+	 * 		the number of bytes a stream may have in flight before the peer returns credit.
+	 * @param fragmentSize
+	 * 		the maximum number of payload bytes in one frame.
+	 */
+	public StreamMultiplexer(Function<WebSocket.Listener, ? extends CipheredWebsocketListener> transport, IntFunction<StreamListener> acceptor, int window, int fragmentSize)
+	{
+		if(window < 1 || fragmentSize < 1)
+			throw new IllegalArgumentException("Window and fragment size must be positive.");
+		this.acceptor = acceptor;
+		this.window = window;
+		this.fragmentSize = fragmentSize;
+		this.connection = transport.apply(this);
+		connection.getHandshake().thenRun(this::pump);
+	}
+	
+	/**
+	 * Gets the ciphered listener to connect the WebSocket with.
+	 */
+	public CipheredWebsocketListener getConnection()
+	{
+		return connection;
+	}
+	
+	/**
+	 * Opens a stream. Streams need not be announced: the peer learns about a stream with its first frame.
+	 * Both ends may therefore agree on fixed IDs, e.g. one per subsystem.
+	 *
+	 * @param id
+	 * 		the stream ID.
+	 * @param listener
+	 * 		receives the messages the peer sends on this stream.
+	 *
+	 * @return the opened stream.
+	 *
+	 * @throws IllegalStateException
+	 * 		if a stream with that ID is already open.
+	 */
+	public Stream open(int id, StreamListener listener)
+	{
+		Stream stream = new Stream(id, Objects.requireNonNull(listener, "listener"));
+		if(streams.putIfAbsent(id, stream) != null)
+			throw new IllegalStateException("Stream " + id + " is already open.");
+		listener.onOpen(stream);
+		return stream;
+	}
+	
+	/**
+	 * Gets an open stream.
+	 *
+	 * @param id
+	 * 		the stream ID.
+	 *
+	 * @return the stream, or {@code null} if no stream with that ID is open.
+	 */
+	public Stream getStream(int id)
+	{
+		return streams.get(id);
+	}
+	
+	@Override
+	public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+	{
+		if(!last || partial != null)
+		{
+			// The transport may split a frame; collect it before parsing
+			ByteBuffer joined = ByteBuffer.allocate((partial != null ? partial.remaining() : 0) + data.remaining());
+			if(partial != null) joined.put(partial);
+			partial = joined.put(data).flip();
+			if(!last)
+			{
+				webSocket.request(1L);
+				return null;
+			}
+			data = partial;
+			partial = null;
+		}
+		
+		if(data.remaining() < HEADER)
+		{
+			// Frames are authenticated, so a malformed one means the peer does not speak this protocol
+			protocolError(webSocket, "Frame of " + data.remaining() + " bytes is shorter than its header");
+			return null;
+		}
+		
+		int id = data.getInt();
+		byte type = data.get();
+		byte flags = data.get();
+		if(type == CREDIT)
+		{
+			if(data.remaining() < 4)
+			{
+				protocolError(webSocket, "Credit frame of stream " + id + " carries no credit");
+				return null;
+			}
+			receiveCredit(id, data.getInt());
+		} else if(type == DATA)
+			receiveData(id, flags, data);
+		
+		webSocket.request(1L);
+		return null;
+	}
+	
+	private void receiveCredit(int id, int credit)
+	{
+		Stream stream = streams.get(id);
+		if(stream == null)
+			return;
+		synchronized(lock)
+		{
+			stream.credit += credit;
+			stream.schedule();
+		}
+		pump();
+	}
+	
+	private void receiveData(int id, byte flags, ByteBuffer payload)
+	{
+		Stream stream = streams.get(id);
+		if(stream == null)
+		{
+			StreamListener listener = acceptor != null ? acceptor.apply(id) : null;
+			if(listener == null)
+				return;
+			stream = open(id, listener);
+		}
+		
+		int length = payload.remaining();
+		if(length > 0 || (flags & FLAG_FIN) != 0)
+		{
+			Stream s = stream;
+			CompletionStage<?> stage = stream.listener.onData(stream, payload, (flags & FLAG_FIN) != 0);
+			if(stage == null) s.consumed(length);
+			else stage.whenComplete((r, err) -> s.consumed(length));
+		}
+		
+		if((flags & FLAG_CLOSE) != 0)
+			stream.peerClosed();
+	}
+	
+	private void protocolError(WebSocket webSocket, String message)
+	{
+		shutdown(new WebSocketDecryptionException(message));
+		webSocket.abort();
+	}
+	
+	@Override
+	public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason)
+	{
+		shutdown(new WebSocketDecryptionException("Connection closed (" + statusCode + ")"));
+		return null;
+	}
+	
+	@Override
+	public void onError(WebSocket webSocket, Throwable error)
+	{
+		shutdown(error);
+	}
+	
+	private void shutdown(Throwable error)
+	{
+		List<Stream> open = new ArrayList<>(streams.values());
+		streams.clear();
+		synchronized(lock)
+		{
+			ready.clear();
+			control.clear();
+			for(Stream stream : open)
+			{
+				for(Pending p : stream.queue)
+					p.future.completeExceptionally(error);
+				stream.queue.clear();
+				stream.closed = true;
+			}
+			// Streams closed by the peer have already notified their listener
+			open.removeIf(stream -> stream.peerClosed);
+		}
+		for(Stream stream : open)
+			stream.listener.onClose(stream);
+	}
+	
+	/**
+	 * Sends frames until the connection is busy or nothing is left to send. Only one frame is in flight at a time.
+	 */
+	private void pump()
+	{
+		while(true)
+		{
+			Frame frame;
+			synchronized(lock)
+			{
+				if(sending || !connection.getHandshake().isDone() || connection.getWebSocket() == null)
+					return;
+				frame = nextFrame();
+				if(frame == null)
+					return;
+				sending = true;
+			}
+			
+			CompletableFuture<WebSocket> send;
+			try
+			{
+				send = connection.sendBinary(frame.lease.buffer(), true);
+			} catch(RuntimeException e)
+			{
+				send = CompletableFuture.failedFuture(e);
+			}
+			
+			// Loop rather than recurse while sends complete synchronously
+			if(send.isDone())
+			{
+				sent(frame, send);
+				continue;
+			}
+			CompletableFuture<WebSocket> pending = send;
+			send.whenComplete((ws, err) ->
+			{
+				sent(frame, pending);
+				pump();
+			});
+			return;
+		}
+	}
+	
+	private void sent(Frame frame, CompletableFuture<WebSocket> send)
+	{
+		frame.lease.release();
+		synchronized(lock)
+		{
+			sending = false;
+		}
+		
+		Throwable error = send.handle((ws, err) -> err).join();
+		if(error != null)
+		{
+			// A lost fragment leaves the peer's stream out of step, so the whole connection is dropped
+			if(frame.done != null) frame.done.completeExceptionally(error);
+			shutdown(error);
+			WebSocket ws = connection.getWebSocket();
+			if(ws != null) ws.abort();
+		} else if(frame.done != null)
+			frame.done.complete(null);
+	}
+	
+	private Frame nextFrame()
+	{
+		ByteBuffer credit = control.poll();
+		if(credit != null)
+		{
+			BufferPool.Lease lease = connection.getBufferPool().acquire(credit.remaining());
+			lease.buffer().put(credit).flip();
+			return new Frame(lease, null);
+		}
+		
+		Stream stream;
+		while((stream = ready.poll()) != null)
+		{
+			Pending head = stream.queue.peek();
+			if(head == null || (stream.credit <= 0 && head.data.hasRemaining()))
+			{
+				// Rescheduled once the stream gets more data or credit
+				stream.scheduled = false;
+				continue;
+			}
+			
+			int n = (int) Math.min(Math.min(fragmentSize, head.data.remaining()), Math.max(0L, stream.credit));
+			boolean complete = n == head.data.remaining();
+			
+			BufferPool.Lease lease = connection.getBufferPool().acquire(HEADER + n);
+			ByteBuffer buf = lease.buffer();
+			buf.putInt(stream.id).put(DATA).put(complete ? head.flags : 0);
+			buf.put(head.data.slice(head.data.position(), n)).flip();
+			head.data.position(head.data.position() + n);
+			stream.credit -= n;
+			
+			CompletableFuture<Void> done = null;
+			if(complete)
+			{
+				stream.queue.poll();
+				done = head.future;
+			}
+			
+			// Back of the line, so every stream with data gets a turn
+			if(stream.queue.isEmpty()) stream.scheduled = false;
+			else ready.add(stream);
+			return new Frame(lease, done);
+		}
+		return null;
+	}
+	
+	/**
+	 * Receives the messages of one stream.
+	 */
+	public interface StreamListener
+	{
+		/**
+		 * Called once the stream has been opened, locally or by the peer.
+		 *
+		 * @param stream
+		 * 		the opened stream.
+		 */
+		default void onOpen(Stream stream)
+		{
+		}
+		
+		/**
+		 * Receives a part of a message. Credit for the data is returned to the peer once the
+		 * returned stage completes, or immediately if it is {@code null}.
+		 *
+		 * @param stream
+		 * 		the stream the data arrived on.
+		 * @param data
+		 * 		the decrypted payload; only valid until the returned stage completes.
+		 * @param last
+		 * 		whether this part ends the message.
+		 *
+		 * @return a {@link CompletionStage} completed once the data has been consumed, or {@code null}.
+		 */
+		default CompletionStage<?> onData(Stream stream, ByteBuffer data, boolean last)
+		{
+			return null;
+		}
+		
+		/**
+		 * Called once the peer has closed the stream or answered its close, or the connection has ended.
+		 *
+		 * @param stream
+		 * 		the closed stream.
+		 */
+		default void onClose(Stream stream)
+		{
+		}
+	}
+	
+	/**
+	 * One logical stream of a {@link StreamMultiplexer}.
+	 */
+	public final class Stream
+	{
+		private final int id;
+		private final StreamListener listener;
+		
+		// Guarded by the multiplexer's lock
+		private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+		private long credit = window, unacknowledged;
+		private boolean scheduled, closed, closeSent, peerClosed;
+		
+		private Stream(int id, StreamListener listener)
+		{
+			this.id = id;
+			this.listener = listener;
+		}
+		
+		/**
+		 * Gets the ID of this stream.
+		 */
+		public int getId()
+		{
+			return id;
+		}
+		
+		/**
+		 * Gets the multiplexer this stream belongs to.
+		 */
+		public StreamMultiplexer getMultiplexer()
+		{
+			return StreamMultiplexer.this;
+		}
+		
+		/**
+		 * Gets the number of bytes this stream may currently send before waiting for credit.
+		 */
+		public long getCredit()
+		{
+			synchronized(lock)
+			{
+				return credit;
+			}
+		}
+		
+		/**
+		 * Gets the number of messages waiting to be sent.
+		 */
+		public int getQueuedCount()
+		{
+			synchronized(lock)
+			{
+				return queue.size();
+			}
+		}
+		
+		/**
+		 * Sends a whole message on this stream.
+		 *
+		 * @param data
+		 * 		the message; its content must not change until the returned future completes.
+		 *
+		 * @return a future completed once the last fragment of the message has been sent.
+		 */
+		public CompletableFuture<Void> send(ByteBuffer data)
+		{
+			return send(data, true);
+		}
+		
+		/**
+		 * Sends a part of a message on this stream.
+		 *
+		 * @param data
+		 * 		the message part; its content must not change until the returned future completes.
+		 * @param last
+		 * 		whether this part ends the message.
+		 *
+		 * @return a future completed once the last fragment of the part has been sent.
+		 */
+		public CompletableFuture<Void> send(ByteBuffer data, boolean last)
+		{
+			return enqueue(data, last ? FLAG_FIN : 0);
+		}
+		
+		/**
+		 * Closes this stream once all queued messages have been sent. The peer's listener is notified,
+		 * and this stream's listener once the peer has answered.
+		 *
+		 * @return a future completed once the close has been sent.
+		 */
+		public CompletableFuture<Void> close()
+		{
+			return enqueue(ByteBuffer.allocate(0), FLAG_CLOSE);
+		}
+		
+		/**
+		 * Resets this stream: fails the messages not sent yet, including the rest of a message already partly sent,
+		 * and closes the stream without waiting for them. The peer's listener may thus see the close in the
+		 * middle of a message.
+		 *
+		 * @return a future completed once the close has been sent.
+		 */
+		public CompletableFuture<Void> reset()
+		{
+			List<Pending> failed = new ArrayList<>();
+			Pending close = null;
+			synchronized(lock)
+			{
+				for(Iterator<Pending> it = queue.iterator(); it.hasNext(); )
+				{
+					Pending p = it.next();
+					if((p.flags & FLAG_CLOSE) != 0)
+						close = p;
+					else
+					{
+						failed.add(p);
+						it.remove();
+					}
+				}
+				if(close == null)
+				{
+					if(closed)
+						return CompletableFuture.completedFuture(null);
+					closed = true;
+					close = new Pending(ByteBuffer.allocate(0), FLAG_CLOSE);
+					close.future.whenComplete((r, err) -> closeSent());
+					queue.add(close);
+				}
+				schedule();
+			}
+			
+			IllegalStateException error = new IllegalStateException("Stream " + id + " was reset.");
+			for(Pending p : failed)
+				p.future.completeExceptionally(error);
+			pump();
+			return close.future;
+		}
+		
+		private CompletableFuture<Void> enqueue(ByteBuffer data, byte flags)
+		{
+			Pending pending = new Pending(data.slice(), flags);
+			synchronized(lock)
+			{
+				if(closed)
+					return CompletableFuture.failedFuture(new IllegalStateException("Stream " + id + " is closed."));
+				if((flags & FLAG_CLOSE) != 0)
+				{
+					closed = true;
+					// Registered until the close is sent, so that the queued messages still receive credit
+					pending.future.whenComplete((r, err) -> closeSent());
+				}
+				queue.add(pending);
+				schedule();
+			}
+			pump();
+			return pending.future;
+		}
+		
+		private void closeSent()
+		{
+			synchronized(lock)
+			{
+				closeSent = true;
+				if(!peerClosed)
+					return;
+			}
+			streams.remove(id, this);
+		}
+		
+		/**
+		 * Handles the peer's close: fails the messages not sent yet, answers with a close unless this end
+		 * has already closed, and unregisters the stream once both closes have crossed.
+		 */
+		private void peerClosed()
+		{
+			List<Pending> failed = new ArrayList<>();
+			boolean remove;
+			synchronized(lock)
+			{
+				peerClosed = true;
+				for(Iterator<Pending> it = queue.iterator(); it.hasNext(); )
+				{
+					Pending p = it.next();
+					if((p.flags & FLAG_CLOSE) == 0)
+					{
+						failed.add(p);
+						it.remove();
+					}
+				}
+				if(!closed)
+				{
+					closed = true;
+					Pending answer = new Pending(ByteBuffer.allocate(0), FLAG_CLOSE);
+					answer.future.whenComplete((r, err) -> closeSent());
+					queue.add(answer);
+				}
+				schedule();
+				remove = closeSent;
+			}
+			
+			if(remove) streams.remove(id, this);
+			IllegalStateException error = new IllegalStateException("Stream " + id + " was closed by the peer.");
+			for(Pending p : failed)
+				p.future.completeExceptionally(error);
+			listener.onClose(this);
+			pump();
+		}
+		
+		private void schedule()
+		{
+			if(!scheduled && !queue.isEmpty())
+			{
+				scheduled = true;
+				ready.add(this);
+			}
+		}
+		
+		private void consumed(int bytes)
+		{
+			int grant;
+			synchronized(lock)
+			{
+				unacknowledged += bytes;
+				// Return credit in batches of half a window to keep the control traffic low
+				if(unacknowledged < window / 2 || !streams.containsKey(id))
+					return;
+				grant = (int) unacknowledged;
+				unacknowledged = 0;
+				control.add(ByteBuffer.allocate(HEADER + 4).putInt(id).put(CREDIT).put((byte) 0).putInt(grant).flip());
+			}
+			pump();
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "Stream{" +
+					"id=" + id +
+					", credit=" + getCredit() +
+					", queued=" + getQueuedCount() +
+					'}';
+		}
+	}
+	
+	private static class Pending
+	{
+		final ByteBuffer data;
+		final byte flags;
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+		
+		Pending(ByteBuffer data, byte flags)
+		{
+			this.data = data;
+			this.flags = flags;
+		}
+	}
+	
+	private record Frame(BufferPool.Lease lease, CompletableFuture<Void> done)
+	{
+	}
+}
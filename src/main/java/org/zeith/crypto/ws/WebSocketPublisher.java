@@ -0,0 +1,289 @@
+package org.zeith.crypto.ws;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link WebSocket.Listener} exposing the messages it receives as {@link Flow.Publisher}s, for use as the
+ * delegate of a {@link CipheredWebsocketListener} so that decrypted messages can feed reactive pipelines.
+ * <p>
+ * Demand is not buffered: every {@link Flow.Subscription#request(long) request(n)} of a subscriber is passed on
+ * as {@link WebSocket#request(long) request(n)} to the WebSocket, so a slow subscriber stops the connection from
+ * reading instead of letting messages pile up. Since the WebSocket has a single demand counter, a message of the
+ * other kind (text while binary was requested, or the reverse) is held until its own subscriber requests it;
+ * an unbounded request on one publisher therefore lifts backpressure for both.
+ * Split binary messages are joined, so every item is a whole message. Each publisher accepts one subscriber.
+ */
+public class WebSocketPublisher
+		implements WebSocket.Listener
+{
+	private final Channel<ByteBuffer> binary = new Channel<>();
+	private final Channel<CharSequence> text = new Channel<>();
+	
+	private volatile WebSocket webSocket;
+	private long pendingDemand;
+	private ByteBuffer partial;
+	
+	/**
+	 * Gets the publisher of received binary messages.
+	 */
+	public Flow.Publisher<ByteBuffer> binary()
+	{
+		return binary;
+	}
+	
+	/**
+	 * Gets the publisher of received text messages.
+	 */
+	public Flow.Publisher<CharSequence> text()
+	{
+		return text;
+	}
+	
+	private void request(long n)
+	{
+		WebSocket ws;
+		synchronized(this)
+		{
+			ws = webSocket;
+			if(ws == null)
+			{
+				// Not open yet; passed on in onOpen
+				pendingDemand = pendingDemand + n < 0 ? Long.MAX_VALUE : pendingDemand + n;
+				return;
+			}
+		}
+		ws.request(n);
+	}
+	
+	@Override
+	public void onOpen(WebSocket webSocket)
+	{
+		long demand;
+		synchronized(this)
+		{
+			this.webSocket = webSocket;
+			demand = pendingDemand;
+			pendingDemand = 0L;
+		}
+		// The ciphered listener replaces the demand its handshake takes, but it needs some to receive the handshake
+		webSocket.request(Math.max(1L, demand));
+	}
+	
+	@Override
+	public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+	{
+		if(!last || partial != null)
+		{
+			ByteBuffer joined = ByteBuffer.allocate((partial != null ? partial.remaining() : 0) + data.remaining());
+			if(partial != null) joined.put(partial);
+			partial = joined.put(data).flip();
+			if(!last)
+			{
+				// Parts do not count as items, so replace the demand they used
+				webSocket.request(1L);
+				return null;
+			}
+			data = partial;
+			partial = null;
+		}
+		
+		if(!binary.offer(data))
+			webSocket.request(1L);
+		return null;
+	}
+	
+	@Override
+	public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last)
+	{
+		if(!text.offer(data))
+			webSocket.request(1L);
+		return null;
+	}
+	
+	@Override
+	public CompletionStage<?> onPing(WebSocket webSocket, ByteBuffer message)
+	{
+		webSocket.request(1L);
+		return null;
+	}
+	
+	@Override
+	public CompletionStage<?> onPong(WebSocket webSocket, ByteBuffer message)
+	{
+		webSocket.request(1L);
+		return null;
+	}
+	
+	@Override
+	public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason)
+	{
+		binary.terminate(null);
+		text.terminate(null);
+		return null;
+	}
+	
+	@Override
+	public void onError(WebSocket webSocket, Throwable error)
+	{
+		binary.terminate(error);
+		text.terminate(error);
+	}
+	
+	/**
+	 * A publisher of one kind of message, holding messages that arrived before their subscriber requested them.
+	 */
+	private class Channel<T>
+			implements Flow.Publisher<T>, Flow.Subscription
+	{
+		private final ArrayDeque<T> buffer = new ArrayDeque<>();
+		private final AtomicInteger wip = new AtomicInteger();
+		private Flow.Subscriber<? super T> subscriber;
+		private long demand;
+		private boolean cancelled, done, terminated;
+		private Throwable error;
+		
+		@Override
+		public void subscribe(Flow.Subscriber<? super T> subscriber)
+		{
+			synchronized(this)
+			{
+				if(this.subscriber == null)
+				{
+					this.subscriber = subscriber;
+					subscriber = null;
+				}
+			}
+			
+			if(subscriber != null)
+			{
+				subscriber.onSubscribe(new Flow.Subscription()
+				{
+					@Override
+					public void request(long n)
+					{
+					}
+					
+					@Override
+					public void cancel()
+					{
+					}
+				});
+				subscriber.onError(new IllegalStateException("This publisher only supports a single subscriber."));
+				return;
+			}
+			
+			this.subscriber.onSubscribe(this);
+			drain();
+		}
+		
+		@Override
+		public void request(long n)
+		{
+			if(n <= 0)
+			{
+				terminate(new IllegalArgumentException("Demand must be positive: " + n));
+				return;
+			}
+			
+			synchronized(this)
+			{
+				if(cancelled || terminated)
+					return;
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			}
+			WebSocketPublisher.this.request(n);
+			drain();
+		}
+		
+		@Override
+		public void cancel()
+		{
+			int held;
+			synchronized(this)
+			{
+				cancelled = true;
+				held = buffer.size();
+				buffer.clear();
+			}
+			// Messages held for this channel took demand meant for the other one
+			if(held > 0)
+				WebSocketPublisher.this.request(held);
+		}
+		
+		/**
+		 * Hands a message to the subscriber, or holds it until requested.
+		 *
+		 * @return false if the channel was cancelled and the message dropped.
+		 */
+		boolean offer(T item)
+		{
+			synchronized(this)
+			{
+				if(cancelled || terminated)
+					return false;
+				buffer.add(item);
+			}
+			drain();
+			return true;
+		}
+		
+		void terminate(Throwable error)
+		{
+			synchronized(this)
+			{
+				if(done)
+					return;
+				done = true;
+				this.error = error;
+			}
+			drain();
+		}
+		
+		private void drain()
+		{
+			if(wip.getAndIncrement() != 0)
+				return;
+			
+			int missed = 1;
+			do
+			{
+				while(true)
+				{
+					T item;
+					synchronized(this)
+					{
+						if(subscriber == null || cancelled || demand == 0 || buffer.isEmpty())
+							break;
+						item = buffer.poll();
+						if(demand != Long.MAX_VALUE) --demand;
+					}
+					subscriber.onNext(item);
+				}
+				
+				Throwable failure = null;
+				boolean finish = false;
+				synchronized(this)
+				{
+					if(subscriber != null && done && !terminated && !cancelled && (buffer.isEmpty() || error != null))
+					{
+						terminated = true;
+						finish = true;
+						failure = error;
+						buffer.clear();
+					}
+				}
+				if(finish)
+				{
+					if(failure != null) subscriber.onError(failure);
+					else subscriber.onComplete();
+				}
+				
+				missed = wip.addAndGet(-missed);
+			} while(missed != 0);
+		}
+	}
+}
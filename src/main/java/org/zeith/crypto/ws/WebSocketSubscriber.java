@@ -0,0 +1,172 @@
+package org.zeith.crypto.ws;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+
+/**
+ * A {@link Flow.Subscriber} that encrypts and sends every item it receives through a {@link CipheredWebsocketListener}.
+ * <p>
+ * Items are only requested as sends complete, keeping at most {@code inFlight} items queued on the connection,
+ * so a slow connection slows down the upstream publisher rather than buffering without bound.
+ *
+ * @param <T>
+ * 		the type of the items.
+ */
+public class WebSocketSubscriber<T>
+		implements Flow.Subscriber<T>
+{
+	private final CipheredWebsocketListener listener;
+	private final BiFunction<CipheredWebsocketListener, ? super T, CompletableFuture<WebSocket>> sender;
+	private final int inFlight;
+	private final CompletableFuture<Void> result = new CompletableFuture<>();
+	
+	private volatile Flow.Subscription subscription;
+	private int pending;
+	private boolean completed;
+	
+	/**
+	 * Constructs a {@code WebSocketSubscriber}.
+	 *
+	 * @param listener
+	 * 		the listener of the connection to send through.
+	 * @param sender
+	 * 		sends one item through the listener, e.g. {@code (l, item) -> l.sendBinary(item, true)}.
+	 * @param inFlight
+	 * 		the number of items that may be queued on the connection at once.
+	 */
+	public WebSocketSubscriber(CipheredWebsocketListener listener, BiFunction<CipheredWebsocketListener, ? super T, CompletableFuture<WebSocket>> sender, int inFlight)
+	{
+		if(inFlight < 1)
+			throw new IllegalArgumentException("At least one item must be allowed in flight.");
+		this.listener = listener;
+		this.sender = sender;
+		this.inFlight = inFlight;
+	}
+	
+	/**
+	 * Creates a subscriber sending every item as a binary message.
+	 *
+	 * @param listener
+	 * 		the listener of the connection to send through.
+	 *
+	 * @return a new {@link WebSocketSubscriber}.
+	 */
+	public static WebSocketSubscriber<ByteBuffer> binary(CipheredWebsocketListener listener)
+	{
+		return new WebSocketSubscriber<>(listener, (l, data) -> l.sendBinary(data, true), 1);
+	}
+	
+	/**
+	 * Creates a subscriber sending every item as a text message.
+	 *
+	 * @param listener
+	 * 		the listener of the connection to send through.
+	 *
+	 * @return a new {@link WebSocketSubscriber}.
+	 */
+	public static WebSocketSubscriber<CharSequence> text(CipheredWebsocketListener listener)
+	{
+		return new WebSocketSubscriber<>(listener, (l, data) -> l.sendText(data.toString(), true), 1);
+	}
+	
+	/**
+	 * Creates a subscriber sending every item as a binary message encoded by the given codec.
+	 *
+	 * @param listener
+	 * 		the listener of the connection to send through.
+	 * @param codec
+	 * 		the codec serializing the items.
+	 *
+	 * @return a new {@link WebSocketSubscriber}.
+	 */
+	public static <T> WebSocketSubscriber<T> objects(CipheredWebsocketListener listener, MessageCodec<? super T> codec)
+	{
+		return new WebSocketSubscriber<T>(listener, (l, item) -> l.sendObject(item, codec), 1);
+	}
+	
+	/**
+	 * Gets a future completed once the publisher has completed and every item has been sent,
+	 * or failed if the publisher or a send fails.
+	 */
+	public CompletableFuture<Void> getResult()
+	{
+		return result;
+	}
+	
+	@Override
+	public void onSubscribe(Flow.Subscription subscription)
+	{
+		if(this.subscription != null)
+		{
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		// Nothing is sent before the connection cipher exists
+		listener.getHandshake().whenComplete((ws, err) ->
+		{
+			if(err != null) fail(err);
+			else subscription.request(inFlight);
+		});
+	}
+	
+	@Override
+	public void onNext(T item)
+	{
+		synchronized(this)
+		{
+			++pending;
+		}
+		
+		CompletableFuture<WebSocket> send;
+		try
+		{
+			send = sender.apply(listener, item);
+		} catch(RuntimeException e)
+		{
+			send = CompletableFuture.failedFuture(e);
+		}
+		
+		send.whenComplete((ws, err) ->
+		{
+			if(err != null)
+			{
+				fail(err);
+				return;
+			}
+			boolean finish;
+			synchronized(this)
+			{
+				finish = --pending == 0 && completed;
+			}
+			if(finish) result.complete(null);
+			else subscription.request(1L);
+		});
+	}
+	
+	@Override
+	public void onError(Throwable throwable)
+	{
+		result.completeExceptionally(throwable);
+	}
+	
+	@Override
+	public void onComplete()
+	{
+		boolean finish;
+		synchronized(this)
+		{
+			completed = true;
+			finish = pending == 0;
+		}
+		if(finish) result.complete(null);
+	}
+	
+	private void fail(Throwable error)
+	{
+		if(result.completeExceptionally(error))
+			subscription.cancel();
+	}
+}
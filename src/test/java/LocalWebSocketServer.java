@@ -0,0 +1,382 @@
+import java.io.*;
+import java.net.*;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * A minimal RFC 6455 WebSocket server bound to the loopback interface.
+ * Every accepted connection is served by its own thread and exposed to a {@link WebSocket.Listener}
+ * through a server-side {@link WebSocket} view, so the ciphered listeners can be driven over a real
+ * socket without any external infrastructure.
+ * <p>
+ * Only what the load tests need is implemented: no extensions, no subprotocols and no demand tracking
+ * (frames are delivered as soon as the previous listener stage completes).
+ */
+public class LocalWebSocketServer
+		implements Closeable
+{
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	
+	private final ServerSocket socket;
+	private final Supplier<WebSocket.Listener> listeners;
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Starts a server on an ephemeral loopback port.
+	 *
+	 * @param listeners
+	 * 		supplies a fresh listener for every accepted connection.
+	 */
+	public LocalWebSocketServer(Supplier<WebSocket.Listener> listeners)
+			throws IOException
+	{
+		this.listeners = listeners;
+		this.socket = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+		
+		Thread acceptor = new Thread(this::acceptLoop, "LocalWebSocketServer-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	public URI getUri()
+	{
+		return URI.create("ws://" + socket.getInetAddress().getHostAddress() + ":" + socket.getLocalPort() + "/");
+	}
+	
+	public int getConnectionCount()
+	{
+		return connections.size();
+	}
+	
+	private void acceptLoop()
+	{
+		while(!socket.isClosed())
+		{
+			try
+			{
+				Socket s = socket.accept();
+				s.setTcpNoDelay(true);
+				Connection c = new Connection(s, listeners.get());
+				connections.add(c);
+				Thread t = new Thread(null, c, "LocalWebSocketServer-" + s.getPort(), 256 * 1024);
+				t.setDaemon(true);
+				t.start();
+			} catch(IOException e)
+			{
+				if(!socket.isClosed())
+					e.printStackTrace();
+			}
+		}
+	}
+	
+	@Override
+	public void close()
+			throws IOException
+	{
+		socket.close();
+		for(Connection c : connections)
+			c.abort();
+	}
+	
+	/**
+	 * Server side of a single connection. Frames written by the server are never masked.
+	 */
+	public class Connection
+			implements WebSocket, Runnable
+	{
+		private final Socket socket;
+		private final WebSocket.Listener listener;
+		private final DataInputStream in;
+		private final OutputStream out;
+		
+		private volatile boolean inputClosed, outputClosed;
+		private boolean sendingPartial;
+		
+		Connection(Socket socket, WebSocket.Listener listener)
+				throws IOException
+		{
+			this.socket = socket;
+			this.listener = listener;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+		}
+		
+		/**
+		 * Gets the address of the connected client.
+		 */
+		public SocketAddress getRemoteAddress()
+		{
+			return socket.getRemoteSocketAddress();
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				upgrade();
+				listener.onOpen(this);
+				readLoop();
+			} catch(IOException e)
+			{
+				if(!inputClosed)
+					listener.onError(this, e);
+			} catch(RuntimeException e)
+			{
+				listener.onError(this, e);
+			} finally
+			{
+				connections.remove(this);
+				abort();
+			}
+		}
+		
+		private void upgrade()
+				throws IOException
+		{
+			String key = null;
+			for(String line; !(line = readLine()).isEmpty(); )
+			{
+				int colon = line.indexOf(':');
+				if(colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT).equals("sec-websocket-key"))
+					key = line.substring(colon + 1).trim();
+			}
+			if(key == null)
+				throw new IOException("Missing Sec-WebSocket-Key header");
+			
+			String accept;
+			try
+			{
+				accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+						.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+			} catch(NoSuchAlgorithmException e)
+			{
+				throw new IOException(e);
+			}
+			
+			out.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+					"Upgrade: websocket\r\n" +
+					"Connection: Upgrade\r\n" +
+					"Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+		}
+		
+		private String readLine()
+				throws IOException
+		{
+			StringBuilder sb = new StringBuilder();
+			for(int c; (c = in.read()) != '\n'; )
+			{
+				if(c < 0) throw new EOFException("Connection closed during upgrade");
+				if(c != '\r') sb.append((char) c);
+			}
+			return sb.toString();
+		}
+		
+		private void readLoop()
+				throws IOException
+		{
+			int messageOpcode = 0;
+			while(!inputClosed)
+			{
+				int b0 = in.read();
+				if(b0 < 0) break;
+				int b1 = in.readUnsignedByte();
+				
+				boolean fin = (b0 & 0x80) != 0;
+				int opcode = b0 & 0x0F;
+				long len = b1 & 0x7F;
+				if(len == 126) len = in.readUnsignedShort();
+				else if(len == 127) len = in.readLong();
+				if(len > Integer.MAX_VALUE - 8)
+					throw new IOException("Frame too large: " + len);
+				
+				byte[] mask = null;
+				if((b1 & 0x80) != 0)
+				{
+					mask = new byte[4];
+					in.readFully(mask);
+				}
+				
+				byte[] payload = new byte[(int) len];
+				in.readFully(payload);
+				if(mask != null)
+					for(int i = 0; i < payload.length; ++i)
+						payload[i] ^= mask[i & 3];
+				
+				switch(opcode)
+				{
+					case 0x0, 0x1, 0x2 ->
+					{
+						if(opcode != 0) messageOpcode = opcode;
+						if(messageOpcode == 0x1)
+							await(listener.onText(this, new String(payload, StandardCharsets.UTF_8), fin));
+						else
+							await(listener.onBinary(this, ByteBuffer.wrap(payload), fin));
+					}
+					case 0x8 ->
+					{
+						inputClosed = true;
+						int code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : NORMAL_CLOSURE;
+						String reason = payload.length > 2 ? new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8) : "";
+						if(!outputClosed) sendClose(code, "");
+						await(listener.onClose(this, code, reason));
+					}
+					case 0x9 ->
+					{
+						write(0xA, true, ByteBuffer.wrap(payload));
+						await(listener.onPing(this, ByteBuffer.wrap(payload)));
+					}
+					case 0xA -> await(listener.onPong(this, ByteBuffer.wrap(payload)));
+					default -> throw new IOException("Unknown opcode " + opcode);
+				}
+			}
+		}
+		
+		private void await(CompletionStage<?> stage)
+		{
+			if(stage != null)
+				stage.toCompletableFuture().join();
+		}
+		
+		private synchronized void write(int opcode, boolean fin, ByteBuffer payload)
+				throws IOException
+		{
+			int len = payload.remaining();
+			out.write((fin ? 0x80 : 0) | opcode);
+			if(len < 126)
+				out.write(len);
+			else if(len < 65536)
+			{
+				out.write(126);
+				out.write(len >>> 8);
+				out.write(len);
+			} else
+			{
+				out.write(127);
+				for(int shift = 56; shift >= 0; shift -= 8)
+					out.write((int) ((long) len >>> shift));
+			}
+			
+			if(payload.hasArray())
+			{
+				out.write(payload.array(), payload.arrayOffset() + payload.position(), len);
+				payload.position(payload.limit());
+			} else
+			{
+				byte[] tmp = new byte[len];
+				payload.get(tmp);
+				out.write(tmp);
+			}
+			out.flush();
+		}
+		
+		private synchronized CompletableFuture<WebSocket> sendData(int opcode, boolean last, ByteBuffer payload)
+		{
+			if(outputClosed)
+				return CompletableFuture.failedFuture(new IOException("Output closed"));
+			try
+			{
+				write(sendingPartial ? 0x0 : opcode, last, payload);
+				sendingPartial = !last;
+				return CompletableFuture.completedFuture(this);
+			} catch(IOException e)
+			{
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendText(CharSequence data, boolean last)
+		{
+			return sendData(0x1, last, StandardCharsets.UTF_8.encode(data.toString()));
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendBinary(ByteBuffer data, boolean last)
+		{
+			return sendData(0x2, last, data);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendPing(ByteBuffer message)
+		{
+			return sendControl(0x9, message);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendPong(ByteBuffer message)
+		{
+			return sendControl(0xA, message);
+		}
+		
+		private CompletableFuture<WebSocket> sendControl(int opcode, ByteBuffer message)
+		{
+			try
+			{
+				write(opcode, true, message);
+				return CompletableFuture.completedFuture(this);
+			} catch(IOException e)
+			{
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+		
+		@Override
+		public synchronized CompletableFuture<WebSocket> sendClose(int statusCode, String reason)
+		{
+			if(outputClosed)
+				return CompletableFuture.completedFuture(this);
+			byte[] r = reason.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer buf = ByteBuffer.allocate(2 + r.length);
+			buf.putShort((short) statusCode).put(r).flip();
+			CompletableFuture<WebSocket> result = sendControl(0x8, buf);
+			outputClosed = true;
+			return result;
+		}
+		
+		@Override
+		public void request(long n)
+		{
+		}
+		
+		@Override
+		public String getSubprotocol()
+		{
+			return "";
+		}
+		
+		@Override
+		public boolean isOutputClosed()
+		{
+			return outputClosed;
+		}
+		
+		@Override
+		public boolean isInputClosed()
+		{
+			return inputClosed;
+		}
+		
+		@Override
+		public void abort()
+		{
+			inputClosed = true;
+			outputClosed = true;
+			try
+			{
+				socket.close();
+			} catch(IOException ignored)
+			{
+			}
+		}
+	}
+}
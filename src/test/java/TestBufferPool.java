@@ -0,0 +1,115 @@
+import org.zeith.crypto.util.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Leases and releases buffers from small {@link BufferPool}s and checks that requests are rounded up to power-of-two
+ * size classes, that oversized requests get one-off buffers which are not kept, that released buffers are reused from
+ * their own class, and that the per-class and total retention caps are honoured in {@link BufferPool#getRetainedBytes()}.
+ * A lease released twice must be refused without touching the accounting, and a lease always returns to the pool it
+ * came from. Exits with status 1 on a failure.
+ */
+public class TestBufferPool
+{
+	public static void main(String[] args)
+	{
+		boolean ok = true;
+		
+		// Size classes
+		BufferPool pool = new BufferPool(false, 4096, 8, 64 * 1024);
+		boolean classes = capacity(pool, 0) == 512 && capacity(pool, 1) == 512 && capacity(pool, 512) == 512
+				&& capacity(pool, 513) == 1024 && capacity(pool, 3000) == 4096 && capacity(pool, 4096) == 4096;
+		BufferPool.Lease small = pool.acquire(100);
+		boolean limited = small.buffer().position() == 0 && small.buffer().limit() == 100;
+		small.release();
+		System.out.println("Requests are rounded up to size classes: " + classes + ", limited to the requested size: " + limited);
+		ok &= classes && limited;
+		
+		// Reuse within a class, and one-off buffers beyond the largest class
+		BufferPool.Lease first = pool.acquire(700);
+		ByteBuffer buffer = first.buffer();
+		first.release();
+		long reused = pool.getReusedCount();
+		BufferPool.Lease again = pool.acquire(1000);
+		boolean sameBuffer = again.buffer() == buffer && pool.getReusedCount() == reused + 1;
+		again.release();
+		long retained = pool.getRetainedBytes(), allocated = pool.getAllocatedCount();
+		BufferPool.Lease oversized = pool.acquire(5000);
+		boolean exact = oversized.buffer().capacity() == 5000 && pool.getAllocatedCount() == allocated + 1;
+		oversized.release();
+		boolean dropped = pool.getRetainedBytes() == retained && pool.getLeasedCount() == 0;
+		System.out.println("A released buffer is reused: " + sameBuffer + ", an oversized request is one-off: " + (exact && dropped));
+		ok &= sameBuffer && exact && dropped;
+		
+		// Retention caps: at most two 1 KiB buffers fit in 2 KiB, and at most three buffers per class
+		BufferPool capped = new BufferPool(false, 4096, 3, 2048);
+		BufferPool.Lease[] leases = new BufferPool.Lease[4];
+		for(int i = 0; i < leases.length; ++i)
+			leases[i] = capped.acquire(1024);
+		for(BufferPool.Lease lease : leases)
+			lease.release();
+		boolean totalCap = capped.getRetainedBytes() == 2048 && capped.getLeasedCount() == 0;
+		capped.acquire(1024);
+		capped.acquire(1024);
+		BufferPool.Lease fresh = capped.acquire(1024);
+		boolean drained = capped.getRetainedBytes() == 0 && capped.getReusedCount() == 2 && capped.getAllocatedCount() == 5;
+		fresh.release();
+		
+		BufferPool perClass = new BufferPool(false, 4096, 3, 64 * 1024);
+		for(int i = 0; i < leases.length; ++i)
+			leases[i] = perClass.acquire(512);
+		for(BufferPool.Lease lease : leases)
+			lease.release();
+		boolean classCap = perClass.getRetainedBytes() == 3 * 512;
+		System.out.println("Retention is capped in total: " + totalCap + ", drained on reuse: " + drained + ", capped per class: " + classCap);
+		ok &= totalCap && drained && classCap;
+		
+		// A double release is refused and leaves the accounting alone
+		BufferPool.Lease twice = pool.acquire(2048);
+		twice.release();
+		retained = pool.getRetainedBytes();
+		boolean refused;
+		try
+		{
+			twice.close();
+			refused = false;
+		} catch(IllegalStateException e)
+		{
+			refused = true;
+		}
+		boolean untouched = pool.getRetainedBytes() == retained && pool.getLeasedCount() == 0;
+		BufferPool.Lease next = pool.acquire(2048);
+		BufferPool.Lease other = pool.acquire(2048);
+		boolean notDuplicated = next.buffer() != other.buffer();
+		next.release();
+		other.release();
+		System.out.println("A double release is refused: " + refused + ", without recycling the buffer twice: " + (untouched && notDuplicated));
+		ok &= refused && untouched && notDuplicated;
+		
+		// A lease returns to the pool it came from, not to another one in use at the same time
+		BufferPool owner = new BufferPool(false, 4096, 8, 64 * 1024);
+		BufferPool foreign = new BufferPool(false, 4096, 8, 64 * 1024);
+		BufferPool.Lease borrowed = owner.acquire(1024);
+		foreign.acquire(1024).release();
+		long foreignRetained = foreign.getRetainedBytes();
+		borrowed.release();
+		boolean home = owner.getRetainedBytes() == 1024 && owner.getLeasedCount() == 0
+				&& foreign.getRetainedBytes() == foreignRetained && foreign.getLeasedCount() == 0;
+		System.out.println("A lease returns to its own pool: " + home);
+		ok &= home;
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static int capacity(BufferPool pool, int size)
+	{
+		try(BufferPool.Lease lease = pool.acquire(size))
+		{
+			return lease.buffer().capacity();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+import org.zeith.crypto.*;
+
+import javax.crypto.*;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.util.*;
+
+/**
+ * Round-trips messages through {@link ChaCha20Cipher}, checks that a tampered message fails with an
+ * {@link AEADBadTagException}, and that no nonce is handed out twice across {@link ICipher#newHeader(byte[], long)}
+ * reservations of different sizes. Exits with status 1 on a failure.
+ */
+public class TestChaCha20
+{
+	public static void main(String[] args)
+			throws GeneralSecurityException, IOException
+	{
+		ChaCha20Cipher cipher = new ChaCha20Cipher(KeyGenerator.getInstance(ChaCha20Cipher.ALGORITHM).generateKey());
+		boolean ok = true;
+		
+		String plaintext = "Hello world! :)";
+		byte[] encrypted = cipher.encrypt(plaintext.getBytes());
+		boolean roundTrip = new String(cipher.decrypt(encrypted)).equals(plaintext);
+		
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		try(OutputStream out = cipher.stream(sink))
+		{
+			out.write(plaintext.getBytes());
+		}
+		try(InputStream in = cipher.stream(new ByteArrayInputStream(sink.toByteArray())))
+		{
+			roundTrip &= new String(in.readAllBytes()).equals(plaintext);
+		}
+		System.out.println("Round-trips as a message and through streams: " + roundTrip);
+		ok &= roundTrip;
+		
+		boolean tagMismatch = true;
+		for(int i = 0; i < encrypted.length; ++i)
+		{
+			byte[] tampered = encrypted.clone();
+			tampered[i] ^= 1;
+			try
+			{
+				cipher.decrypt(tampered);
+				tagMismatch = false;
+			} catch(AEADBadTagException e)
+			{
+				// Expected, whether the nonce, the ciphertext or the tag was changed
+			}
+		}
+		System.out.println("Every tampered byte fails with AEADBadTagException: " + tagMismatch);
+		ok &= tagMismatch;
+		
+		Set<String> nonces = new HashSet<>();
+		int issued = 0;
+		for(int segments : new int[] { 1, 5, 3, 1, 64, 2 })
+		{
+			byte[] header = new byte[cipher.getHeaderSize()];
+			cipher.newHeader(header, segments);
+			for(int i = 0; i < segments; ++i, ++issued)
+				nonces.add(Base64.getEncoder().encodeToString(cipher.newSegmentCipher(CipherMode.ENCRYPT, header, i).getIV()));
+			nonces.add(Base64.getEncoder().encodeToString(cipher.newCipher(CipherMode.ENCRYPT).getIV()));
+			++issued;
+		}
+		boolean distinct = nonces.size() == issued;
+		System.out.println(issued + " nonces over reservations of different sizes are distinct: " + distinct);
+		ok &= distinct;
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+import org.zeith.crypto.*;
+import org.zeith.crypto.util.FileCipher;
+
+import javax.crypto.KeyGenerator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Encrypts a file with {@link FileCipher#encryptIncremental(ICipher, Path, Path, Path, int)}, checks that it
+ * round-trips, that a later run only rewrites the chunks that changed, and that writing the file again from scratch
+ * does not repeat the ciphertext of a header-less cipher. Shrinking the file rewrites the new last chunk. With an
+ * authenticated cipher, swapped slots and a file cut short by a slot must fail to decrypt. Exits with status 1 on a
+ * failure.
+ */
+public class TestChunkedFileCipher
+{
+	private static final int CHUNK = 64 * 1024;
+	private static final int FILE_HEADER = 4 + 4 + 4 + 8;
+	
+	public static void main(String[] args)
+			throws Exception
+	{
+		byte[] data = new byte[CHUNK * 16 + 123];
+		new Random(1L).nextBytes(data);
+		boolean ok = true;
+		
+		ChaCha20Cipher chacha = new ChaCha20Cipher(KeyGenerator.getInstance(ChaCha20Cipher.ALGORITHM).generateKey());
+		for(ICipher cipher : List.of(new AESCipher("superSecretPassword123"), chacha))
+		{
+			String name = cipher.getClass().getSimpleName();
+			Path dir = Files.createTempDirectory("chunked");
+			Path plain = dir.resolve("plain.bin"), encrypted = dir.resolve("sealed.bin"), manifest = FileCipher.defaultManifest(encrypted);
+			try
+			{
+				Files.write(plain, data);
+				FileCipher.Update first = FileCipher.encryptIncremental(cipher, plain, encrypted, manifest, CHUNK);
+				boolean roundTrip = first.chunks() == 17 && first.rewritten() == 17 && Arrays.equals(decrypt(cipher, encrypted), data);
+				
+				FileCipher.Update same = FileCipher.encryptIncremental(cipher, plain, encrypted, manifest, CHUNK);
+				
+				byte[] changed = data.clone();
+				changed[3 * CHUNK + 10] ^= 1;
+				changed[10 * CHUNK] ^= 1;
+				Files.write(plain, changed);
+				FileCipher.Update update = FileCipher.encryptIncremental(cipher, plain, encrypted, manifest, CHUNK);
+				
+				byte[] grown = Arrays.copyOf(changed, changed.length + CHUNK);
+				Files.write(plain, grown);
+				FileCipher.Update append = FileCipher.encryptIncremental(cipher, plain, encrypted, manifest, CHUNK);
+				
+				boolean incremental = same.rewritten() == 0 && same.bytesWritten() == 0L
+						&& update.rewritten() == 2 && append.chunks() == 18 && append.rewritten() == 2
+						&& Arrays.equals(decrypt(cipher, encrypted), grown);
+				
+				// A deleted target starts over at the first generation, with the manifest of the old file still around
+				byte[] before = Files.readAllBytes(encrypted);
+				Files.delete(encrypted);
+				FileCipher.Update fresh = FileCipher.encryptIncremental(cipher, plain, encrypted, manifest, CHUNK);
+				byte[] after = Files.readAllBytes(encrypted);
+				boolean recreated = fresh.rewritten() == 18 && Arrays.equals(decrypt(cipher, encrypted), grown)
+						&& !Arrays.equals(before, 64, 128, after, 64, 128);
+				
+				// The fifth chunk did not change, but it is the last one now
+				byte[] shrunk = Arrays.copyOf(grown, 5 * CHUNK);
+				Files.write(plain, shrunk);
+				FileCipher.Update shrink = FileCipher.encryptIncremental(cipher, plain, encrypted, manifest, CHUNK);
+				boolean shrinks = shrink.chunks() == 5 && shrink.rewritten() == 1 && Arrays.equals(decrypt(cipher, encrypted), shrunk);
+				
+				System.out.println(name + " round-trips: " + roundTrip + ", rewrites only changed chunks: " + incremental
+						+ ", recreated file differs: " + recreated + ", shrinks: " + shrinks);
+				ok &= roundTrip && incremental && recreated && shrinks;
+				
+				if(cipher instanceof ChaCha20Cipher)
+				{
+					byte[] sealed = Files.readAllBytes(encrypted);
+					int slotSize = ByteBuffer.wrap(sealed).getInt(8);
+					byte[] swapped = sealed.clone();
+					System.arraycopy(sealed, FILE_HEADER + slotSize, swapped, FILE_HEADER, slotSize);
+					System.arraycopy(sealed, FILE_HEADER, swapped, FILE_HEADER + slotSize, slotSize);
+					byte[] truncated = Arrays.copyOf(sealed, FILE_HEADER + 4 * slotSize);
+					
+					boolean swapRefused = refused(cipher, encrypted, swapped), truncationRefused = refused(cipher, encrypted, truncated);
+					System.out.println(name + " refuses swapped slots: " + swapRefused + ", refuses a truncated file: " + truncationRefused);
+					ok &= swapRefused && truncationRefused;
+				}
+			} finally
+			{
+				for(Path path : List.of(plain, encrypted, manifest, dir))
+					Files.deleteIfExists(path);
+			}
+		}
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static boolean refused(ICipher cipher, Path encrypted, byte[] tampered)
+			throws Exception
+	{
+		Files.write(encrypted, tampered);
+		try
+		{
+			decrypt(cipher, encrypted);
+			return false;
+		} catch(IOException e)
+		{
+			return true;
+		}
+	}
+	
+	private static byte[] decrypt(ICipher cipher, Path encrypted)
+			throws Exception
+	{
+		Path target = Files.createTempFile("opened", ".bin");
+		try
+		{
+			FileCipher.decryptIncremental(cipher, encrypted, target);
+			return Files.readAllBytes(target);
+		} finally
+		{
+			Files.deleteIfExists(target);
+		}
+	}
+}
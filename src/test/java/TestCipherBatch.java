@@ -0,0 +1,119 @@
+import org.zeith.crypto.*;
+
+import javax.crypto.*;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that {@link ICipher#encryptAll(byte[]...)} and {@link ICipher#decryptAll(byte[]...)} round-trip and keep
+ * the order of the payloads when the batch is split across a pool, that cipher contexts are only shared between
+ * payloads of {@link ICipher#isReusable() reusable} ciphers, and that a failing payload fails the batch.
+ * Exits with status 1 on a failure.
+ */
+public class TestCipherBatch
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		Random random = new Random(1L);
+		byte[][] payloads = new byte[600][];
+		for(int i = 0; i < payloads.length; ++i)
+		{
+			payloads[i] = new byte[random.nextInt(4000)];
+			random.nextBytes(payloads[i]);
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		boolean ok = true;
+		
+		// AES with a fixed IV is deterministic, so every ciphertext can be compared with a one-off encryption
+		AESCipher aes = new AESCipher("superSecretPassword123");
+		List<byte[]> encrypted = aes.encryptAll(Arrays.asList(payloads), pool);
+		for(int i = 0; i < payloads.length; ++i)
+			ok &= Arrays.equals(encrypted.get(i), aes.encrypt(payloads[i]));
+		ok &= roundTrips(aes, payloads, pool);
+		System.out.println("AES batch keeps order and round-trips: " + ok);
+		
+		CountingCipher reusable = new CountingCipher(aes, true), single = new CountingCipher(aes, false);
+		reusable.encryptAll(Arrays.asList(payloads), pool);
+		single.encryptAll(Arrays.asList(payloads), pool);
+		boolean contexts = reusable.contexts.get() < payloads.length / 4 && single.contexts.get() == payloads.length;
+		System.out.println("Contexts created: " + reusable.contexts + " reusable, " + single.contexts + " not reusable");
+		ok &= contexts;
+		
+		ChaCha20Cipher chacha = new ChaCha20Cipher(KeyGenerator.getInstance("ChaCha20").generateKey());
+		byte[][] same = new byte[200][];
+		Arrays.fill(same, new byte[1000]);
+		List<byte[]> sealed = chacha.encryptAll(Arrays.asList(same), pool);
+		Set<String> distinct = new HashSet<>();
+		for(byte[] ciphertext : sealed)
+			distinct.add(Base64.getEncoder().encodeToString(ciphertext));
+		boolean nonces = distinct.size() == same.length && roundTrips(chacha, same, pool);
+		System.out.println("ChaCha20 batch uses a fresh nonce per payload and round-trips: " + nonces);
+		ok &= nonces;
+		
+		List<byte[]> broken = new ArrayList<>(encrypted);
+		broken.set(300, Arrays.copyOf(broken.get(300), broken.get(300).length - 1));
+		boolean failed;
+		try
+		{
+			aes.decryptAll(broken, pool);
+			failed = false;
+		} catch(GeneralSecurityException e)
+		{
+			failed = true;
+		}
+		System.out.println("A truncated payload fails the batch: " + failed);
+		ok &= failed;
+		
+		pool.shutdown();
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static boolean roundTrips(ICipher cipher, byte[][] payloads, ForkJoinPool pool)
+			throws GeneralSecurityException
+	{
+		List<byte[]> decrypted = cipher.decryptAll(cipher.encryptAll(Arrays.asList(payloads), pool), pool);
+		for(int i = 0; i < payloads.length; ++i)
+			if(!Arrays.equals(decrypted.get(i), payloads[i]))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Counts the cipher contexts created for a batch.
+	 */
+	private static class CountingCipher
+			implements ICipher
+	{
+		final AtomicInteger contexts = new AtomicInteger();
+		private final ICipher cipher;
+		private final boolean reusable;
+		
+		CountingCipher(ICipher cipher, boolean reusable)
+		{
+			this.cipher = cipher;
+			this.reusable = reusable;
+		}
+		
+		@Override
+		public Cipher newCipher(CipherMode mode)
+				throws GeneralSecurityException
+		{
+			contexts.incrementAndGet();
+			return cipher.newCipher(mode);
+		}
+		
+		@Override
+		public boolean isReusable()
+		{
+			return reusable;
+		}
+	}
+}
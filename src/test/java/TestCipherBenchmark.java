@@ -0,0 +1,58 @@
+import org.zeith.crypto.*;
+
+import javax.crypto.KeyGenerator;
+import java.security.*;
+
+/**
+ * Compares the throughput of {@link AESCipher} and {@link ChaCha20Cipher} over a range of message sizes.
+ * <p>
+ * Arguments: an optional number of milliseconds to measure each case for (default 1000).
+ * On hosts with AES hardware acceleration AES usually wins; without it, ChaCha20 is several times faster.
+ * Compare with {@code -XX:-UseAESIntrinsics} to see the difference on a single machine.
+ */
+public class TestCipherBenchmark
+{
+	private static final int[] SIZES = { 64, 1024, 16 * 1024, 1024 * 1024 };
+	
+	public static void main(String[] args)
+			throws GeneralSecurityException
+	{
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000L;
+		
+		SecureRandom random = new SecureRandom();
+		byte[] iv = new byte[16];
+		random.nextBytes(iv);
+		ICipher aes = new AESCipher(KeyGenerator.getInstance("AES").generateKey(), iv);
+		ICipher chaCha = new ChaCha20Cipher(KeyGenerator.getInstance(ChaCha20Cipher.ALGORITHM).generateKey());
+		
+		System.out.printf("%-10s %12s %12s%n", "size", "AES MB/s", "ChaCha MB/s");
+		for(int size : SIZES)
+		{
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			
+			// A short first pass of both lets the JIT settle before measuring
+			measure(aes, data, millis / 4);
+			measure(chaCha, data, millis / 4);
+			System.out.printf("%-10d %12.1f %12.1f%n", size, measure(aes, data, millis), measure(chaCha, data, millis));
+		}
+	}
+	
+	/**
+	 * Encrypts and decrypts the data repeatedly for the given time.
+	 *
+	 * @return the throughput in plaintext megabytes per second, counting each round trip once.
+	 */
+	private static double measure(ICipher cipher, byte[] data, long millis)
+			throws GeneralSecurityException
+	{
+		long end = System.nanoTime() + millis * 1_000_000L, start = System.nanoTime(), bytes = 0L;
+		while(System.nanoTime() < end)
+		{
+			if(cipher.decrypt(cipher.encrypt(data)).length != data.length)
+				throw new IllegalStateException("Round trip changed the message length.");
+			bytes += data.length;
+		}
+		return bytes / ((System.nanoTime() - start) / 1e9) / (1024 * 1024);
+	}
+}
@@ -0,0 +1,81 @@
+import org.zeith.crypto.*;
+
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that {@link ICipher#encryptSegmented(byte[], int, int, int, ForkJoinPool)} round-trips across a pool, that
+ * a tampered or cut off segment of an authenticated cipher fails decryption, and that a forged segment table claiming
+ * a huge plaintext is refused instead of being allocated. Exits with status 1 on a failure.
+ */
+public class TestCipherSegments
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		Random random = new Random(1L);
+		byte[] data = new byte[1_000_003];
+		random.nextBytes(data);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		boolean ok = true;
+		
+		ChaCha20Cipher chacha = new ChaCha20Cipher(KeyGenerator.getInstance("ChaCha20").generateKey());
+		for(ICipher cipher : List.of(new AESCipher("superSecretPassword123"), chacha))
+		{
+			byte[] sealed = cipher.encryptSegmented(data, 0, data.length, 64 * 1024, pool);
+			boolean roundTrip = Arrays.equals(cipher.decryptSegmented(sealed, 0, sealed.length, pool), data)
+					&& cipher.decryptSegmented(cipher.encryptSegmented(new byte[0])).length == 0;
+			
+			// [int segment size][int plaintext length][int segment count] of a single segment message
+			byte[] forged = cipher.encryptSegmented(new byte[10], 0, 10, 64, pool);
+			ByteBuffer.wrap(forged).putInt(Integer.MAX_VALUE).putInt(Integer.MAX_VALUE - 16).putInt(1);
+			boolean table = failure(cipher, forged, pool) instanceof IllegalBlockSizeException;
+			
+			System.out.println(cipher.getClass().getSimpleName() + " round-trips: " + roundTrip + ", forged table refused: " + table);
+			ok &= roundTrip && table;
+		}
+		
+		byte[] sealed = chacha.encryptSegmented(data, 0, data.length, 64 * 1024, pool);
+		sealed[sealed.length / 2] ^= 1;
+		boolean tampered = failure(chacha, sealed, pool) != null;
+		System.out.println("A tampered ChaCha20 segment fails: " + tampered);
+		ok &= tampered;
+		
+		// Drop the last of three segments and rewrite the table to match what is left
+		byte[] three = chacha.encryptSegmented(Arrays.copyOf(data, 3000), 0, 3000, 1000, pool);
+		ByteBuffer in = ByteBuffer.wrap(three);
+		int headerSize = chacha.getHeaderSize();
+		in.position(12 + headerSize);
+		int first = in.getInt(), second = in.getInt();
+		in.getInt();
+		ByteBuffer cut = ByteBuffer.allocate(12 + headerSize + 8 + first + second);
+		cut.putInt(1000).putInt(2000).putInt(2).put(three, 12, headerSize).putInt(first).putInt(second)
+				.put(three, in.position(), first + second);
+		boolean truncated = failure(chacha, cut.array(), pool) != null;
+		System.out.println("A ChaCha20 payload with its last segment cut off fails: " + truncated);
+		ok &= truncated;
+		
+		pool.shutdown();
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static GeneralSecurityException failure(ICipher cipher, byte[] sealed, ForkJoinPool pool)
+	{
+		try
+		{
+			cipher.decryptSegmented(sealed, 0, sealed.length, pool);
+			return null;
+		} catch(GeneralSecurityException e)
+		{
+			return e;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+import org.zeith.crypto.*;
+import org.zeith.crypto.util.FileCipher;
+
+import javax.crypto.KeyGenerator;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Round-trips data through the encrypting and decrypting streams, channels and {@link FileCipher} for AES and
+ * ChaCha20, and checks that a tampered or truncated ChaCha20 ciphertext, and a truncated AES one, fail with an
+ * {@link IOException} instead of ending early. Exits with status 1 on a failure.
+ */
+public class TestCipherStreams
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		byte[] data = new byte[300_001];
+		new Random(1L).nextBytes(data);
+		boolean ok = true;
+		
+		ChaCha20Cipher chacha = new ChaCha20Cipher(KeyGenerator.getInstance(ChaCha20Cipher.ALGORITHM).generateKey());
+		for(ICipher cipher : List.of(new AESCipher("superSecretPassword123"), chacha))
+		{
+			String name = cipher.getClass().getSimpleName();
+			
+			ByteArrayOutputStream sink = new ByteArrayOutputStream();
+			try(OutputStream out = cipher.encryptingStream(sink, 4096))
+			{
+				// Uneven writes, so that chunks never line up with the buffer
+				for(int off = 0; off < data.length; off += 1000)
+					out.write(data, off, Math.min(1000, data.length - off));
+			}
+			byte[] sealed = sink.toByteArray();
+			boolean stream = Arrays.equals(readStream(cipher, sealed), data);
+			
+			ByteArrayOutputStream channelSink = new ByteArrayOutputStream();
+			try(WritableByteChannel out = cipher.encryptingChannel(Channels.newChannel(channelSink), 4096))
+			{
+				out.write(ByteBuffer.wrap(data));
+			}
+			boolean channel = Arrays.equals(readChannel(cipher, channelSink.toByteArray()), data);
+			
+			Path plain = Files.createTempFile("plain", ".bin"), encrypted = Files.createTempFile("sealed", ".bin"), decrypted = Files.createTempFile("opened", ".bin");
+			boolean file;
+			try
+			{
+				Files.write(plain, data);
+				FileCipher.encrypt(cipher, plain, encrypted);
+				FileCipher.decrypt(cipher, encrypted, decrypted);
+				file = Arrays.equals(Files.readAllBytes(decrypted), data);
+			} finally
+			{
+				Files.deleteIfExists(plain);
+				Files.deleteIfExists(encrypted);
+				Files.deleteIfExists(decrypted);
+			}
+			
+			boolean truncated = fails(cipher, Arrays.copyOf(sealed, sealed.length - 7));
+			System.out.println(name + " round-trips through streams: " + stream + ", channels: " + channel + ", files: " + file + "; truncation fails: " + truncated);
+			ok &= stream && channel && file && truncated;
+		}
+		
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		try(OutputStream out = chacha.encryptingStream(sink))
+		{
+			out.write(data);
+		}
+		byte[] tampered = sink.toByteArray();
+		tampered[tampered.length / 2] ^= 1;
+		boolean tamper = fails(chacha, tampered);
+		System.out.println("A tampered ChaCha20 ciphertext fails: " + tamper);
+		ok &= tamper;
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static byte[] readStream(ICipher cipher, byte[] sealed)
+			throws IOException
+	{
+		try(InputStream in = cipher.decryptingStream(new ByteArrayInputStream(sealed), 4096))
+		{
+			return in.readAllBytes();
+		}
+	}
+	
+	private static byte[] readChannel(ICipher cipher, byte[] sealed)
+			throws IOException
+	{
+		try(ReadableByteChannel in = cipher.decryptingChannel(Channels.newChannel(new ByteArrayInputStream(sealed)), 4096))
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ByteBuffer buf = ByteBuffer.allocate(777);
+			while(in.read(buf.clear()) >= 0)
+				out.write(buf.array(), 0, buf.position());
+			return out.toByteArray();
+		}
+	}
+	
+	/**
+	 * Checks that both the stream and the channel report the broken ciphertext rather than returning data.
+	 */
+	private static boolean fails(ICipher cipher, byte[] sealed)
+	{
+		boolean stream, channel;
+		try
+		{
+			readStream(cipher, sealed);
+			stream = false;
+		} catch(IOException e)
+		{
+			stream = true;
+		}
+		try
+		{
+			readChannel(cipher, sealed);
+			channel = false;
+		} catch(IOException e)
+		{
+			channel = true;
+		}
+		return stream && channel;
+	}
+}
@@ -0,0 +1,76 @@
+import org.zeith.crypto.ServerKeyGen;
+import org.zeith.crypto.ws.*;
+
+import java.lang.ref.Reference;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the heap retained per idle ciphered connection: opens many {@link ServerWebsocketListener} and
+ * {@link ClientWebsocketListener} pairs over {@link LoopbackWebSocket}s, exchanges a few messages on each, trims
+ * them and compares the used heap against a budget.
+ * <p>
+ * Arguments: the number of connections (default 10000), the budget in bytes per connection (default 1536) and the
+ * symmetric algorithm (default AES). Both ends of every connection live in this JVM, so the budget covers a server
+ * and a client listener together with their in-memory transport. Exits with status 1 if the budget is exceeded.
+ */
+public class TestConnectionFootprint
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		long budget = args.length > 1 ? Long.parseLong(args[1]) : 1536L;
+		String algorithm = args.length > 2 ? args[2] : "AES";
+		
+		ServerKeyGen serverKey = ServerKeyGen.shared();
+		WebSocket.Listener sink = new WebSocket.Listener()
+		{
+		};
+		
+		List<CipheredWebsocketListener> listeners = new ArrayList<>(connections * 2);
+		long before = usedHeap();
+		for(int i = 0; i < connections; ++i)
+		{
+			ServerWebsocketListener server = new ServerWebsocketListener(serverKey, sink);
+			ClientWebsocketListener client = new ClientWebsocketListener(algorithm, sink);
+			LoopbackWebSocket.connect(server, client);
+			client.getHandshake().get(10, TimeUnit.SECONDS);
+			
+			// Touch every lazily allocated part once
+			client.sendBinary(ByteBuffer.wrap(new byte[64]), true).join();
+			client.sendText("hello", true).join();
+			server.sendPing(ByteBuffer.wrap(new byte[8])).join();
+			listeners.add(server);
+			listeners.add(client);
+		}
+		long active = usedHeap();
+		
+		for(CipheredWebsocketListener listener : listeners)
+			listener.trim();
+		long idle = usedHeap();
+		// The listeners must stay reachable until the idle heap has been measured
+		Reference.reachabilityFence(listeners);
+		
+		long activePer = (active - before) / connections;
+		long idlePer = (idle - before) / connections;
+		System.out.printf("%d %s connections: %d bytes each after use, %d bytes each when trimmed (budget %d)%n",
+				connections, algorithm, activePer, idlePer, budget);
+		
+		if(idlePer > budget)
+		{
+			System.out.println("FAILED: over budget");
+			System.exit(1);
+		}
+	}
+	
+	private static long usedHeap()
+	{
+		Runtime rt = Runtime.getRuntime();
+		for(int i = 0; i < 4; ++i)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
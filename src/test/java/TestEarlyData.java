@@ -0,0 +1,258 @@
+import org.zeith.crypto.ServerKeyGen;
+import org.zeith.crypto.ws.*;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Connects clients that send early data to servers over in-memory connections, and checks that early messages are
+ * delivered, flagged as such, before any other message, that a replayed first frame is refused, that stale,
+ * tampered-with and oversized early data is refused, the stale and oversized ones without a handshake being
+ * submitted, that a server without an {@link EarlyDataPolicy} closes with {@link EarlyDataPolicy#POLICY_VIOLATION},
+ * and that the client aborts when the server presents a key other than the pinned one. Exits with status 1 on a
+ * failure.
+ */
+public class TestEarlyData
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		ServerKeyGen key = ServerKeyGen.shared();
+		HandshakeExecutor executor = new HandshakeExecutor(1, 16);
+		EarlyDataPolicy policy = new EarlyDataPolicy();
+		boolean ok = true;
+		
+		// Early data in order, ahead of normal traffic
+		Recorder recorder = new Recorder();
+		ServerWebsocketListener server = new ServerWebsocketListener(key, executor, policy, recorder);
+		recorder.server = server;
+		Observer observer = new Observer();
+		ClientWebsocketListener client = new ClientWebsocketListener("AES", key.getPublicKey(), List.of(text("early-1"), text("early-2")), observer);
+		FirstFrame first = new FirstFrame(server);
+		LoopbackWebSocket.connect(first, client);
+		client.getHandshake().get(10, TimeUnit.SECONDS);
+		client.sendBinary(text("normal"), true).get(10, TimeUnit.SECONDS);
+		server.getHandshake().get(10, TimeUnit.SECONDS);
+		List<String> delivered = new ArrayList<>();
+		for(int i = 0; i < 3; ++i)
+			delivered.add(recorder.messages.poll(10, TimeUnit.SECONDS));
+		boolean ordered = delivered.equals(List.of("early-1 (early)", "early-2 (early)", "normal")) && policy.getAcceptedCount() == 1;
+		System.out.println("Early messages delivered before normal traffic: " + delivered + ": " + ordered);
+		ok &= ordered;
+		
+		// The same first frame again
+		Replayer replayer = new Replayer(first.frame);
+		ServerWebsocketListener replayed = new ServerWebsocketListener(key, executor, policy, new Recorder());
+		LoopbackWebSocket.connect(replayed, replayer);
+		boolean refused = closeCode(replayer) == EarlyDataPolicy.POLICY_VIOLATION && failed(replayed) && policy.getReplayedCount() == 1;
+		System.out.println("Replayed first frame refused: " + refused + " (" + policy + ")");
+		ok &= refused;
+		
+		// A timestamp outside of the window, or one that does not match the encrypted one
+		long submitted = executor.getSubmittedCount();
+		EarlyDataPolicy fresh = new EarlyDataPolicy();
+		Replayer stale = new Replayer(withTimestamp(first.frame, System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10L)));
+		ServerWebsocketListener staleServer = new ServerWebsocketListener(key, executor, fresh, new Recorder());
+		LoopbackWebSocket.connect(staleServer, stale);
+		boolean expired = closeCode(stale) == EarlyDataPolicy.POLICY_VIOLATION && failed(staleServer)
+				&& fresh.getRejectedCount() == 1 && executor.getSubmittedCount() == submitted;
+		System.out.println("Stale timestamp refused without a handshake: " + expired);
+		ok &= expired;
+		
+		Replayer forged = new Replayer(withTimestamp(first.frame, System.currentTimeMillis()));
+		ServerWebsocketListener forgedServer = new ServerWebsocketListener(key, executor, fresh, new Recorder());
+		LoopbackWebSocket.connect(forgedServer, forged);
+		boolean tampered = closeCode(forged) == 1006 && failed(forgedServer) && fresh.getAcceptedCount() == 0;
+		System.out.println("Forged timestamp fails the handshake: " + tampered);
+		ok &= tampered;
+		
+		// More early data than the policy allows
+		submitted = executor.getSubmittedCount();
+		EarlyDataPolicy small = new EarlyDataPolicy(1024, EarlyDataPolicy.DEFAULT_MAX_MESSAGES, 1L, TimeUnit.MINUTES, 16);
+		Observer oversized = new Observer();
+		ServerWebsocketListener smallServer = new ServerWebsocketListener(key, executor, small, new Recorder());
+		LoopbackWebSocket.connect(smallServer, new ClientWebsocketListener("AES", key.getPublicKey(), List.of(ByteBuffer.allocate(8 * 1024)), oversized));
+		boolean tooLarge = oversized.closed.get(10, TimeUnit.SECONDS) == EarlyDataPolicy.POLICY_VIOLATION && failed(smallServer)
+				&& small.getRejectedCount() == 1 && executor.getSubmittedCount() == submitted;
+		System.out.println("Oversized early data refused without a handshake: " + tooLarge);
+		ok &= tooLarge;
+		
+		// A server that does not take early data at all
+		Observer unaccepted = new Observer();
+		ServerWebsocketListener plain = new ServerWebsocketListener(key, new Recorder());
+		LoopbackWebSocket.connect(plain, new ClientWebsocketListener("AES", key.getPublicKey(), List.of(text("early")), unaccepted));
+		boolean closed = unaccepted.closed.get(10, TimeUnit.SECONDS) == EarlyDataPolicy.POLICY_VIOLATION && failed(plain);
+		System.out.println("Server without a policy closes with " + EarlyDataPolicy.POLICY_VIOLATION + ": " + closed);
+		ok &= closed;
+		
+		// The server's key only arrives after the early data went out, and it is the wrong one
+		Observer pinned = new Observer();
+		ServerWebsocketListener impostor = new ServerWebsocketListener(new ServerKeyGen("RSA"), new Recorder());
+		ClientWebsocketListener pinnedClient = new ClientWebsocketListener("AES", key.getPublicKey(), List.of(text("early")), pinned);
+		LoopbackWebSocket[] ends = LoopbackWebSocket.connect(new WebSocket.Listener()
+		{
+			@Override
+			public void onOpen(WebSocket webSocket)
+			{
+				// Sends the impostor's key, but never looks at the early data
+				impostor.onOpen(webSocket);
+			}
+		}, pinnedClient);
+		Throwable error = pinned.error.get(10, TimeUnit.SECONDS);
+		boolean aborted = error instanceof GeneralSecurityException && ends[1].isOutputClosed() && ends[1].isInputClosed();
+		System.out.println("Pinned key mismatch aborts: " + aborted + " (" + error.getMessage() + ")");
+		ok &= aborted;
+		
+		executor.close();
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static ByteBuffer text(String text)
+	{
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Copies an early data frame, {@code [int magic][long timestamp]...}, with another timestamp in the clear.
+	 */
+	private static ByteBuffer withTimestamp(ByteBuffer frame, long timestamp)
+	{
+		ByteBuffer copy = ByteBuffer.allocate(frame.remaining()).put(frame.duplicate()).flip();
+		return copy.putLong(4, timestamp);
+	}
+	
+	private static int closeCode(Replayer replayer)
+			throws Exception
+	{
+		return replayer.closed.get(10, TimeUnit.SECONDS);
+	}
+	
+	private static boolean failed(CipheredWebsocketListener listener)
+	{
+		try
+		{
+			listener.getHandshake().get(10, TimeUnit.SECONDS);
+			return false;
+		} catch(ExecutionException e)
+		{
+			return true;
+		} catch(InterruptedException | TimeoutException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Records the received messages, marking those delivered as early data.
+	 */
+	private static class Recorder
+			implements WebSocket.Listener
+	{
+		final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+		ServerWebsocketListener server;
+		
+		@Override
+		public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+		{
+			String text = StandardCharsets.UTF_8.decode(data).toString();
+			messages.add(server != null && server.isDeliveringEarlyData() ? text + " (early)" : text);
+			webSocket.request(1L);
+			return null;
+		}
+	}
+	
+	/**
+	 * Keeps how the connection of a client ended.
+	 */
+	private static class Observer
+			implements WebSocket.Listener
+	{
+		final CompletableFuture<Integer> closed = new CompletableFuture<>();
+		final CompletableFuture<Throwable> error = new CompletableFuture<>();
+		
+		@Override
+		public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason)
+		{
+			closed.complete(statusCode);
+			return null;
+		}
+		
+		@Override
+		public void onError(WebSocket webSocket, Throwable error)
+		{
+			this.error.complete(error);
+		}
+	}
+	
+	/**
+	 * Passes everything on to a server listener, keeping a copy of the first binary frame it receives.
+	 */
+	private static class FirstFrame
+			implements WebSocket.Listener
+	{
+		private final WebSocket.Listener server;
+		ByteBuffer frame;
+		
+		FirstFrame(WebSocket.Listener server)
+		{
+			this.server = server;
+		}
+		
+		@Override
+		public void onOpen(WebSocket webSocket)
+		{
+			server.onOpen(webSocket);
+		}
+		
+		@Override
+		public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+		{
+			if(frame == null)
+				frame = ByteBuffer.allocate(data.remaining()).put(data.duplicate()).flip();
+			return server.onBinary(webSocket, data, last);
+		}
+		
+		@Override
+		public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason)
+		{
+			return server.onClose(webSocket, statusCode, reason);
+		}
+	}
+	
+	/**
+	 * Sends a captured frame as soon as the connection opens, like an attacker replaying it would.
+	 */
+	private static class Replayer
+			implements WebSocket.Listener
+	{
+		final CompletableFuture<Integer> closed = new CompletableFuture<>();
+		private final ByteBuffer frame;
+		
+		Replayer(ByteBuffer frame)
+		{
+			this.frame = frame;
+		}
+		
+		@Override
+		public void onOpen(WebSocket webSocket)
+		{
+			webSocket.request(Long.MAX_VALUE);
+			webSocket.sendBinary(frame.duplicate(), true);
+		}
+		
+		@Override
+		public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason)
+		{
+			closed.complete(statusCode);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+import org.zeith.crypto.*;
+import org.zeith.crypto.util.EncryptedCache;
+
+import javax.crypto.KeyGenerator;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Fills a single-stripe {@link EncryptedCache} past its budget with AES and ChaCha20, and checks that the least
+ * recently used values are evicted first, that the used and allocated bytes stay within the budget, that holes left
+ * by removed values are compacted away instead of evicting others, and that closing a {@link EncryptedCache.Value}
+ * zeroes its plaintext. Exits with status 1 on a failure.
+ */
+public class TestEncryptedCache
+{
+	private static final int VALUE = 100, BUDGET = 4096;
+	
+	public static void main(String[] args)
+			throws Exception
+	{
+		boolean ok = true;
+		ChaCha20Cipher chacha = new ChaCha20Cipher(KeyGenerator.getInstance(ChaCha20Cipher.ALGORITHM).generateKey());
+		for(ICipher cipher : List.of(new AESCipher("superSecretPassword123"), chacha))
+		{
+			String name = cipher.getClass().getSimpleName();
+			EncryptedCache<Integer> cache = new EncryptedCache<>(cipher, BUDGET, 1);
+			cache.put(0, value(0));
+			long entry = cache.getUsedBytes();
+			int fits = (int) (BUDGET / entry);
+			
+			// Fill the stripe, then touch the first value so that the second becomes the least recently used
+			boolean budget = true;
+			for(int i = 1; i < fits; ++i)
+				cache.put(i, value(i));
+			cache.get(0).close();
+			cache.put(fits, value(fits));
+			cache.put(fits + 1, value(fits + 1));
+			budget &= within(cache, entry);
+			boolean order = cache.getEvictionCount() > 0 && cache.containsKey(0) && !cache.containsKey(1)
+					&& cache.containsKey(fits + 1) && matches(cache, 0) && matches(cache, fits + 1);
+			
+			// Removing every other value leaves holes; values that fit into them must be stored by compacting the
+			// arena, without evicting anything
+			long evictions = cache.getEvictionCount();
+			List<Integer> kept = new ArrayList<>();
+			int removed = 0;
+			for(int i = 0; i <= fits + 1; ++i)
+			{
+				if(!cache.containsKey(i))
+					continue;
+				if(i % 2 == 0)
+				{
+					cache.remove(i);
+					++removed;
+				} else
+					kept.add(i);
+			}
+			int next = fits + 2;
+			for(int i = 0; i < removed / 2; ++i, kept.add(next++))
+				cache.put(next, value(next));
+			budget &= within(cache, entry);
+			boolean compacted = cache.getEvictionCount() == evictions && cache.size() == kept.size()
+					&& cache.getAllocatedBytes() == BUDGET;
+			for(int key : kept)
+				compacted &= matches(cache, key);
+			
+			boolean wiped = wipesOnClose(cache, next - 1);
+			cache.clear();
+			budget &= cache.size() == 0 && cache.getUsedBytes() == 0L && cache.getAllocatedBytes() == 0L;
+			
+			System.out.println(name + " evicts in LRU order: " + order + ", stays within budget: " + budget
+					+ ", compacts instead of evicting: " + compacted + ", wipes on close: " + wiped);
+			ok &= order && budget && compacted && wiped;
+		}
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static byte[] value(int key)
+	{
+		byte[] value = new byte[VALUE];
+		new Random(key).nextBytes(value);
+		return value;
+	}
+	
+	private static boolean matches(EncryptedCache<Integer> cache, int key)
+			throws Exception
+	{
+		try(EncryptedCache.Value value = cache.get(key))
+		{
+			return value != null && Arrays.equals(value.toByteArray(), value(key));
+		}
+	}
+	
+	/**
+	 * Checks that every cached value is accounted for and that neither the used nor the allocated bytes exceed the
+	 * budget.
+	 */
+	private static boolean within(EncryptedCache<Integer> cache, long entry)
+	{
+		return cache.getUsedBytes() == cache.size() * entry
+				&& cache.getUsedBytes() <= cache.getMaxBytes()
+				&& cache.getAllocatedBytes() <= cache.getMaxBytes();
+	}
+	
+	private static boolean wipesOnClose(EncryptedCache<Integer> cache, int key)
+			throws Exception
+	{
+		ByteBuffer dst = ByteBuffer.allocate(VALUE + 10);
+		dst.position(5);
+		EncryptedCache.Value value = cache.get(key, dst);
+		boolean decrypted = Arrays.equals(value.toByteArray(), value(key)) && dst.position() == 5 + VALUE;
+		value.close();
+		boolean zeroed = Arrays.equals(dst.array(), new byte[VALUE + 10]);
+		
+		EncryptedCache.Value leased = cache.get(key);
+		ByteBuffer plaintext = leased.buffer();
+		leased.close();
+		zeroed &= plaintext.capacity() == VALUE;
+		for(int i = 0; i < plaintext.capacity(); ++i)
+			zeroed &= plaintext.get(i) == 0;
+		try
+		{
+			leased.buffer();
+			zeroed = false;
+		} catch(IllegalStateException e)
+		{
+			// Expected, the plaintext is gone
+		}
+		return decrypted && zeroed;
+	}
+}
@@ -0,0 +1,124 @@
+import org.zeith.crypto.*;
+import org.zeith.crypto.util.EncryptedLog;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Appends records to an {@link EncryptedLog}, reads them back, and checks how reopening the log handles a record
+ * torn by a crash, a zero-filled tail, a tampered record and a record whose length was corrupted to point past
+ * the end of the file. Exits with status 1 on a failure.
+ */
+public class TestEncryptedLog
+{
+	private static final int HEADER = 4 + 8;
+	
+	public static void main(String[] args)
+			throws Exception
+	{
+		ICipher cipher = new AESCipher("superSecretPassword123");
+		SecretKey macKey = KeyGenerator.getInstance(EncryptedLog.MAC_ALGORITHM).generateKey();
+		Path file = Files.createTempFile("encrypted", ".log");
+		boolean ok = true;
+		try
+		{
+			List<Long> offsets = new ArrayList<>();
+			try(EncryptedLog log = new EncryptedLog(file, cipher, macKey))
+			{
+				for(int i = 0; i < 100; ++i)
+					offsets.add(log.append(("record " + i).getBytes()).join());
+			}
+			boolean roundTrip = read(file, cipher, macKey, 0L).size() == 100
+					&& read(file, cipher, macKey, offsets.get(42)).get(0).equals("record 42");
+			System.out.println("Records round-trip and resume from an offset: " + roundTrip);
+			ok &= roundTrip;
+			
+			// A crash in the middle of the last record leaves a prefix of it behind
+			long intact = Files.size(file);
+			try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+			{
+				channel.truncate(intact - 5);
+			}
+			try(EncryptedLog log = new EncryptedLog(file, cipher, macKey))
+			{
+				long offset = log.append("after crash".getBytes()).join();
+				ok &= offset == offsets.get(99);
+			}
+			List<String> recovered = read(file, cipher, macKey, 0L);
+			boolean torn = recovered.size() == 100 && recovered.get(98).equals("record 98") && recovered.get(99).equals("after crash");
+			System.out.println("A torn last record is truncated: " + torn);
+			ok &= torn;
+			
+			// A crash after the file grew but before the data reached the disk leaves zeros
+			intact = Files.size(file);
+			Files.write(file, new byte[4096], StandardOpenOption.APPEND);
+			new EncryptedLog(file, cipher, macKey).close();
+			boolean zeros = Files.size(file) == intact;
+			System.out.println("A zero-filled tail is truncated: " + zeros);
+			ok &= zeros;
+			
+			boolean tampered = failsToOpen(file, cipher, macKey, offsets.get(50) + HEADER, new byte[] { 0x55 });
+			System.out.println("A tampered record fails the open: " + tampered);
+			ok &= tampered;
+			
+			boolean length = failsToOpen(file, cipher, macKey, offsets.get(50), ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE - 1024).array());
+			System.out.println("A length pointing past the end of the file fails the open: " + length);
+			ok &= length;
+		} finally
+		{
+			Files.deleteIfExists(file);
+		}
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Overwrites bytes of a copy of the log and checks that opening it throws and leaves the file untouched.
+	 */
+	private static boolean failsToOpen(Path file, ICipher cipher, SecretKey macKey, long position, byte[] bytes)
+			throws Exception
+	{
+		Path copy = Files.createTempFile("corrupted", ".log");
+		try
+		{
+			Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+			try(FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE))
+			{
+				channel.write(ByteBuffer.wrap(bytes), position);
+			}
+			try
+			{
+				new EncryptedLog(copy, cipher, macKey).close();
+				return false;
+			} catch(IOException e)
+			{
+				return Files.size(copy) == Files.size(file);
+			}
+		} finally
+		{
+			Files.deleteIfExists(copy);
+		}
+	}
+	
+	private static List<String> read(Path file, ICipher cipher, SecretKey macKey, long offset)
+			throws Exception
+	{
+		List<String> records = new ArrayList<>();
+		try(EncryptedLog.Reader reader = EncryptedLog.reader(file, cipher, macKey, offset))
+		{
+			EncryptedLog.Record record;
+			while((record = reader.next()) != null)
+				records.add(new String(record.data()));
+		}
+		return records;
+	}
+}
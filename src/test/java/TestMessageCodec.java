@@ -0,0 +1,129 @@
+import org.zeith.crypto.ServerKeyGen;
+import org.zeith.crypto.util.BufferPool;
+import org.zeith.crypto.ws.*;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sends typed messages with {@link CipheredWebsocketListener#sendObject(Object, MessageCodec)} over an in-memory
+ * connection and decodes them with a {@link DecodingListener}. The codec's size hint is far too small, so encoding
+ * must be retried at double the capacity until the message fits, and a message larger than the biggest pooled buffer
+ * must get a one-off buffer that is not kept afterwards. Large messages are sent in several frames, which the
+ * receiver must join before decoding. Exits with status 1 on a failure.
+ */
+public class TestMessageCodec
+{
+	private static final int MAX_POOLED = 64 * 1024;
+	
+	public static void main(String[] args)
+			throws Exception
+	{
+		Codec codec = new Codec();
+		BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+		ServerWebsocketListener server = new ServerWebsocketListener(ServerKeyGen.shared(), new DecodingListener<>(codec, (ws, m) -> received.add(m)));
+		ClientWebsocketListener client = new ClientWebsocketListener("AES", new WebSocket.Listener()
+		{
+		});
+		BufferPool pool = new BufferPool(false, MAX_POOLED, 8, 1024 * 1024);
+		client.setBufferPool(pool);
+		client.setMaxFrameSize(16 * 1024);
+		LoopbackWebSocket.connect(server, client);
+		client.getHandshake().get(10, TimeUnit.SECONDS);
+		server.getHandshake().get(10, TimeUnit.SECONDS);
+		boolean ok = true;
+		
+		Message small = new Message("small", payload(1000));
+		List<Integer> smallAttempts = send(client, codec, small);
+		boolean retried = smallAttempts.equals(List.of(512, 1024)) && small.equals(received.poll(10, TimeUnit.SECONDS));
+		System.out.println("Too small a hint is retried at double capacity " + smallAttempts + ": " + retried);
+		ok &= retried;
+		
+		Message large = new Message("large", payload(300_000));
+		List<Integer> largeAttempts = send(client, codec, large);
+		boolean grown = largeAttempts.get(largeAttempts.size() - 1) == 512 * 1024 && large.equals(received.poll(10, TimeUnit.SECONDS));
+		
+		// One-off buffers are dropped on release, so sending the message again must allocate them again
+		long allocated = pool.getAllocatedCount();
+		send(client, codec, large);
+		boolean oneOff = pool.getAllocatedCount() > allocated && large.equals(received.poll(10, TimeUnit.SECONDS))
+				&& pool.getLeasedCount() == 0 && pool.getRetainedBytes() <= 1024 * 1024;
+		System.out.println("A message larger than the pooled buffers round-trips: " + grown + ", in one-off buffers: " + oneOff + " (" + pool + ")");
+		ok &= grown && oneOff;
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Sends a message and returns the buffer sizes the codec was given to encode it.
+	 */
+	private static List<Integer> send(ClientWebsocketListener client, Codec codec, Message message)
+			throws Exception
+	{
+		codec.attempts.clear();
+		client.sendObject(message, codec).get(10, TimeUnit.SECONDS);
+		return new ArrayList<>(codec.attempts);
+	}
+	
+	private static byte[] payload(int size)
+	{
+		byte[] payload = new byte[size];
+		new Random(size).nextBytes(payload);
+		return payload;
+	}
+	
+	private record Message(String name, byte[] payload)
+	{
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof Message m && name.equals(m.name) && Arrays.equals(payload, m.payload);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return 31 * name.hashCode() + Arrays.hashCode(payload);
+		}
+	}
+	
+	/**
+	 * Encodes {@code [int name length][name][int payload length][payload]}, hinting a size that never fits.
+	 */
+	private static class Codec
+			implements MessageCodec<Message>
+	{
+		final List<Integer> attempts = Collections.synchronizedList(new ArrayList<>());
+		
+		@Override
+		public int sizeHint(Message message)
+		{
+			return 16;
+		}
+		
+		@Override
+		public void encode(Message message, ByteBuffer out)
+		{
+			attempts.add(out.remaining());
+			byte[] name = message.name().getBytes(StandardCharsets.UTF_8);
+			out.putInt(name.length).put(name).putInt(message.payload().length).put(message.payload());
+		}
+		
+		@Override
+		public Message decode(ByteBuffer in)
+		{
+			byte[] name = new byte[in.getInt()];
+			in.get(name);
+			byte[] payload = new byte[in.getInt()];
+			in.get(payload);
+			return new Message(new String(name, StandardCharsets.UTF_8), payload);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+import org.zeith.crypto.ws.*;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sends multipart text and binary messages between a client and a server listener over an in-memory transport that
+ * splits every frame into small parts, as the JDK client does with large frames, and checks that the delegates
+ * receive the original messages, also when the parts are chained through the returned futures onto other threads.
+ * Exits with status 1 on a mismatch.
+ */
+public class TestMultipartMessages
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		Random random = new Random(1L);
+		Collector received = new Collector();
+		ServerWebsocketListener server = new ServerWebsocketListener(received);
+		ClientWebsocketListener client = new ClientWebsocketListener("AES", new WebSocket.Listener()
+		{
+		});
+		SplittingWebSocket[] sockets = SplittingWebSocket.connect(server, client);
+		client.getHandshake().get(10, TimeUnit.SECONDS);
+		server.getHandshake().get(10, TimeUnit.SECONDS);
+		
+		// The handshake itself is not fragmented; everything after it is
+		for(SplittingWebSocket socket : sockets)
+			socket.partSize = 7;
+		
+		byte[][] binaryParts = { randomBytes(random, 1000), randomBytes(random, 37), new byte[0], randomBytes(random, 5000) };
+		ByteBuffer expectedBinary = ByteBuffer.allocate(6037);
+		for(int i = 0; i < binaryParts.length; ++i)
+		{
+			expectedBinary.put(binaryParts[i]);
+			client.sendBinary(ByteBuffer.wrap(binaryParts[i]), i == binaryParts.length - 1).get(10, TimeUnit.SECONDS);
+		}
+		
+		String[] textParts = { "Hello, ", "w\u00f6rld", "! ", "\u20ac".repeat(500), "" };
+		for(int i = 0; i < textParts.length; ++i)
+			client.sendText(textParts[i], i == textParts.length - 1).get(10, TimeUnit.SECONDS);
+		
+		byte[] single = randomBytes(random, 100);
+		client.sendBinary(ByteBuffer.wrap(single), true).get(10, TimeUnit.SECONDS);
+		
+		// Parts chained through the futures continue the message on whichever thread completes them
+		byte[] head = randomBytes(random, 300), middle = randomBytes(random, 301), tail = randomBytes(random, 302);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		client.sendBinary(ByteBuffer.wrap(head), false)
+				.thenComposeAsync(ws -> client.sendBinary(ByteBuffer.wrap(middle), false), executor)
+				.thenComposeAsync(ws -> client.sendBinary(ByteBuffer.wrap(tail), true), executor)
+				.get(10, TimeUnit.SECONDS);
+		client.sendText("Hello from ", false)
+				.thenComposeAsync(ws -> client.sendText("another ", false), executor)
+				.thenComposeAsync(ws -> client.sendText("thread", true), executor)
+				.get(10, TimeUnit.SECONDS);
+		executor.shutdown();
+		
+		byte[] joined = ByteBuffer.allocate(903).put(head).put(middle).put(tail).array();
+		boolean ok = received.binary.size() == 3
+				&& Arrays.equals(received.binary.get(0), expectedBinary.array())
+				&& Arrays.equals(received.binary.get(1), single)
+				&& Arrays.equals(received.binary.get(2), joined)
+				&& received.text.equals(List.of(String.join("", textParts), "Hello from another thread"));
+		System.out.println("Multipart binary and text messages " + (ok ? "round-trip" : "FAILED"));
+		if(!ok)
+			System.exit(1);
+	}
+	
+	private static byte[] randomBytes(Random random, int length)
+	{
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+	
+	/**
+	 * Joins the parts of every received message.
+	 */
+	private static class Collector
+			implements WebSocket.Listener
+	{
+		final List<byte[]> binary = new ArrayList<>();
+		final List<String> text = new ArrayList<>();
+		private ByteBuffer binaryParts = ByteBuffer.allocate(0);
+		private final StringBuilder textParts = new StringBuilder();
+		
+		@Override
+		public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+		{
+			ByteBuffer joined = ByteBuffer.allocate(binaryParts.remaining() + data.remaining());
+			binaryParts = joined.put(binaryParts).put(data).flip();
+			if(last)
+			{
+				byte[] message = new byte[binaryParts.remaining()];
+				binaryParts.get(message);
+				binary.add(message);
+			}
+			return null;
+		}
+		
+		@Override
+		public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last)
+		{
+			textParts.append(data);
+			if(last)
+			{
+				text.add(textParts.toString());
+				textParts.setLength(0);
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * One end of an in-memory connection that delivers every frame to the peer listener in parts of at most
+	 * {@code partSize} bytes or characters, or whole if it is 0.
+	 */
+	private static class SplittingWebSocket
+			implements WebSocket
+	{
+		volatile int partSize;
+		private SplittingWebSocket peer;
+		private WebSocket.Listener peerListener;
+		
+		static SplittingWebSocket[] connect(WebSocket.Listener server, WebSocket.Listener client)
+		{
+			SplittingWebSocket serverSide = new SplittingWebSocket(), clientSide = new SplittingWebSocket();
+			serverSide.peer = clientSide;
+			serverSide.peerListener = client;
+			clientSide.peer = serverSide;
+			clientSide.peerListener = server;
+			client.onOpen(clientSide);
+			server.onOpen(serverSide);
+			return new SplittingWebSocket[] { serverSide, clientSide };
+		}
+		
+		@Override
+		public synchronized CompletableFuture<WebSocket> sendText(CharSequence data, boolean last)
+		{
+			String text = data.toString();
+			int step = partSize > 0 ? partSize : Math.max(1, text.length());
+			int i = 0;
+			do
+			{
+				int end = Math.min(text.length(), i + step);
+				peerListener.onText(peer, text.substring(i, end), last && end == text.length());
+				i = end;
+			} while(i < text.length());
+			return CompletableFuture.completedFuture(this);
+		}
+		
+		@Override
+		public synchronized CompletableFuture<WebSocket> sendBinary(ByteBuffer data, boolean last)
+		{
+			int step = partSize > 0 ? partSize : Math.max(1, data.remaining());
+			do
+			{
+				int n = Math.min(data.remaining(), step);
+				ByteBuffer part = ByteBuffer.allocate(n);
+				part.put(part.position(), data, data.position(), n);
+				data.position(data.position() + n);
+				peerListener.onBinary(peer, part, last && !data.hasRemaining());
+			} while(data.hasRemaining());
+			return CompletableFuture.completedFuture(this);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendPing(ByteBuffer message)
+		{
+			peerListener.onPing(peer, message);
+			return CompletableFuture.completedFuture(this);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendPong(ByteBuffer message)
+		{
+			peerListener.onPong(peer, message);
+			return CompletableFuture.completedFuture(this);
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendClose(int statusCode, String reason)
+		{
+			peerListener.onClose(peer, statusCode, reason);
+			return CompletableFuture.completedFuture(this);
+		}
+		
+		@Override
+		public void request(long n)
+		{
+		}
+		
+		@Override
+		public String getSubprotocol()
+		{
+			return "";
+		}
+		
+		@Override
+		public boolean isOutputClosed()
+		{
+			return false;
+		}
+		
+		@Override
+		public boolean isInputClosed()
+		{
+			return false;
+		}
+		
+		@Override
+		public void abort()
+		{
+		}
+	}
+}
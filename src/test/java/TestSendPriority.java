@@ -0,0 +1,235 @@
+import org.zeith.crypto.ws.*;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Queues a ping right behind a large binary message over an in-memory connection whose sends only complete when the
+ * test releases them, and checks how many bytes of the message went out before the ping. With a maximum frame size
+ * the ping overtakes the message after its first frame; by default the message is a single frame and the ping waits
+ * for all of it. In both cases the receiver must get the message intact. Exits with status 1 on a failure.
+ */
+public class TestSendPriority
+{
+	private static final int FRAME = 64 * 1024;
+	
+	public static void main(String[] args)
+			throws Exception
+	{
+		byte[] message = new byte[4 * 1024 * 1024];
+		new Random(1L).nextBytes(message);
+		
+		long[] framed = pingAfter(message, FRAME), whole = pingAfter(message, 0);
+		boolean overtakes = framed[0] > 0 && framed[0] <= FRAME + 1024 && framed[1] > framed[0];
+		boolean waits = whole[0] == whole[1];
+		System.out.println("With " + FRAME + " byte frames the ping went out after " + framed[0] + " of " + framed[1] + " bytes: " + overtakes);
+		System.out.println("Without a frame size the ping went out after " + whole[0] + " of " + whole[1] + " bytes: " + waits);
+		
+		if(!overtakes || !waits)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Sends the message and then a ping, and returns the number of binary bytes written before the ping and in total,
+	 * or -1 for both if the receiver did not get the message intact.
+	 */
+	private static long[] pingAfter(byte[] message, int maxFrameSize)
+			throws Exception
+	{
+		Receiver received = new Receiver();
+		ServerWebsocketListener server = new ServerWebsocketListener(received);
+		ClientWebsocketListener client = new ClientWebsocketListener("AES", new WebSocket.Listener()
+		{
+		});
+		GatedWebSocket gate = GatedWebSocket.connect(server, client);
+		client.getHandshake().get(10, TimeUnit.SECONDS);
+		server.getHandshake().get(10, TimeUnit.SECONDS);
+		client.setMaxFrameSize(maxFrameSize);
+		
+		gate.closed = true;
+		CompletableFuture<WebSocket> binary = client.sendBinary(ByteBuffer.wrap(message), true);
+		CompletableFuture<WebSocket> ping = client.sendPing(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }));
+		while(!binary.isDone() || !ping.isDone())
+		{
+			CompletableFuture<WebSocket> next = gate.pending.poll(10, TimeUnit.SECONDS);
+			if(next == null)
+				throw new TimeoutException("No frame was sent.");
+			next.complete(gate);
+		}
+		binary.get(10, TimeUnit.SECONDS);
+		ping.get(10, TimeUnit.SECONDS);
+		
+		if(received.binary.size() != 1 || !Arrays.equals(received.binary.get(0), message) || received.pings != 1)
+			return new long[] { -1L, -1L };
+		return new long[] { gate.bytesBeforePing, gate.bytes };
+	}
+	
+	/**
+	 * Joins the parts of every received binary message and counts pings.
+	 */
+	private static class Receiver
+			implements WebSocket.Listener
+	{
+		final List<byte[]> binary = new ArrayList<>();
+		int pings;
+		private ByteBuffer parts = ByteBuffer.allocate(0);
+		
+		@Override
+		public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+		{
+			ByteBuffer joined = ByteBuffer.allocate(parts.remaining() + data.remaining());
+			parts = joined.put(parts).put(data).flip();
+			if(last)
+			{
+				byte[] message = new byte[parts.remaining()];
+				parts.get(message);
+				binary.add(message);
+			}
+			webSocket.request(1L);
+			return null;
+		}
+		
+		@Override
+		public CompletionStage<?> onPing(WebSocket webSocket, ByteBuffer message)
+		{
+			++pings;
+			webSocket.request(1L);
+			return null;
+		}
+	}
+	
+	/**
+	 * The client end of a {@link LoopbackWebSocket} connection that, while closed, delivers every frame right away
+	 * but only completes its send once the test releases it, like a slow network would.
+	 */
+	private static class GatedWebSocket
+			implements WebSocket
+	{
+		final BlockingQueue<CompletableFuture<WebSocket>> pending = new LinkedBlockingQueue<>();
+		volatile boolean closed;
+		long bytes, bytesBeforePing = -1L;
+		private WebSocket inner;
+		
+		static GatedWebSocket connect(WebSocket.Listener server, WebSocket.Listener client)
+		{
+			GatedWebSocket gate = new GatedWebSocket();
+			LoopbackWebSocket.connect(server, new WebSocket.Listener()
+			{
+				@Override
+				public void onOpen(WebSocket webSocket)
+				{
+					gate.inner = webSocket;
+					client.onOpen(gate);
+				}
+				
+				@Override
+				public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last)
+				{
+					return client.onText(gate, data, last);
+				}
+				
+				@Override
+				public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+				{
+					return client.onBinary(gate, data, last);
+				}
+				
+				@Override
+				public CompletionStage<?> onPing(WebSocket webSocket, ByteBuffer message)
+				{
+					return client.onPing(gate, message);
+				}
+				
+				@Override
+				public CompletionStage<?> onPong(WebSocket webSocket, ByteBuffer message)
+				{
+					return client.onPong(gate, message);
+				}
+				
+				@Override
+				public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason)
+				{
+					return client.onClose(gate, statusCode, reason);
+				}
+			});
+			return gate;
+		}
+		
+		private CompletableFuture<WebSocket> hold(CompletableFuture<WebSocket> delivered)
+		{
+			if(!closed)
+				return delivered.thenApply(ws -> this);
+			CompletableFuture<WebSocket> future = new CompletableFuture<>();
+			pending.add(future);
+			return future;
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendText(CharSequence data, boolean last)
+		{
+			return hold(inner.sendText(data, last));
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendBinary(ByteBuffer data, boolean last)
+		{
+			if(closed)
+				bytes += data.remaining();
+			return hold(inner.sendBinary(data, last));
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendPing(ByteBuffer message)
+		{
+			bytesBeforePing = bytes;
+			return hold(inner.sendPing(message));
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendPong(ByteBuffer message)
+		{
+			return hold(inner.sendPong(message));
+		}
+		
+		@Override
+		public CompletableFuture<WebSocket> sendClose(int statusCode, String reason)
+		{
+			return inner.sendClose(statusCode, reason);
+		}
+		
+		@Override
+		public void request(long n)
+		{
+			inner.request(n);
+		}
+		
+		@Override
+		public String getSubprotocol()
+		{
+			return inner.getSubprotocol();
+		}
+		
+		@Override
+		public boolean isOutputClosed()
+		{
+			return inner.isOutputClosed();
+		}
+		
+		@Override
+		public boolean isInputClosed()
+		{
+			return inner.isInputClosed();
+		}
+		
+		@Override
+		public void abort()
+		{
+			inner.abort();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+import org.zeith.crypto.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Saves and loads server key pairs as PEM files and PKCS#12 key stores, and checks that
+ * {@link ServerKeyGen#loadOrCreate(String, Path, Path)} recovers a missing public key file, refuses a memoized
+ * key pair of another algorithm and never replaces a private key whose public key cannot be derived. Keys of
+ * different pairs must be refused. Needs {@code keytool} from the running JDK. Exits with status 1 on a failure.
+ */
+public class TestServerKeys
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		Path dir = Files.createTempDirectory("server-keys");
+		boolean ok = true;
+		try
+		{
+			ServerKeyGen generated = new ServerKeyGen("RSA");
+			Path privateKey = dir.resolve("server.key"), publicKey = dir.resolve("server.pub");
+			generated.savePem(privateKey, publicKey);
+			boolean pem = ServerKeyGen.fromPem("RSA", privateKey, publicKey).getPublicKey().equals(generated.getPublicKey());
+			System.out.println("PEM round-trip: " + pem);
+			ok &= pem;
+			
+			Files.delete(publicKey);
+			ServerKeyGen recovered = ServerKeyGen.loadOrCreate("RSA", privateKey, publicKey);
+			boolean derived = recovered.getPublicKey().equals(generated.getPublicKey())
+					&& ServerKeyGen.fromPem("RSA", privateKey, publicKey).getPublicKey().equals(generated.getPublicKey());
+			System.out.println("Missing public key file is derived and written back: " + derived);
+			ok &= derived;
+			
+			boolean memoized = ServerKeyGen.loadOrCreate("RSA", privateKey, publicKey) == recovered;
+			boolean refused;
+			try
+			{
+				ServerKeyGen.loadOrCreate("EC", privateKey, publicKey);
+				refused = false;
+			} catch(IllegalArgumentException e)
+			{
+				refused = true;
+			}
+			System.out.println("Memoized per file: " + memoized + ", other algorithm refused: " + refused);
+			ok &= memoized && refused;
+			
+			// An EC public key cannot be recomputed from the private key, which must then be left alone
+			Path ecPrivate = dir.resolve("ec.key"), ecPublic = dir.resolve("ec.pub");
+			new ServerKeyGen(KeyPairGenerator.getInstance("EC").generateKeyPair()).savePem(ecPrivate, ecPublic);
+			Files.delete(ecPublic);
+			byte[] ecKey = Files.readAllBytes(ecPrivate);
+			boolean kept;
+			try
+			{
+				ServerKeyGen.loadOrCreate("EC", ecPrivate, ecPublic);
+				kept = false;
+			} catch(IOException e)
+			{
+				kept = Arrays.equals(Files.readAllBytes(ecPrivate), ecKey) && !Files.exists(ecPublic);
+			}
+			System.out.println("Underivable public key fails without replacing the private key: " + kept);
+			ok &= kept;
+			
+			Path otherPrivate = dir.resolve("other.key"), otherPublic = dir.resolve("other.pub");
+			new ServerKeyGen("RSA").savePem(otherPrivate, otherPublic);
+			new ServerKeyGen(KeyPairGenerator.getInstance("EC").generateKeyPair()).savePem(dir.resolve("ec2.key"), ecPublic);
+			boolean mismatch = mismatched("RSA", privateKey, otherPublic) && mismatched("EC", ecPrivate, ecPublic);
+			System.out.println("Keys of different pairs are refused: " + mismatch);
+			ok &= mismatch;
+			
+			// Creating certificates takes keytool, the JDK has no public API for it
+			Path original = dir.resolve("original.p12"), copy = dir.resolve("copy.p12");
+			char[] password = "changeit".toCharArray();
+			Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+					"-genkeypair", "-keyalg", "RSA", "-keysize", "2048", "-alias", "server", "-dname", "CN=localhost",
+					"-validity", "1", "-storetype", "PKCS12", "-keystore", original.toString(),
+					"-storepass", "changeit", "-keypass", "changeit")
+					.redirectErrorStream(true).start();
+			keytool.getInputStream().transferTo(System.out);
+			ok &= keytool.waitFor() == 0;
+			
+			ServerKeyGen stored = ServerKeyGen.fromKeyStore(original, password, "server");
+			KeyStore store = KeyStore.getInstance("PKCS12");
+			try(InputStream in = Files.newInputStream(original))
+			{
+				store.load(in, password);
+			}
+			Certificate[] chain = store.getCertificateChain("server");
+			stored.saveKeyStore(copy, password, "copy", chain);
+			boolean keyStore = ServerKeyGen.fromKeyStore(copy, password, "copy").getPublicKey().equals(stored.getPublicKey())
+					&& stored.getPublicKey().equals(chain[0].getPublicKey());
+			System.out.println("Key store round-trip: " + keyStore);
+			ok &= keyStore;
+		} finally
+		{
+			try(Stream<Path> files = Files.walk(dir))
+			{
+				files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static boolean mismatched(String algorithm, Path privateKey, Path publicKey)
+			throws Exception
+	{
+		try
+		{
+			ServerKeyGen.fromPem(algorithm, privateKey, publicKey);
+			return false;
+		} catch(InvalidKeyException e)
+		{
+			return true;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+import org.zeith.crypto.ServerKeyGen;
+import org.zeith.crypto.ws.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs several streams over one in-memory ciphered connection and checks that a small message interleaves with a large
+ * one queued before it, that a sender stops once its window is used up and resumes as the receiver consumes the data,
+ * that a close from either end is answered and unregisters the stream on both, and that a reset fails the unsent
+ * messages. Exits with status 1 on a failure.
+ */
+public class TestStreamMultiplexer
+{
+	private static final int WINDOW = 4096, FRAGMENT = 1024;
+	
+	public static void main(String[] args)
+			throws Exception
+	{
+		boolean ok = true;
+		
+		// Interleaving: both messages are queued before the handshake, then take turns
+		Pair pair = new Pair();
+		StreamMultiplexer.Stream large = pair.client.open(1, new Collector(null));
+		StreamMultiplexer.Stream small = pair.client.open(2, new Collector(null));
+		CompletableFuture<Void> largeSent = large.send(ByteBuffer.allocate(3 * FRAGMENT));
+		CompletableFuture<Void> smallSent = small.send(ByteBuffer.allocate(100));
+		pair.connect();
+		CompletableFuture.allOf(largeSent, smallSent).get(10, TimeUnit.SECONDS);
+		List<String> order = pair.log;
+		boolean interleaved = order.equals(List.of("1:" + FRAGMENT, "2:100 end", "1:" + FRAGMENT, "1:" + FRAGMENT + " end"));
+		System.out.println("Fragments arrived as " + order + ": " + interleaved);
+		ok &= interleaved;
+		
+		// Credit: the receiver holds on to its data until the test lets go
+		BlockingQueue<CompletableFuture<Void>> held = new LinkedBlockingQueue<>();
+		pair.holding = held;
+		StreamMultiplexer.Stream bulk = pair.client.open(3, new Collector(null));
+		CompletableFuture<Void> bulkSent = bulk.send(ByteBuffer.allocate(3 * WINDOW));
+		long stalledAt = pair.received(3);
+		boolean exhausted = stalledAt == WINDOW && bulk.getCredit() == 0 && !bulkSent.isDone();
+		for(int i = 0; i < 100 && !bulkSent.isDone(); ++i)
+		{
+			CompletableFuture<Void> next = held.poll(10, TimeUnit.SECONDS);
+			if(next == null)
+				break;
+			next.complete(null);
+		}
+		boolean replenished = bulkSent.isDone() && pair.received(3) == 3 * WINDOW;
+		System.out.println("Stalled after " + stalledAt + " bytes without credit: " + exhausted + ", resumed once consumed: " + replenished);
+		ok &= exhausted && replenished;
+		pair.holding = null;
+		held.forEach(f -> f.complete(null));
+		
+		// Closes from either end
+		ok &= closes(pair, 4, true);
+		ok &= closes(pair, 5, false);
+		
+		// Reset: a message stuck without credit is failed, as is the one queued behind it
+		pair.holding = held;
+		Collector resetListener = new Collector(null);
+		StreamMultiplexer.Stream reset = pair.client.open(6, resetListener);
+		CompletableFuture<Void> stuck = reset.send(ByteBuffer.allocate(2 * WINDOW));
+		CompletableFuture<Void> behind = reset.send(ByteBuffer.allocate(10));
+		reset.reset().get(10, TimeUnit.SECONDS);
+		boolean failed = failure(stuck) instanceof IllegalStateException && failure(behind) instanceof IllegalStateException;
+		boolean unregistered = pair.client.getStream(6) == null && pair.server.getStream(6) == null;
+		boolean notified = resetListener.closed == 1 && pair.closed.contains(6) && pair.received(6) == WINDOW;
+		System.out.println("Reset fails unsent messages: " + failed + ", closes both ends: " + (unregistered && notified));
+		ok &= failed && unregistered && notified;
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Sends a message on a new stream and closes it from the client or the server end.
+	 */
+	private static boolean closes(Pair pair, int id, boolean byClient)
+			throws Exception
+	{
+		Collector clientListener = new Collector(null);
+		StreamMultiplexer.Stream stream = pair.client.open(id, clientListener);
+		stream.send(ByteBuffer.wrap(new byte[] { 1, 2, 3 })).get(10, TimeUnit.SECONDS);
+		
+		StreamMultiplexer.Stream closing = byClient ? stream : pair.server.getStream(id);
+		closing.close().get(10, TimeUnit.SECONDS);
+		
+		boolean delivered = pair.received(id) == 3;
+		boolean answered = clientListener.closed == 1 && pair.closed.contains(id);
+		boolean unregistered = pair.client.getStream(id) == null && pair.server.getStream(id) == null;
+		boolean refused = failure(stream.send(ByteBuffer.allocate(1))) instanceof IllegalStateException;
+		boolean ok = delivered && answered && unregistered && refused;
+		System.out.println("Close from the " + (byClient ? "client" : "server") + " is answered, unregistered and refuses sends: " + ok);
+		return ok;
+	}
+	
+	private static Throwable failure(CompletableFuture<?> future)
+	{
+		try
+		{
+			future.get(10, TimeUnit.SECONDS);
+			return null;
+		} catch(ExecutionException e)
+		{
+			return e.getCause();
+		} catch(InterruptedException | TimeoutException e)
+		{
+			return e;
+		}
+	}
+	
+	/**
+	 * A client and a server multiplexer whose server accepts every stream, logging each fragment it receives.
+	 */
+	private static class Pair
+	{
+		final List<String> log = new ArrayList<>();
+		final Map<Integer, Long> bytes = new ConcurrentHashMap<>();
+		final Set<Integer> closed = ConcurrentHashMap.newKeySet();
+		volatile BlockingQueue<CompletableFuture<Void>> holding;
+		final StreamMultiplexer server, client;
+		
+		Pair()
+		{
+			ServerKeyGen key = ServerKeyGen.shared();
+			server = new StreamMultiplexer(d -> new ServerWebsocketListener(key, d), id -> new Collector(this), WINDOW, FRAGMENT);
+			client = new StreamMultiplexer(d -> new ClientWebsocketListener("AES", d), id -> null, WINDOW, FRAGMENT);
+		}
+		
+		void connect()
+				throws Exception
+		{
+			LoopbackWebSocket.connect(server.getConnection(), client.getConnection());
+			client.getConnection().getHandshake().get(10, TimeUnit.SECONDS);
+			server.getConnection().getHandshake().get(10, TimeUnit.SECONDS);
+		}
+		
+		long received(int id)
+		{
+			return bytes.getOrDefault(id, 0L);
+		}
+	}
+	
+	/**
+	 * Counts closes and, for the server end, records what arrives.
+	 */
+	private static class Collector
+			implements StreamMultiplexer.StreamListener
+	{
+		private final Pair pair;
+		int closed;
+		
+		Collector(Pair pair)
+		{
+			this.pair = pair;
+		}
+		
+		@Override
+		public CompletionStage<?> onData(StreamMultiplexer.Stream stream, ByteBuffer data, boolean last)
+		{
+			if(pair == null)
+				return null;
+			pair.log.add(stream.getId() + ":" + data.remaining() + (last ? " end" : ""));
+			pair.bytes.merge(stream.getId(), (long) data.remaining(), Long::sum);
+			BlockingQueue<CompletableFuture<Void>> holding = pair.holding;
+			if(holding == null)
+				return null;
+			CompletableFuture<Void> consumed = new CompletableFuture<>();
+			holding.add(consumed);
+			return consumed;
+		}
+		
+		@Override
+		public void onClose(StreamMultiplexer.Stream stream)
+		{
+			++closed;
+			if(pair != null)
+				pair.closed.add(stream.getId());
+		}
+	}
+}
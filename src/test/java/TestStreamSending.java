@@ -0,0 +1,128 @@
+import org.zeith.crypto.ServerKeyGen;
+import org.zeith.crypto.ws.*;
+
+import java.io.*;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Streams multi-megabyte inputs with {@link CipheredWebsocketListener#sendStream(InputStream)} and
+ * {@link CipheredWebsocketListener#sendStream(java.nio.channels.ReadableByteChannel, int, Executor)} over in-memory
+ * connections and checks that the receiver reassembles each into the original message. A stream whose read fails
+ * halfway must fail the returned future and abort the connection, so the receiver never sees the message end.
+ * Exits with status 1 on a failure.
+ */
+public class TestStreamSending
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		byte[] data = new byte[8 * 1024 * 1024 + 123];
+		new Random(1L).nextBytes(data);
+		boolean ok = true;
+		
+		Receiver receiver = new Receiver();
+		ClientWebsocketListener client = connect(receiver);
+		client.sendStream(new ByteArrayInputStream(data)).get(30, TimeUnit.SECONDS);
+		byte[] streamed = receiver.message.get(30, TimeUnit.SECONDS);
+		boolean intact = Arrays.equals(streamed, data) && receiver.parts > 1;
+		System.out.println("InputStream of " + data.length + " bytes arrives intact in " + receiver.parts + " parts: " + intact);
+		ok &= intact;
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Receiver channelReceiver = new Receiver();
+			ClientWebsocketListener channelClient = connect(channelReceiver);
+			byte[] part = Arrays.copyOf(data, 3 * 1024 * 1024);
+			channelClient.sendStream(Channels.newChannel(new ByteArrayInputStream(part)), 100_000, executor).get(30, TimeUnit.SECONDS);
+			boolean channel = Arrays.equals(channelReceiver.message.get(30, TimeUnit.SECONDS), part) && channelReceiver.parts == 32;
+			System.out.println("Channel with 100000 byte fragments arrives intact in " + channelReceiver.parts + " parts: " + channel);
+			ok &= channel;
+		} finally
+		{
+			executor.shutdown();
+		}
+		
+		// Fails once a megabyte has been read, after several fragments went out
+		IOException broken = new IOException("Disk gone");
+		InputStream failing = new SequenceInputStream(new ByteArrayInputStream(data, 0, 1024 * 1024), new InputStream()
+		{
+			@Override
+			public int read()
+					throws IOException
+			{
+				throw broken;
+			}
+		});
+		Receiver failedReceiver = new Receiver();
+		ClientWebsocketListener failedClient = connect(failedReceiver);
+		Throwable error;
+		try
+		{
+			failedClient.sendStream(failing).get(30, TimeUnit.SECONDS);
+			error = null;
+		} catch(ExecutionException e)
+		{
+			error = e.getCause();
+		}
+		boolean failed = error == broken && failedReceiver.closed.get(10, TimeUnit.SECONDS) == 1006 && !failedReceiver.message.isDone()
+				&& failedReceiver.parts > 1;
+		System.out.println("A read failure mid-stream fails the future and aborts after " + failedReceiver.parts + " parts: " + failed);
+		ok &= failed;
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static ClientWebsocketListener connect(Receiver receiver)
+			throws Exception
+	{
+		ServerWebsocketListener server = new ServerWebsocketListener(ServerKeyGen.shared(), receiver);
+		ClientWebsocketListener client = new ClientWebsocketListener("AES", new WebSocket.Listener()
+		{
+		});
+		LoopbackWebSocket.connect(server, client);
+		client.getHandshake().get(10, TimeUnit.SECONDS);
+		server.getHandshake().get(10, TimeUnit.SECONDS);
+		return client;
+	}
+	
+	/**
+	 * Joins the parts of one binary message and keeps the status code the connection was closed with.
+	 */
+	private static class Receiver
+			implements WebSocket.Listener
+	{
+		final CompletableFuture<byte[]> message = new CompletableFuture<>();
+		final CompletableFuture<Integer> closed = new CompletableFuture<>();
+		private final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		volatile int parts;
+		
+		@Override
+		public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+		{
+			byte[] part = new byte[data.remaining()];
+			data.get(part);
+			joined.writeBytes(part);
+			++parts;
+			if(last)
+				message.complete(joined.toByteArray());
+			webSocket.request(1L);
+			return null;
+		}
+		
+		@Override
+		public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason)
+		{
+			closed.complete(statusCode);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+import org.zeith.crypto.ServerKeyGen;
+import org.zeith.crypto.ws.*;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds the messages of an in-memory ciphered connection to {@link WebSocketPublisher} subscribers and counts the
+ * demand the publisher passes on to the WebSocket. Checks that demand requested before the connection opens is passed
+ * on, that the handshake takes no demand from the subscribers, that a subscriber which stops requesting stops the
+ * WebSocket from reading, that a message of the other kind is held until its own subscriber asks for it, that the
+ * demand of held messages is given back on cancel, and that a close or an error terminates both publishers. Also
+ * checks that a {@link WebSocketSubscriber} never has more than {@code inFlight} sends outstanding. Exits with status
+ * 1 on a failure.
+ */
+public class TestWebSocketFlow
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		boolean ok = true;
+		
+		// Demand from before the connection opened
+		WebSocketPublisher publisher = new WebSocketPublisher();
+		Collector<ByteBuffer> binary = new Collector<>(2L);
+		Collector<CharSequence> text = new Collector<>(0L);
+		publisher.binary().subscribe(binary);
+		publisher.text().subscribe(text);
+		AtomicLong requested = new AtomicLong();
+		ClientWebsocketListener client = connect(publisher, requested);
+		
+		for(int i = 0; i < 5; ++i)
+			client.sendBinary(ByteBuffer.wrap(new byte[] { (byte) i }), true).get(10, TimeUnit.SECONDS);
+		client.sendText("hello", true).get(10, TimeUnit.SECONDS);
+		
+		// One message of demand goes to the handshake, which the ciphered listener replaces itself
+		boolean limited = binary.count() == 2 && requested.get() == 1 + 2;
+		binary.subscription.request(1L);
+		boolean resumed = binary.count() == 3 && requested.get() == 1 + 3;
+		System.out.println("request(n) limits delivery: " + limited + ", and a slow subscriber stops reading: " + resumed);
+		ok &= limited && resumed;
+		
+		// The next message is binary, so text demand is spent on it and holds it
+		binary.subscription.request(1L);
+		text.subscription.request(1L);
+		boolean held = binary.count() == 4 && text.count() == 0;
+		binary.subscription.request(1L);
+		boolean released = binary.count() == 5 && text.count() == 1 && "hello".contentEquals(text.items.get(0));
+		System.out.println("A message of the other kind is held: " + held + ", until requested: " + released);
+		ok &= held && released;
+		
+		// A held message gives its demand back when its subscriber cancels
+		client.sendBinary(ByteBuffer.wrap(new byte[] { 5 }), true).get(10, TimeUnit.SECONDS);
+		client.sendText("second", true).get(10, TimeUnit.SECONDS);
+		text.subscription.request(1L);
+		long before = requested.get();
+		binary.subscription.cancel();
+		boolean returned = binary.count() == 5 && text.count() == 2 && requested.get() == before + 1;
+		System.out.println("Cancel gives back the demand of held messages: " + returned);
+		ok &= returned;
+		
+		// Close and error end both publishers
+		WebSocketPublisher closing = new WebSocketPublisher();
+		Collector<ByteBuffer> closedBinary = new Collector<>(1L);
+		Collector<CharSequence> closedText = new Collector<>(1L);
+		closing.binary().subscribe(closedBinary);
+		closing.text().subscribe(closedText);
+		connect(closing, new AtomicLong()).getWebSocket().sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+		
+		WebSocketPublisher failing = new WebSocketPublisher();
+		Collector<ByteBuffer> failedBinary = new Collector<>(1L);
+		Collector<CharSequence> failedText = new Collector<>(1L);
+		failing.binary().subscribe(failedBinary);
+		failing.text().subscribe(failedText);
+		IOException error = new IOException("Connection reset");
+		failing.onError(null, error);
+		
+		boolean terminated = closedBinary.completed && closedText.completed && failedBinary.error == error && failedText.error == error;
+		System.out.println("Close and error terminate both publishers: " + terminated);
+		ok &= terminated;
+		
+		// Sends that only complete when the test lets them
+		BlockingQueue<CompletableFuture<WebSocket>> sends = new LinkedBlockingQueue<>();
+		AtomicLong outstanding = new AtomicLong(), maxOutstanding = new AtomicLong(), sent = new AtomicLong();
+		WebSocketSubscriber<Integer> subscriber = new WebSocketSubscriber<>(client, (l, item) ->
+		{
+			maxOutstanding.accumulateAndGet(outstanding.incrementAndGet(), Math::max);
+			sent.incrementAndGet();
+			CompletableFuture<WebSocket> send = new CompletableFuture<>();
+			sends.add(send);
+			return send;
+		}, 3);
+		try(SubmissionPublisher<Integer> upstream = new SubmissionPublisher<>())
+		{
+			upstream.subscribe(subscriber);
+			for(int i = 0; i < 20; ++i)
+				upstream.submit(i);
+		}
+		// The publisher delivers on its own thread; once three sends are out, no fourth may follow
+		for(int i = 0; i < 1000 && sent.get() < 3; ++i)
+			Thread.sleep(10L);
+		Thread.sleep(100L);
+		boolean capped = sent.get() == 3;
+		while(!subscriber.getResult().isDone())
+		{
+			CompletableFuture<WebSocket> send = sends.poll(10, TimeUnit.SECONDS);
+			if(send == null)
+				break;
+			outstanding.decrementAndGet();
+			send.complete(client.getWebSocket());
+		}
+		boolean bounded = capped && subscriber.getResult().isDone() && !subscriber.getResult().isCompletedExceptionally()
+				&& sent.get() == 20 && maxOutstanding.get() == 3;
+		System.out.println("WebSocketSubscriber keeps at most 3 sends outstanding (" + maxOutstanding + "): " + bounded);
+		ok &= bounded;
+		
+		if(!ok)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Connects a client to a server delegating to the publisher, counting the demand the server end requests.
+	 */
+	private static ClientWebsocketListener connect(WebSocketPublisher publisher, AtomicLong requested)
+			throws Exception
+	{
+		ServerWebsocketListener server = new ServerWebsocketListener(ServerKeyGen.shared(), publisher);
+		ClientWebsocketListener client = new ClientWebsocketListener("AES", new WebSocket.Listener()
+		{
+		});
+		LoopbackWebSocket.connect(counting(server, requested), client);
+		client.getHandshake().get(10, TimeUnit.SECONDS);
+		server.getHandshake().get(10, TimeUnit.SECONDS);
+		return client;
+	}
+	
+	/**
+	 * Wraps a listener so that the WebSocket it is handed adds every {@link WebSocket#request(long)} to a counter.
+	 */
+	private static WebSocket.Listener counting(WebSocket.Listener listener, AtomicLong requested)
+	{
+		Map<WebSocket, WebSocket> wrapped = new ConcurrentHashMap<>();
+		ClassLoader loader = TestWebSocketFlow.class.getClassLoader();
+		return (WebSocket.Listener) Proxy.newProxyInstance(loader, new Class<?>[] { WebSocket.Listener.class }, (proxy, method, args) ->
+		{
+			if(args != null && args.length > 0 && args[0] instanceof WebSocket webSocket)
+				args[0] = wrapped.computeIfAbsent(webSocket, ws -> (WebSocket) Proxy.newProxyInstance(loader, new Class<?>[] { WebSocket.class }, (p, m, a) ->
+				{
+					if(m.getName().equals("request"))
+						requested.addAndGet((Long) a[0]);
+					Object result = m.invoke(ws, a);
+					// Sends complete with the WebSocket, which must be the counting one as well
+					return result instanceof CompletableFuture<?> send ? send.thenApply(r -> p) : result;
+				}));
+			return method.invoke(listener, args);
+		});
+	}
+	
+	/**
+	 * Collects the items of a publisher, requesting a number of them when subscribed.
+	 */
+	private static class Collector<T>
+			implements Flow.Subscriber<T>
+	{
+		final List<T> items = Collections.synchronizedList(new ArrayList<>());
+		private final long initial;
+		Flow.Subscription subscription;
+		volatile boolean completed;
+		volatile Throwable error;
+		
+		Collector(long initial)
+		{
+			this.initial = initial;
+		}
+		
+		int count()
+		{
+			return items.size();
+		}
+		
+		@Override
+		public void onSubscribe(Flow.Subscription subscription)
+		{
+			this.subscription = subscription;
+			if(initial > 0L)
+				subscription.request(initial);
+		}
+		
+		@Override
+		public void onNext(T item)
+		{
+			items.add(item);
+		}
+		
+		@Override
+		public void onError(Throwable throwable)
+		{
+			error = throwable;
+		}
+		
+		@Override
+		public void onComplete()
+		{
+			completed = true;
+		}
+	}
+}
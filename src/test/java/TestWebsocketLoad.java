@@ -0,0 +1,282 @@
+import org.zeith.crypto.ServerKeyGen;
+import org.zeith.crypto.util.BufferPool;
+import org.zeith.crypto.ws.*;
+
+import java.net.URI;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * End-to-end load test: starts a {@link LocalWebSocketServer} with echoing {@link ServerWebsocketListener}s
+ * and connects many {@link ClientWebsocketListener}s through {@code java.net.http}.
+ * <p>
+ * Arguments are {@code key=value} pairs:
+ * <ul>
+ * <li>{@code clients} - number of connections (default 1000)</li>
+ * <li>{@code messages} - closed-loop round trips per client (default 50)</li>
+ * <li>{@code payloads} - payload mix as {@code size:weight,...} (default {@code 64:70,1024:25,65536:5})</li>
+ * <li>{@code http} - number of {@link HttpClient}s the connections are spread over (default 4)</li>
+ * <li>{@code parallel} - handshakes in flight at once (default 64)</li>
+ * <li>{@code algorithm} - symmetric algorithm negotiated by clients (default AES)</li>
+ * <li>{@code handshakeThreads} - run server handshakes on a {@link HandshakeExecutor} with this many threads (default 0, inline)</li>
+ * <li>{@code handshakeQueue} - queue capacity of that executor (default 256)</li>
+ * </ul>
+ * Reports handshake rate, message throughput, round-trip latency percentiles and heap use.
+ * Client and server share this JVM, so heap numbers cover both ends of every connection.
+ */
+public class TestWebsocketLoad
+{
+	public static void main(String[] args)
+			throws Exception
+	{
+		Map<String, String> opts = new HashMap<>();
+		for(String arg : args)
+		{
+			int eq = arg.indexOf('=');
+			if(eq > 0) opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		
+		int clients = Integer.parseInt(opts.getOrDefault("clients", "1000"));
+		int messages = Integer.parseInt(opts.getOrDefault("messages", "50"));
+		int httpClients = Integer.parseInt(opts.getOrDefault("http", "4"));
+		int parallel = Integer.parseInt(opts.getOrDefault("parallel", "64"));
+		String algorithm = opts.getOrDefault("algorithm", "AES");
+		int handshakeThreads = Integer.parseInt(opts.getOrDefault("handshakeThreads", "0"));
+		int handshakeQueue = Integer.parseInt(opts.getOrDefault("handshakeQueue", "256"));
+		PayloadMix mix = PayloadMix.parse(opts.getOrDefault("payloads", "64:70,1024:25,65536:5"));
+		
+		// A production server keeps one key pair for all of its connections
+		ServerKeyGen serverKey = new ServerKeyGen("RSA");
+		HandshakeExecutor handshakes = handshakeThreads > 0 ? new HandshakeExecutor(handshakeThreads, handshakeQueue) : null;
+		
+		try(LocalWebSocketServer server = new LocalWebSocketServer(() -> echo(serverKey, handshakes)))
+		{
+			URI uri = server.getUri();
+			HttpClient[] http = new HttpClient[httpClients];
+			for(int i = 0; i < http.length; ++i)
+				http[i] = HttpClient.newHttpClient();
+			
+			long heapBefore = usedHeap();
+			
+			// Handshake phase
+			List<Client> conns = new ArrayList<>(clients);
+			List<CompletableFuture<?>> pending = new ArrayList<>(clients);
+			Semaphore permits = new Semaphore(parallel);
+			long start = System.nanoTime();
+			for(int i = 0; i < clients; ++i)
+			{
+				permits.acquire();
+				Client c = new Client(algorithm, messages);
+				conns.add(c);
+				pending.add(c.connect(http[i % http.length], uri).whenComplete((r, e) -> permits.release()));
+			}
+			CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).join();
+			long handshakeNanos = System.nanoTime() - start;
+			
+			long heapConnected = usedHeap();
+			
+			// Message phase
+			pending.clear();
+			start = System.nanoTime();
+			long seed = 0;
+			for(Client c : conns)
+				pending.add(c.run(mix, new Random(seed++)));
+			CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).join();
+			long messageNanos = System.nanoTime() - start;
+			
+			long heapAfter = usedHeap();
+			
+			long[] hs = conns.stream().mapToLong(c -> c.handshakeNanos).sorted().toArray();
+			long[] rtt = conns.stream().flatMapToLong(c -> Arrays.stream(c.latencies)).sorted().toArray();
+			long bytes = conns.stream().mapToLong(c -> c.bytes).sum();
+			
+			System.out.println("----------- load -----------");
+			System.out.printf("clients=%d messages/client=%d payloads=%s algorithm=%s%n", clients, messages, mix, algorithm);
+			System.out.printf("handshakes:  %.1f/s  (p50 %.3f ms, p99 %.3f ms, p999 %.3f ms)%n",
+					clients / seconds(handshakeNanos), millis(percentile(hs, 0.5)), millis(percentile(hs, 0.99)), millis(percentile(hs, 0.999)));
+			System.out.printf("messages:    %.1f/s  (%.2f MiB/s each way)%n",
+					rtt.length / seconds(messageNanos), bytes / seconds(messageNanos) / (1024 * 1024));
+			System.out.printf("round trip:  p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms%n",
+					millis(percentile(rtt, 0.5)), millis(percentile(rtt, 0.99)), millis(percentile(rtt, 0.999)), millis(rtt[rtt.length - 1]));
+			System.out.printf("heap:        %.1f KiB/connection after handshake, %.1f MiB after messages%n",
+					(heapConnected - heapBefore) / 1024D / clients, (heapAfter - heapBefore) / (1024D * 1024));
+			System.out.println("buffers:     " + BufferPool.shared());
+			if(handshakes != null)
+				System.out.println("executor:    " + handshakes);
+			System.out.println("----------------------------");
+			
+			for(Client c : conns)
+				c.listener.getWebSocket().abort();
+		}
+	}
+	
+	private static WebSocket.Listener echo(ServerKeyGen key, HandshakeExecutor handshakes)
+	{
+		ServerWebsocketListener[] self = new ServerWebsocketListener[1];
+		self[0] = new ServerWebsocketListener(key, handshakes, new WebSocket.Listener()
+		{
+			@Override
+			public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+			{
+				webSocket.request(1L);
+				return self[0].sendBinary(data, last);
+			}
+		});
+		return self[0];
+	}
+	
+	private static long usedHeap()
+	{
+		Runtime rt = Runtime.getRuntime();
+		for(int i = 0; i < 3; ++i)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	private static long percentile(long[] sorted, double q)
+	{
+		if(sorted.length == 0) return 0L;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(q * sorted.length) - 1))];
+	}
+	
+	private static double millis(long nanos)
+	{
+		return nanos / 1_000_000D;
+	}
+	
+	private static double seconds(long nanos)
+	{
+		return nanos / 1_000_000_000D;
+	}
+	
+	/**
+	 * A single load-generating connection. Sends the next message only once the previous one was echoed.
+	 */
+	static class Client
+			implements WebSocket.Listener
+	{
+		final ClientWebsocketListener listener;
+		final long[] latencies;
+		long handshakeNanos, bytes;
+		
+		private long sentAt;
+		private int received;
+		private PayloadMix mix;
+		private Random random;
+		private volatile CompletableFuture<WebSocket> lastSend = CompletableFuture.completedFuture(null);
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		
+		Client(String algorithm, int messages)
+		{
+			this.listener = new ClientWebsocketListener(algorithm, this);
+			this.latencies = new long[messages];
+		}
+		
+		CompletableFuture<?> connect(HttpClient http, URI uri)
+		{
+			long start = System.nanoTime();
+			return http.newWebSocketBuilder()
+					.buildAsync(uri, listener)
+					.thenCompose(ws -> listener.getHandshake())
+					.thenAccept(ws -> handshakeNanos = System.nanoTime() - start);
+		}
+		
+		CompletableFuture<Void> run(PayloadMix mix, Random random)
+		{
+			this.mix = mix;
+			this.random = random;
+			sendNext();
+			return done;
+		}
+		
+		private void sendNext()
+		{
+			if(received == latencies.length)
+			{
+				done.complete(null);
+				return;
+			}
+			
+			ByteBuffer buf = ByteBuffer.allocate(mix.next(random));
+			bytes += buf.remaining();
+			sentAt = System.nanoTime();
+			// Published before sending, as the echo may arrive before sendBinary returns
+			CompletableFuture<WebSocket> sent = new CompletableFuture<>();
+			lastSend = sent;
+			listener.sendBinary(buf, true).whenComplete((ws, e) ->
+			{
+				if(e != null)
+				{
+					sent.completeExceptionally(e);
+					done.completeExceptionally(e);
+				} else
+					sent.complete(ws);
+			});
+		}
+		
+		@Override
+		public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last)
+		{
+			if(last)
+			{
+				long now = System.nanoTime();
+				CompletableFuture<WebSocket> sent = lastSend;
+				latencies[received++] = now - sentAt;
+				sent.thenRun(this::sendNext);
+			}
+			webSocket.request(1L);
+			return null;
+		}
+		
+		@Override
+		public void onError(WebSocket webSocket, Throwable error)
+		{
+			done.completeExceptionally(error);
+		}
+	}
+	
+	/**
+	 * Weighted set of payload sizes, e.g. {@code 64:70,1024:25,65536:5}.
+	 */
+	record PayloadMix(int[] sizes, int[] cumulative)
+	{
+		static PayloadMix parse(String spec)
+		{
+			String[] parts = spec.split(",");
+			int[] sizes = new int[parts.length];
+			int[] cumulative = new int[parts.length];
+			int total = 0;
+			for(int i = 0; i < parts.length; ++i)
+			{
+				String[] sw = parts[i].trim().split(":");
+				sizes[i] = Integer.parseInt(sw[0]);
+				total += sw.length > 1 ? Integer.parseInt(sw[1]) : 1;
+				cumulative[i] = total;
+			}
+			return new PayloadMix(sizes, cumulative);
+		}
+		
+		int next(Random random)
+		{
+			int r = random.nextInt(cumulative[cumulative.length - 1]);
+			for(int i = 0; i < cumulative.length; ++i)
+				if(r < cumulative[i])
+					return sizes[i];
+			return sizes[sizes.length - 1];
+		}
+		
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < sizes.length; ++i)
+			{
+				if(i > 0) sb.append(',');
+				sb.append(sizes[i]).append(':').append(cumulative[i] - (i > 0 ? cumulative[i - 1] : 0));
+			}
+			return sb.toString();
+		}
+	}
+}